@@ -0,0 +1,51 @@
+package RUBTClient.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import edu.rutgers.cs.cs352.bt.TorrentInfo;
+import edu.rutgers.cs.cs352.bt.exceptions.BencodingException;
+import edu.rutgers.cs.cs352.bt.util.Bencoder2;
+
+/**
+ * Decoding metainfo files, whose size is dominated by the piece hashes
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class BencodeBenchmark {
+
+	@Param({"64", "1024", "16384"})
+	public int pieces;
+
+	private byte[] metainfo;
+
+	@Setup
+	public void setup(){
+		metainfo = Torrents.metainfo(pieces, 262144, null, 1);
+	}
+
+	@Benchmark
+	public Object decode() throws BencodingException{
+		return Bencoder2.decode(metainfo);
+	}
+
+	@Benchmark
+	public TorrentInfo torrentInfo() throws BencodingException{
+		return new TorrentInfo(metainfo);
+	}
+}
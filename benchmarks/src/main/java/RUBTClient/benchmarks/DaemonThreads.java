@@ -0,0 +1,23 @@
+package RUBTClient.benchmarks;
+
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Names the harness threads and keeps them from holding the JVM open
+ */
+class DaemonThreads implements ThreadFactory {
+
+	private final String 		name;
+	private final AtomicInteger count = new AtomicInteger();
+
+	DaemonThreads(String name){
+		this.name = name;
+	}
+
+	public Thread newThread(Runnable r){
+		Thread thread = new Thread(r, name + "-" + count.incrementAndGet());
+		thread.setDaemon(true);
+		return thread;
+	}
+}
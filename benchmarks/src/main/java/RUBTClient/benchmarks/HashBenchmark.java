@@ -0,0 +1,65 @@
+package RUBTClient.benchmarks;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import RUBTClient.DestFile;
+
+/**
+ * Checking a downloaded piece against its hash, from a heap and from a direct buffer
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class HashBenchmark {
+
+	@Param({"16384", "262144", "1048576"})
+	public int pieceLength;
+
+	private DestFile destfile;
+	private ByteBuffer heap;
+	private ByteBuffer direct;
+
+	@Setup
+	public void setup(){
+		Torrents.silence();
+		byte[] data = new byte[pieceLength];
+		new Random(1).nextBytes(data);
+		destfile = new DestFile(Torrents.torrent(4, pieceLength, data, 1), Torrents.destination());
+		heap = ByteBuffer.wrap(data);
+		direct = ByteBuffer.allocateDirect(pieceLength);
+		direct.put(data).flip();
+	}
+
+	@TearDown
+	public void tearDown(){
+		destfile.close();
+	}
+
+	@Benchmark
+	public boolean verifyHeap(){
+		return destfile.verify(0, heap);
+	}
+
+	@Benchmark
+	public boolean verifyDirect(){
+		return destfile.verify(0, direct);
+	}
+}
@@ -0,0 +1,225 @@
+package RUBTClient.benchmarks;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+
+/**
+ * Puts a proxy in front of every client's listening port that delays, loses and throttles what passes
+ * through it, so loopback behaves more like a network. Each direction of each connection is shaped on
+ * its own:
+ * <ul>
+ * <li>latency delays every chunk by a fixed one-way delay</li>
+ * <li>loss delays a chunk, and everything queued behind it, by a retransmission timeout, which is what a
+ * lost segment costs a TCP stream</li>
+ * <li>the bandwidth cap spaces chunks so the direction never goes faster than the cap</li>
+ * </ul>
+ * With every setting at zero the proxy still relays, so runs with and without shaping compare fairly.
+ */
+class LinkShaper implements StandInTracker.PortMapper {
+
+	private static final int 	CHUNK = 16 * 1024;
+	private static final long 	MIN_RTO = 200;		//milliseconds, the smallest retransmission timeout TCP uses
+
+	private final long 		latency;			//milliseconds each way
+	private final double 	loss;				//chance a chunk is lost and retransmitted
+	private final long 		bandwidth;			//bytes per second each way, 0 for no cap
+	private final Random 	random = new Random(1);
+
+	private final Map<Integer, ServerSocket> proxies = new HashMap<Integer, ServerSocket>();
+	private final ExecutorService threads = Executors.newCachedThreadPool(new DaemonThreads("linkShaper"));
+	private volatile boolean running = true;
+
+	/**
+	 * @param latency one-way delay in milliseconds
+	 * @param loss chance from 0 to 1 that a chunk has to be retransmitted
+	 * @param bandwidth bytes per second each way, 0 for no cap
+	 */
+	LinkShaper(long latency, double loss, long bandwidth){
+		this.latency = latency;
+		this.loss = loss;
+		this.bandwidth = bandwidth;
+	}
+
+	/**
+	 * @return the port of the proxy in front of a client, opening the proxy the first time
+	 */
+	public synchronized int advertise(int port){
+		ServerSocket proxy = proxies.get(port);
+		if(proxy == null){
+			try {
+				proxy = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+			}catch (IOException e){
+				System.err.println("LinkShaper: could not open a proxy for port " + port);
+				return port;
+			}
+			proxies.put(port, proxy);
+			threads.execute(new Acceptor(proxy, port));
+		}
+		return proxy.getLocalPort();
+	}
+
+	/**
+	 * Closes every proxy and the connections through them
+	 */
+	synchronized void stop(){
+		running = false;
+		for(ServerSocket proxy: proxies.values()){
+			close(proxy);
+		}
+		threads.shutdownNow();
+	}
+
+	private long retransmissionDelay(){
+		synchronized(random){
+			if(loss <= 0 || random.nextDouble() >= loss){
+				return 0;
+			}
+		}
+		return Math.max(MIN_RTO, 4 * latency);
+	}
+
+	private class Acceptor implements Runnable {
+
+		private final ServerSocket 	proxy;
+		private final int 			target;
+
+		Acceptor(ServerSocket proxy, int target){
+			this.proxy = proxy;
+			this.target = target;
+		}
+
+		public void run(){
+			while(running){
+				Socket incoming;
+				try {
+					incoming = proxy.accept();
+				}catch (IOException e){
+					return;		//closed
+				}
+				try {
+					Socket outgoing = new Socket(InetAddress.getLoopbackAddress(), target);
+					incoming.setTcpNoDelay(true);
+					outgoing.setTcpNoDelay(true);
+					pipe(incoming, outgoing);
+					pipe(outgoing, incoming);
+				}catch (IOException e){
+					close(incoming);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Starts relaying one direction of a connection
+	 */
+	private void pipe(Socket from, Socket to) throws IOException{
+		LinkedBlockingQueue<Chunk> queue = new LinkedBlockingQueue<Chunk>();
+		threads.execute(new Reader(from.getInputStream(), queue));
+		threads.execute(new Writer(to.getOutputStream(), queue, from, to));
+	}
+
+	private static class Chunk {
+		final byte[] 	data;		//null at the end of the stream
+		final long 		due;		//System.nanoTime() when it may be delivered
+
+		Chunk(byte[] data, long due){
+			this.data = data;
+			this.due = due;
+		}
+	}
+
+	private class Reader implements Runnable {
+
+		private final InputStream 					in;
+		private final LinkedBlockingQueue<Chunk> 	queue;
+
+		Reader(InputStream in, LinkedBlockingQueue<Chunk> queue){
+			this.in = in;
+			this.queue = queue;
+		}
+
+		public void run(){
+			byte[] buffer = new byte[CHUNK];
+			long last_due = 0;
+			try {
+				int read;
+				while((read = in.read(buffer)) != -1){
+					byte[] data = new byte[read];
+					System.arraycopy(buffer, 0, data, 0, read);
+					//a stream delivers in order, a retransmitted chunk holds back everything after it
+					long due = System.nanoTime() + (latency + retransmissionDelay()) * 1000000L;
+					last_due = Math.max(last_due, due);
+					queue.add(new Chunk(data, last_due));
+				}
+			}catch (IOException e){
+				//closed from the other side
+			}
+			queue.add(new Chunk(null, last_due));
+		}
+	}
+
+	private class Writer implements Runnable {
+
+		private final OutputStream 					out;
+		private final LinkedBlockingQueue<Chunk> 	queue;
+		private final Socket 						from;
+		private final Socket 						to;
+
+		Writer(OutputStream out, LinkedBlockingQueue<Chunk> queue, Socket from, Socket to){
+			this.out = out;
+			this.queue = queue;
+			this.from = from;
+			this.to = to;
+		}
+
+		public void run(){
+			long free_at = System.nanoTime();		//when the capped link has sent everything so far
+			try {
+				while(true){
+					Chunk chunk = queue.take();
+					sleepUntil(chunk.due);
+					if(chunk.data == null){
+						break;
+					}
+					if(bandwidth > 0){
+						free_at = Math.max(free_at, System.nanoTime()) + chunk.data.length * 1000000000L / bandwidth;
+						sleepUntil(free_at);
+					}
+					out.write(chunk.data);
+					out.flush();
+				}
+			}catch (IOException e){
+				//closed from the other side
+			}catch (InterruptedException e){
+				//stopping
+			}
+			close(from);
+			close(to);
+		}
+	}
+
+	private static void sleepUntil(long nanos) throws InterruptedException{
+		long wait;
+		while((wait = nanos - System.nanoTime()) > 0){
+			Thread.sleep(wait / 1000000L, (int)(wait % 1000000L));
+		}
+	}
+
+	private static void close(Closeable closeable){
+		try {
+			closeable.close();
+		}catch (IOException e){
+		}
+	}
+}
@@ -0,0 +1,55 @@
+package RUBTClient.benchmarks;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import RUBTClient.Message;
+
+/**
+ * Framing of the messages sent for every block
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MessageBenchmark {
+
+	@Param({"1024", "16384", "131072"})
+	public int blockSize;
+
+	private final Message message = new Message();
+	private byte[] block;
+	private int index;
+
+	@Setup
+	public void setup(){
+		block = new byte[blockSize];
+		new Random(1).nextBytes(block);
+	}
+
+	@Benchmark
+	public byte[] request(){
+		index = (index + 1) & 1023;
+		return message.request(index, 0, blockSize);
+	}
+
+	@Benchmark
+	public byte[] pieceMessage(){
+		index = (index + 1) & 1023;
+		return message.getPieceMessage(index, 0, block);
+	}
+}
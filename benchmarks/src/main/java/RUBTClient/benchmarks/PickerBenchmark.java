@@ -0,0 +1,96 @@
+package RUBTClient.benchmarks;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import RUBTClient.Bitfield;
+import RUBTClient.DestFile;
+
+/**
+ * Choosing the next piece to request. The connected peers each have a random half of the pieces and
+ * we have a random share of them already.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PickerBenchmark {
+
+	@Param({"64", "1024", "16384"})
+	public int pieces;
+
+	@Param({"1", "10", "100"})
+	public int peers;
+
+	@Param({"0.0", "0.9"})
+	public double complete;
+
+	private DestFile destfile;
+	private Bitfield[] bitfields;
+	private int next;
+
+	@Setup
+	public void setup(){
+		Random random = new Random(1);
+		destfile = new DestFile(Torrents.torrent(pieces, 16384, null, 1), Torrents.destination());
+		for(int i = 0; i < pieces; i++){
+			if(random.nextDouble() < complete){
+				destfile.getPieceStates().complete(i);
+			}
+		}
+		bitfields = new Bitfield[peers];
+		for(int p = 0; p < peers; p++){
+			bitfields[p] = new Bitfield(pieces);
+			for(int i = 0; i < pieces; i++){
+				if(random.nextBoolean()){
+					bitfields[p].set(i);
+				}
+			}
+			destfile.myRarityMachine.addPeer(bitfields[p], new Bitfield(pieces));
+		}
+	}
+
+	@TearDown
+	public void tearDown(){
+		destfile.close();
+	}
+
+	private Bitfield nextPeer(){
+		next = next + 1 == peers ? 0 : next + 1;
+		return bitfields[next];
+	}
+
+	@Benchmark
+	public int firstNewPiece(){
+		return destfile.firstNewPiece(nextPeer());
+	}
+
+	@Benchmark
+	public int rarestPiece(){
+		return destfile.myRarityMachine.rarestPiece(nextPeer());
+	}
+
+	@Benchmark
+	public int pickAndUnpick(){
+		int piece = destfile.picker.pick(nextPeer(), this);
+		if(piece != -1){
+			destfile.picker.unpick(piece, this);
+		}
+		return piece;
+	}
+}
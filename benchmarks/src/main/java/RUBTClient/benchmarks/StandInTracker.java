@@ -0,0 +1,283 @@
+package RUBTClient.benchmarks;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.Executors;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Minimal HTTP and UDP tracker on loopback for a single torrent. Every announce is answered with a compact
+ * list of the other peers that announced, each at the port the link shaper put in front of it.
+ * <p>
+ * The UDP side checks the wire format of BEP 15 as it goes: the protocol id of connect requests, the
+ * length of announces, that their connection id was handed out, and that every client keeps its key.
+ * A request that fails a check is answered with an error and counted.
+ */
+class StandInTracker {
+
+	/**
+	 * Chooses the port a peer is advertised on
+	 */
+	interface PortMapper {
+		/**
+		 * @param port port a client listens on
+		 * @return port other clients should connect to
+		 */
+		int advertise(int port);
+	}
+
+	private final HttpServer 	server;
+	private final PortMapper 	mapper;
+	private final int 			interval;
+	//listening port of every peer that announced, to whether it is seeding
+	private final Map<Integer, Boolean> peers = new LinkedHashMap<Integer, Boolean>();
+
+	private final DatagramChannel 	udp;
+	private final Random 			random = new Random();
+	private final Set<Long> 		connection_ids = new HashSet<Long>();
+	//key of every peer id that announced over UDP
+	private final Map<String, Integer> keys = new HashMap<String, Integer>();
+	private int 					udp_errors;
+
+	/**
+	 * @param mapper chooses the port each peer is advertised on
+	 * @param interval seconds between announces asked of the clients
+	 * @throws IOException if no loopback port can be bound
+	 */
+	StandInTracker(PortMapper mapper, int interval) throws IOException{
+		this.mapper = mapper;
+		this.interval = interval;
+		this.server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+		this.server.createContext("/announce", new AnnounceHandler());
+		this.server.setExecutor(Executors.newCachedThreadPool(new DaemonThreads("standInTracker")));
+		this.udp = DatagramChannel.open();
+		this.udp.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+	}
+
+	void start(){
+		server.start();
+		new DaemonThreads("standInUdpTracker").newThread(new Runnable(){
+			public void run(){
+				receive();
+			}
+		}).start();
+	}
+
+	void stop(){
+		server.stop(0);
+		try {
+			udp.close();
+		}catch (IOException e){
+		}
+	}
+
+	/**
+	 * @return url clients announce to
+	 */
+	String getAnnounceUrl(){
+		return "http://127.0.0.1:" + server.getAddress().getPort() + "/announce";
+	}
+
+	/**
+	 * @return url clients announce to over UDP
+	 */
+	String getUdpAnnounceUrl(){
+		try {
+			return "udp://127.0.0.1:" + ((InetSocketAddress)udp.getLocalAddress()).getPort() + "/announce";
+		}catch (IOException e){
+			throw new IllegalStateException(e);
+		}
+	}
+
+	/**
+	 * @return UDP requests that broke the protocol
+	 */
+	synchronized int getUdpErrors(){
+		return udp_errors;
+	}
+
+	private synchronized byte[] announce(int port, String event, long left){
+		byte[] list = update(port, event, left);
+		int seeders = seeders();
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		ascii(out, "d8:completei" + seeders + "e10:incompletei" + (peers.size() - seeders) + "e8:intervali" + interval + "e5:peers" + list.length + ":");
+		out.write(list, 0, list.length);
+		ascii(out, "e");
+		return out.toByteArray();
+	}
+
+	private int seeders(){
+		int seeders = 0;
+		for(boolean seeding: peers.values()){
+			if(seeding){
+				seeders++;
+			}
+		}
+		return seeders;
+	}
+
+	/**
+	 * Records an announce
+	 * @return compact list of the other peers
+	 */
+	private byte[] update(int port, String event, long left){
+		if("stopped".equals(event)){
+			peers.remove(port);
+		}else {
+			peers.put(port, left == 0);
+		}
+		ByteArrayOutputStream compact = new ByteArrayOutputStream();
+		for(Map.Entry<Integer, Boolean> peer: peers.entrySet()){
+			if(peer.getKey() == port || "stopped".equals(event)){
+				continue;
+			}
+			int advertised = mapper.advertise(peer.getKey());
+			compact.write(127);
+			compact.write(0);
+			compact.write(0);
+			compact.write(1);
+			compact.write(advertised >>> 8);
+			compact.write(advertised & 0xFF);
+		}
+		return compact.toByteArray();
+	}
+
+	private void receive(){
+		ByteBuffer request = ByteBuffer.allocate(2048);
+		while(udp.isOpen()){
+			try {
+				request.clear();
+				SocketAddress from = udp.receive(request);
+				request.flip();
+				ByteBuffer response = answer(request);
+				if(response != null){
+					response.flip();
+					udp.send(response, from);
+				}
+			}catch (IOException e){
+				return;		//closed by stop
+			}
+		}
+	}
+
+	/**
+	 * @param request one datagram
+	 * @return the answer, or null for a datagram too short to answer
+	 */
+	private synchronized ByteBuffer answer(ByteBuffer request){
+		if(request.remaining() < 16){
+			udp_errors++;
+			return null;
+		}
+		long connection_id = request.getLong(0);
+		int action = request.getInt(8);
+		int transaction_id = request.getInt(12);
+		if(action == 0){
+			if(connection_id != 0x41727101980L || request.remaining() != 16){
+				return error(transaction_id, "bad connect request");
+			}
+			long id = random.nextLong();
+			connection_ids.add(id);
+			ByteBuffer response = ByteBuffer.allocate(16);
+			response.putInt(0).putInt(transaction_id).putLong(id);
+			return response;
+		}
+		if(action != 1){
+			return error(transaction_id, "unknown action");
+		}
+		if(request.remaining() != 98){
+			return error(transaction_id, "announce of " + request.remaining() + " bytes");
+		}
+		if(!connection_ids.contains(connection_id)){
+			return error(transaction_id, "unknown connection id");
+		}
+		byte[] peer_id = new byte[20];
+		request.position(36);
+		request.get(peer_id);
+		String peer = new String(peer_id, 0, 20, StandardCharsets.ISO_8859_1);
+		long left = request.getLong(64);
+		int event = request.getInt(80);
+		int key = request.getInt(88);
+		int port = request.getShort(96) & 0xFFFF;
+		Integer known = keys.put(peer, key);
+		if(known != null && known != key){
+			return error(transaction_id, "key changed");
+		}
+		byte[] list = update(port, event == 3 ? "stopped" : null, left);
+		int seeders = seeders();
+		ByteBuffer response = ByteBuffer.allocate(20 + list.length);
+		response.putInt(1).putInt(transaction_id).putInt(interval).putInt(peers.size() - seeders).putInt(seeders).put(list);
+		return response;
+	}
+
+	private ByteBuffer error(int transaction_id, String message){
+		udp_errors++;
+		byte[] text = message.getBytes(StandardCharsets.US_ASCII);
+		ByteBuffer response = ByteBuffer.allocate(8 + text.length);
+		response.putInt(3).putInt(transaction_id).put(text);
+		return response;
+	}
+
+	private static void ascii(ByteArrayOutputStream out, String text){
+		for(int i = 0; i < text.length(); i++){
+			out.write(text.charAt(i));
+		}
+	}
+
+	private class AnnounceHandler implements HttpHandler {
+
+		public void handle(HttpExchange exchange) throws IOException{
+			try {
+				int port = -1;
+				long left = -1;
+				String event = null;
+				String query = exchange.getRequestURI().getRawQuery();
+				for(String field: query == null ? new String[0] : query.split("&")){
+					int equals = field.indexOf('=');
+					if(equals == -1){
+						continue;
+					}
+					String name = field.substring(0, equals);
+					String value = field.substring(equals + 1);
+					if(name.equals("port")){
+						port = Integer.parseInt(value);
+					}else if(name.equals("left")){
+						left = Long.parseLong(value);
+					}else if(name.equals("event")){
+						event = value;
+					}
+				}
+				byte[] body;
+				if(port <= 0){
+					body = "d14:failure reason12:missing porte".getBytes("US-ASCII");
+				}else {
+					body = announce(port, event, left);
+				}
+				exchange.sendResponseHeaders(200, body.length);
+				OutputStream out = exchange.getResponseBody();
+				out.write(body);
+				out.close();
+			}catch (NumberFormatException e){
+				exchange.sendResponseHeaders(400, -1);
+			}finally {
+				exchange.close();
+			}
+		}
+	}
+}
@@ -0,0 +1,285 @@
+package RUBTClient.benchmarks;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import RUBTClient.RUBTClient;
+import edu.rutgers.cs.cs352.bt.TorrentInfo;
+
+/**
+ * Runs a whole swarm inside one JVM on loopback: a stand-in tracker, seeding clients and leeching clients,
+ * every client behind a proxy that can add latency, loss and a bandwidth cap. A generated file is
+ * transferred from the seeds to the leechers, then the harness reports throughput, the distribution of
+ * completion times, CPU time and allocation.
+ * <p>
+ * Usage: java -cp benchmarks/target/benchmarks.jar RUBTClient.benchmarks.SwarmHarness [options]
+ * <pre>
+ * --seeds n          seeding clients (1)
+ * --leechers n       leeching clients (4)
+ * --size mib         size of the file (16)
+ * --piece kib        piece length (256)
+ * --latency ms       one-way delay of every connection (0)
+ * --loss p           chance from 0 to 1 that a chunk is retransmitted (0)
+ * --bandwidth kib/s  cap of each direction of every connection, 0 for none (0)
+ * --timeout s        give up on leechers that are not done by then (120)
+ * --unchoke n        unchoke slots of every client, 0 for one per other client so nobody waits on a
+ *                    30 second optimistic unchoke (0)
+ * --udp              announce to the stand-in tracker over UDP (BEP 15) instead of HTTP
+ * --verbose          keep what the clients print
+ * --keep             keep the downloaded files
+ * </pre>
+ * CPU time and allocation are for the whole process, the proxies and the tracker included. A run in which
+ * a leecher did not finish is reported as FAILED without completion times or throughput, as those
+ * numbers would only measure the timeout.
+ */
+public class SwarmHarness {
+
+	private static final long POLL = 50;		//milliseconds between checks on the leechers
+
+	private final int 		seeds;
+	private final int 		leechers;
+	private final int 		size;
+	private final int 		piece_length;
+	private final long 		latency;
+	private final double 	loss;
+	private final long 		bandwidth;
+	private final long 		timeout;
+	private final boolean 	verbose;
+	private final boolean 	keep;
+	private final boolean 	udp;
+	private final int 		unchoke_slots;
+
+	//highest allocation seen of every thread, threads that end between samples lose their last few bytes
+	private final Map<Long, Long> allocated = new HashMap<Long, Long>();
+
+	SwarmHarness(Map<String, String> options){
+		this.seeds = Integer.parseInt(option(options, "seeds", "1"));
+		this.leechers = Integer.parseInt(option(options, "leechers", "4"));
+		this.size = Integer.parseInt(option(options, "size", "16")) * 1024 * 1024;
+		this.piece_length = Integer.parseInt(option(options, "piece", "256")) * 1024;
+		this.latency = Long.parseLong(option(options, "latency", "0"));
+		this.loss = Double.parseDouble(option(options, "loss", "0"));
+		this.bandwidth = Long.parseLong(option(options, "bandwidth", "0")) * 1024;
+		this.timeout = Long.parseLong(option(options, "timeout", "120")) * 1000;
+		this.verbose = options.containsKey("verbose");
+		this.keep = options.containsKey("keep");
+		this.udp = options.containsKey("udp");
+		int slots = Integer.parseInt(option(options, "unchoke", "0"));
+		this.unchoke_slots = slots > 0 ? slots : seeds + leechers - 1;
+	}
+
+	/**
+	 * @param args options, see the class comment
+	 */
+	public static void main(String[] args) throws Exception{
+		Map<String, String> options = new HashMap<String, String>();
+		for(int i = 0; i < args.length; i++){
+			if(!args[i].startsWith("--")){
+				System.err.println("unexpected argument " + args[i]);
+				System.exit(2);
+			}
+			String name = args[i].substring(2);
+			if(name.equals("verbose") || name.equals("keep") || name.equals("udp")){
+				options.put(name, "true");
+			}else if(i + 1 < args.length){
+				options.put(name, args[++i]);
+			}else {
+				System.err.println("missing value for " + args[i]);
+				System.exit(2);
+			}
+		}
+		boolean complete = new SwarmHarness(options).run();
+		//client timers and peer threads are not all daemons
+		System.exit(complete ? 0 : 1);
+	}
+
+	/**
+	 * @return true if every leecher finished, and no request to the UDP tracker broke the protocol
+	 */
+	boolean run() throws IOException, InterruptedException{
+		File directory = File.createTempFile("rubt-swarm", "");
+		directory.delete();
+		directory.mkdirs();
+
+		byte[] data = new byte[size];
+		new Random(1).nextBytes(data);
+
+		LinkShaper shaper = new LinkShaper(latency, loss, bandwidth);
+		StandInTracker tracker = new StandInTracker(shaper, 5);
+		tracker.start();
+		TorrentInfo torrentinfo = Torrents.parse(Torrents.metainfo(udp ? tracker.getUdpAnnounceUrl() : tracker.getAnnounceUrl(), data, piece_length));
+
+		PrintStream out = System.out;
+		if(!verbose){
+			Torrents.silence();
+		}
+
+		List<RUBTClient> clients = new ArrayList<RUBTClient>();
+		for(int i = 0; i < seeds; i++){
+			File file = new File(directory, "seed-" + i + ".bin");
+			FileOutputStream stream = new FileOutputStream(file);
+			stream.write(data);
+			stream.close();
+			clients.add(start(torrentinfo, file));
+		}
+		awaitPorts(clients);
+
+		com.sun.management.OperatingSystemMXBean os = (com.sun.management.OperatingSystemMXBean)ManagementFactory.getOperatingSystemMXBean();
+		long cpu_start = os.getProcessCpuTime();
+		long allocated_start = sampleAllocation();
+		long start = System.nanoTime();
+
+		RUBTClient[] downloading = new RUBTClient[leechers];
+		for(int i = 0; i < leechers; i++){
+			downloading[i] = start(torrentinfo, new File(directory, "leecher-" + i + ".bin"));
+			clients.add(downloading[i]);
+		}
+
+		//completion time of every leecher in nanoseconds, -1 while it downloads
+		long[] finished = new long[leechers];
+		Arrays.fill(finished, -1);
+		int done = 0;
+		long deadline = start + timeout * 1000000L;
+		while(done < leechers && System.nanoTime() < deadline){
+			Thread.sleep(POLL);
+			sampleAllocation();
+			for(int i = 0; i < leechers; i++){
+				if(finished[i] == -1 && downloading[i].destfile.getIncomplete() == 0){
+					finished[i] = System.nanoTime() - start;
+					done++;
+				}
+			}
+		}
+		long elapsed = System.nanoTime() - start;
+		long cpu = os.getProcessCpuTime() - cpu_start;
+		long allocation = sampleAllocation() - allocated_start;
+		long transferred = 0;
+		for(RUBTClient leecher: downloading){
+			transferred += torrentinfo.file_length - leecher.destfile.getIncomplete();
+		}
+
+		for(RUBTClient client: clients){
+			client.quitClientLoop();
+		}
+		for(RUBTClient client: clients){
+			client.join(10000);
+		}
+		tracker.stop();
+		shaper.stop();
+		System.setOut(out);
+
+		report(finished, done, elapsed, transferred, cpu, allocation);
+		int udp_errors = tracker.getUdpErrors();
+		if(udp){
+			System.out.printf("udp tracker: %d requests broke BEP 15%n", udp_errors);
+		}
+		if(!keep){
+			for(File file: directory.listFiles()){
+				file.delete();
+			}
+			directory.delete();
+		}else {
+			System.out.println("files kept in " + directory);
+		}
+		return done == leechers && udp_errors == 0;
+	}
+
+	private RUBTClient start(TorrentInfo torrentinfo, File file){
+		RUBTClient client = RUBTClient.create(torrentinfo, file.getPath());
+		client.setFirstPort(0);
+		client.setConsole(false);
+		client.setUnchokeSlots(unchoke_slots);
+		client.start();
+		return client;
+	}
+
+	private void awaitPorts(List<RUBTClient> clients) throws InterruptedException{
+		for(RUBTClient client: clients){
+			while(client.getPort() == 0){
+				Thread.sleep(10);
+			}
+		}
+	}
+
+	/**
+	 * @return bytes allocated by every thread seen so far
+	 */
+	private long sampleAllocation(){
+		java.lang.management.ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+		if(!(threads instanceof com.sun.management.ThreadMXBean)){
+			return 0;
+		}
+		com.sun.management.ThreadMXBean sun_threads = (com.sun.management.ThreadMXBean)threads;
+		if(!sun_threads.isThreadAllocatedMemorySupported()){
+			return 0;
+		}
+		sun_threads.setThreadAllocatedMemoryEnabled(true);
+		long[] ids = sun_threads.getAllThreadIds();
+		long[] bytes = sun_threads.getThreadAllocatedBytes(ids);
+		long total = 0;
+		for(int i = 0; i < ids.length; i++){
+			Long seen = allocated.get(ids[i]);
+			if(bytes[i] > 0 && (seen == null || bytes[i] > seen)){
+				allocated.put(ids[i], bytes[i]);
+			}
+		}
+		for(long value: allocated.values()){
+			total += value;
+		}
+		return total;
+	}
+
+	private void report(long[] finished, int done, long elapsed, long transferred, long cpu, long allocation){
+		double seconds = elapsed / 1e9;
+		System.out.printf("swarm: %d seeds, %d leechers, %.1f MiB file, %d KiB pieces, latency %d ms, loss %.3f, bandwidth %s, %d unchoke slots%n",
+				seeds, leechers, size / 1048576.0, piece_length / 1024, latency, loss, bandwidth == 0 ? "unlimited" : bandwidth / 1024 + " KiB/s", unchoke_slots);
+		System.out.printf("completed: %d of %d leechers in %.2f s%n", done, leechers, seconds);
+		if(done < leechers){
+			System.out.printf("FAILED: %d leechers timed out after %.0f s with %.1f of %.1f MiB, no timings reported%n",
+					leechers - done, seconds, transferred / 1048576.0, (double)leechers * size / 1048576.0);
+			return;
+		}
+
+		long[] times = new long[done];
+		int n = 0;
+		for(long time: finished){
+			if(time != -1){
+				times[n++] = time;
+			}
+		}
+		Arrays.sort(times);
+		if(done > 0){
+			System.out.printf("completion time s: min %.2f  median %.2f  p90 %.2f  max %.2f%n",
+					times[0] / 1e9, percentile(times, 50) / 1e9, percentile(times, 90) / 1e9, times[done - 1] / 1e9);
+			double per_leecher = 0;
+			for(long time: times){
+				per_leecher += size / (time / 1e9);
+			}
+			System.out.printf("throughput: aggregate %.2f MiB/s, per leecher mean %.2f MiB/s%n",
+					transferred / seconds / 1048576.0, per_leecher / done / 1048576.0);
+		}else {
+			System.out.printf("throughput: aggregate %.2f MiB/s%n", transferred / seconds / 1048576.0);
+		}
+		int cores = Runtime.getRuntime().availableProcessors();
+		System.out.printf("cpu: %.2f s process time, %.2f of %d cores busy on average%n", cpu / 1e9, cpu / (double)elapsed, cores);
+		System.out.printf("allocation: %.1f MiB, %.1f MiB/s%n", allocation / 1048576.0, allocation / seconds / 1048576.0);
+	}
+
+	private static long percentile(long[] sorted, int percent){
+		int index = (int)Math.ceil(percent / 100.0 * sorted.length) - 1;
+		return sorted[Math.max(0, Math.min(sorted.length - 1, index))];
+	}
+
+	private static String option(Map<String, String> options, String name, String value){
+		return options.containsKey(name) ? options.get(name) : value;
+	}
+}
@@ -0,0 +1,126 @@
+package RUBTClient.benchmarks;
+
+import java.io.File;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
+import java.util.Random;
+
+import edu.rutgers.cs.cs352.bt.TorrentInfo;
+import edu.rutgers.cs.cs352.bt.exceptions.BencodingException;
+import edu.rutgers.cs.cs352.bt.util.Bencoder2;
+
+/**
+ * Builds synthetic single-file torrents for the benchmarks and the swarm harness
+ */
+final class Torrents {
+
+	private static final Charset ASCII = Charset.forName("US-ASCII");
+
+	private Torrents(){
+	}
+
+	/**
+	 * @param piece_count number of pieces
+	 * @param piece_length length of every piece
+	 * @param data content of piece 0, its real hash is used, or null to give every piece a random hash
+	 * @param seed seed of the random hashes
+	 * @return bencoded metainfo file
+	 */
+	static byte[] metainfo(int piece_count, int piece_length, byte[] data, long seed){
+		byte[] hashes = new byte[20 * piece_count];
+		new Random(seed).nextBytes(hashes);
+		if(data != null){
+			System.arraycopy(sha1(data, 0, data.length), 0, hashes, 0, 20);
+		}
+		return metainfo("http://127.0.0.1:6969/announce", (long)piece_count * piece_length, piece_length, hashes);
+	}
+
+	/**
+	 * @param announce url of the tracker
+	 * @param data content of the file
+	 * @param piece_length length of every piece but the last
+	 * @return bencoded metainfo file with the real hash of every piece
+	 */
+	static byte[] metainfo(String announce, byte[] data, int piece_length){
+		int piece_count = (data.length + piece_length - 1) / piece_length;
+		byte[] hashes = new byte[20 * piece_count];
+		for(int i = 0; i < piece_count; i++){
+			int offset = i * piece_length;
+			System.arraycopy(sha1(data, offset, Math.min(piece_length, data.length - offset)), 0, hashes, 20 * i, 20);
+		}
+		return metainfo(announce, data.length, piece_length, hashes);
+	}
+
+	private static byte[] metainfo(String announce, long length, int piece_length, byte[] hashes){
+		HashMap<ByteBuffer, Object> info = new HashMap<ByteBuffer, Object>();
+		info.put(string("length"), length);
+		info.put(string("name"), string("benchmark.bin"));
+		info.put(string("piece length"), piece_length);
+		info.put(string("pieces"), ByteBuffer.wrap(hashes));
+		HashMap<ByteBuffer, Object> metainfo = new HashMap<ByteBuffer, Object>();
+		metainfo.put(string("announce"), string(announce));
+		metainfo.put(string("info"), info);
+		try {
+			return Bencoder2.encode(metainfo);
+		}catch (BencodingException e){
+			throw new IllegalStateException(e);
+		}
+	}
+
+	/**
+	 * @return metainfo parsed, see metainfo
+	 */
+	static TorrentInfo torrent(int piece_count, int piece_length, byte[] data, long seed){
+		return parse(metainfo(piece_count, piece_length, data, seed));
+	}
+
+	/**
+	 * @param metainfo bencoded metainfo file
+	 * @return metainfo parsed
+	 */
+	static TorrentInfo parse(byte[] metainfo){
+		try {
+			return new TorrentInfo(metainfo);
+		}catch (BencodingException e){
+			throw new IllegalStateException(e);
+		}
+	}
+
+	/**
+	 * @return a destination file that does not exist, the benchmarks never write to it
+	 */
+	static String destination(){
+		return new File(System.getProperty("java.io.tmpdir"), "rubt-benchmark-" + System.nanoTime()).getPath();
+	}
+
+	/**
+	 * Drops what the client prints on every verified piece, so it does not end up in the measurement
+	 */
+	static void silence(){
+		System.setOut(new PrintStream(new OutputStream(){
+			public void write(int b){
+			}
+			public void write(byte[] b, int off, int len){
+			}
+		}));
+	}
+
+	private static ByteBuffer string(String text){
+		return ByteBuffer.wrap(text.getBytes(ASCII));
+	}
+
+	private static byte[] sha1(byte[] data, int offset, int length){
+		try {
+			MessageDigest md = MessageDigest.getInstance("SHA-1");
+			md.update(data, offset, length);
+			return md.digest();
+		}catch (NoSuchAlgorithmException e){
+			throw new IllegalStateException(e);
+		}
+	}
+}
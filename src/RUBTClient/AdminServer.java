@@ -0,0 +1,353 @@
+package RUBTClient;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import edu.rutgers.cs.cs352.bt.TorrentInfo;
+import edu.rutgers.cs.cs352.bt.exceptions.BencodingException;
+
+/**
+ * Control API of a running client, as JSON over HTTP on the loopback interface. Torrents are known by
+ * their info hash in hex. Parameters are passed in the query string.
+ * <pre>
+ * GET  /torrents                          every torrent with its progress, rates and limits
+ * POST /torrents?torrent=f&amp;destination=d  starts downloading or seeding another torrent
+ * GET  /torrents/{id}                     one torrent
+ * GET  /torrents/{id}/peers               connected peers with their state, rates and round trip time
+ * POST /torrents/{id}/limits?download=b&amp;upload=b&amp;unchoke_slots=n
+ *                                         bytes per second, 0 for no limit, any subset of the three
+ * POST /torrents/{id}/pause               stops transfers, keeping the peers
+ * POST /torrents/{id}/resume
+ * POST /torrents/{id}/recheck             hashes every piece again
+ * POST /torrents/{id}/stop                stops the torrent for good
+ * </pre>
+ * Pause, resume, recheck and unchoke slot changes are queued on the client's event loop and answered
+ * with 202, so the torrent in the answer may not show them yet.
+ */
+public class AdminServer {
+
+	private static final Log log = Log.get(AdminServer.class);
+
+	private final Map<String, RUBTClient> 	clients = new ConcurrentSkipListMap<String, RUBTClient>();
+	private final HttpServer 				server;
+	private final ExecutorService 			executor;
+
+	/**
+	 * @param port port to listen on, 0 for any free port
+	 * @throws IOException if the port cannot be bound
+	 */
+	public AdminServer(int port) throws IOException{
+		this.executor = Executors.newCachedThreadPool(new ThreadFactory(){
+			public Thread newThread(Runnable r){
+				Thread thread = new Thread(r, "adminServer");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		this.server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+		this.server.createContext("/torrents", new TorrentsHandler());
+		this.server.setExecutor(executor);
+	}
+
+	/**
+	 * Starts answering requests
+	 */
+	public void start(){
+		server.start();
+		log.info("admin api", "url", "http://localhost:" + getPort() + "/torrents");
+	}
+
+	/**
+	 * Stops answering requests
+	 */
+	public void stop(){
+		server.stop(0);
+		executor.shutdownNow();
+	}
+
+	/**
+	 * @return port the server listens on
+	 */
+	public int getPort(){
+		return server.getAddress().getPort();
+	}
+
+	/**
+	 * @param client client to control through the API
+	 * @return id of the client's torrent
+	 */
+	public String add(RUBTClient client){
+		String id = id(client.torrentinfo);
+		clients.put(id, client);
+		return id;
+	}
+
+	/**
+	 * Blocks until every client, including clients added while waiting, has stopped
+	 */
+	public void awaitClients(){
+		boolean running = true;
+		while(running){
+			running = false;
+			for(RUBTClient client: clients.values()){
+				try {
+					client.join();
+				}catch (InterruptedException e){
+					Thread.currentThread().interrupt();
+					return;
+				}
+			}
+			for(RUBTClient client: clients.values()){
+				running |= client.isAlive();
+			}
+		}
+	}
+
+	private static String id(TorrentInfo torrentinfo){
+		StringBuilder hex = new StringBuilder();
+		for(byte b: torrentinfo.info_hash.array()){
+			hex.append(String.format("%02x", b));
+		}
+		return hex.toString();
+	}
+
+	private class TorrentsHandler implements HttpHandler {
+
+		public void handle(HttpExchange exchange) throws IOException{
+			try {
+				String method = exchange.getRequestMethod();
+				String[] path = exchange.getRequestURI().getPath().substring(1).split("/");
+				Map<String, String> query = parseQuery(exchange.getRequestURI().getRawQuery());
+				if(path.length == 1){
+					if(method.equals("GET")){
+						send(exchange, 200, listTorrents());
+					}else if(method.equals("POST")){
+						addTorrent(exchange, query);
+					}else {
+						sendError(exchange, 405, "use GET or POST");
+					}
+					return;
+				}
+				RUBTClient client = clients.get(path[1]);
+				if(client == null){
+					sendError(exchange, 404, "no torrent " + path[1]);
+					return;
+				}
+				String action = path.length > 2 ? path[2] : "";
+				if(action.equals("") || action.equals("peers")){
+					if(!method.equals("GET")){
+						sendError(exchange, 405, "use GET");
+					}else {
+						send(exchange, 200, action.equals("") ? torrent(path[1], client) : peers(client));
+					}
+					return;
+				}
+				if(!method.equals("POST")){
+					sendError(exchange, 405, "use POST");
+					return;
+				}
+				if(action.equals("limits")){
+					try {
+						if(query.containsKey("download")){
+							client.getDownloadLimit().setRate(Long.parseLong(query.get("download")));
+						}
+						if(query.containsKey("upload")){
+							client.getUploadLimit().setRate(Long.parseLong(query.get("upload")));
+						}
+						if(query.containsKey("unchoke_slots")){
+							client.setUnchokeSlots(Integer.parseInt(query.get("unchoke_slots")));
+						}
+					}catch (NumberFormatException e){
+						sendError(exchange, 400, "limits are whole numbers");
+						return;
+					}
+				}else if(action.equals("pause")){
+					client.queueAction(Message.PAUSE);
+				}else if(action.equals("resume")){
+					client.queueAction(Message.RESUME);
+				}else if(action.equals("recheck")){
+					client.queueAction(Message.RECHECK);
+				}else if(action.equals("stop")){
+					client.quitClientLoop();
+				}else {
+					sendError(exchange, 404, "no action " + action);
+					return;
+				}
+				log.info("admin action", "torrent", path[1], "action", action);
+				boolean queued = action.equals("pause") || action.equals("resume") || action.equals("recheck") || query.containsKey("unchoke_slots");
+				send(exchange, queued ? 202 : 200, torrent(path[1], client));
+			}finally {
+				exchange.close();
+			}
+		}
+	}
+
+	private void addTorrent(HttpExchange exchange, Map<String, String> query) throws IOException{
+		String torrent = query.get("torrent");
+		String destination = query.get("destination");
+		if(torrent == null || destination == null){
+			sendError(exchange, 400, "torrent and destination are required");
+			return;
+		}
+		TorrentInfo torrentinfo;
+		try {
+			torrentinfo = RUBTClient.loadTorrent(new File(torrent));
+		}catch (IOException e){
+			sendError(exchange, 400, "cannot read " + torrent);
+			return;
+		}catch (BencodingException e){
+			sendError(exchange, 400, "not a torrent: " + torrent);
+			return;
+		}
+		String id = id(torrentinfo);
+		RUBTClient running = clients.get(id);
+		if(running != null && running.isAlive()){
+			sendError(exchange, 409, "torrent " + id + " is already running");
+			return;
+		}
+		RUBTClient client = RUBTClient.create(torrentinfo, destination);
+		client.setConsole(false);
+		add(client);
+		client.start();
+		log.info("torrent added", "torrent", id, "destination", destination);
+		send(exchange, 201, torrent(id, client));
+	}
+
+	private String listTorrents(){
+		StringBuilder json = new StringBuilder("[");
+		for(Map.Entry<String, RUBTClient> entry: clients.entrySet()){
+			if(json.length() > 1){
+				json.append(',');
+			}
+			json.append(torrent(entry.getKey(), entry.getValue()));
+		}
+		return json.append(']').toString();
+	}
+
+	private static String torrent(String id, RUBTClient client){
+		double download_rate = 0;
+		double upload_rate = 0;
+		Peer[] peers = client.peers.toArray(new Peer[0]);
+		for(Peer peer: peers){
+			download_rate += peer.received_bps;
+			upload_rate += peer.sent_bps;
+		}
+		StringBuilder json = new StringBuilder("{");
+		field(json, "id", id);
+		field(json, "name", client.torrentinfo.file_name);
+		field(json, "length", client.torrentinfo.file_length);
+		field(json, "left", client.destfile.getIncomplete());
+		field(json, "downloaded", client.getDownloaded());
+		field(json, "uploaded", client.uploaded.get());
+		field(json, "download_rate", Math.round(download_rate));
+		field(json, "upload_rate", Math.round(upload_rate));
+		field(json, "peers", peers.length);
+		field(json, "port", client.getPort());
+		field(json, "running", client.isAlive());
+		field(json, "seeding", client.getSeeding());
+		field(json, "paused", client.isPaused());
+		field(json, "download_limit", client.getDownloadLimit().getRate());
+		field(json, "upload_limit", client.getUploadLimit().getRate());
+		field(json, "unchoke_slots", client.getUnchokeSlots());
+		return end(json);
+	}
+
+	private static String peers(RUBTClient client){
+		StringBuilder json = new StringBuilder("[");
+		for(Peer peer: client.peers.toArray(new Peer[0])){
+			if(json.length() > 1){
+				json.append(',');
+			}
+			StringBuilder object = new StringBuilder("{");
+			field(object, "address", peer.toString());
+			field(object, "choked", peer.isChoked());
+			field(object, "choking", peer.isChoking());
+			field(object, "interested", peer.isInterested());
+			field(object, "remote_interested", peer.isRemoteInterested());
+			field(object, "snubbed", peer.isSnubbed());
+			field(object, "download_rate", Math.round(peer.received_bps));
+			field(object, "upload_rate", Math.round(peer.sent_bps));
+			field(object, "rtt_p50", peer.getRtt().getQuantile(0.5));
+			field(object, "rtt_p90", peer.getRtt().getQuantile(0.9));
+			field(object, "pending_requests", peer.getPendingRequests());
+			field(object, "piece", peer.getLastRequestedPiece());
+			json.append(end(object));
+		}
+		return json.append(']').toString();
+	}
+
+	private static void field(StringBuilder json, String name, Object value){
+		if(json.length() > 1){
+			json.append(',');
+		}
+		json.append('"').append(name).append("\":");
+		if(value instanceof String){
+			quote(json, (String)value);
+		}else {
+			json.append(value);
+		}
+	}
+
+	private static String end(StringBuilder json){
+		return json.append('}').toString();
+	}
+
+	private static void quote(StringBuilder json, String value){
+		json.append('"');
+		for(int i = 0; i < value.length(); i++){
+			char c = value.charAt(i);
+			if(c == '"' || c == '\\'){
+				json.append('\\').append(c);
+			}else if(c < 0x20){
+				json.append(String.format("\\u%04x", (int)c));
+			}else {
+				json.append(c);
+			}
+		}
+		json.append('"');
+	}
+
+	private static Map<String, String> parseQuery(String query) throws UnsupportedEncodingException{
+		Map<String, String> parameters = new HashMap<String, String>();
+		if(query == null){
+			return parameters;
+		}
+		for(String pair: query.split("&")){
+			int equals = pair.indexOf('=');
+			if(equals > 0){
+				parameters.put(URLDecoder.decode(pair.substring(0, equals), "UTF-8"), URLDecoder.decode(pair.substring(equals + 1), "UTF-8"));
+			}
+		}
+		return parameters;
+	}
+
+	private static void sendError(HttpExchange exchange, int status, String message) throws IOException{
+		StringBuilder json = new StringBuilder("{");
+		field(json, "error", message);
+		send(exchange, status, end(json));
+	}
+
+	private static void send(HttpExchange exchange, int status, String json) throws IOException{
+		byte[] body = json.getBytes("UTF-8");
+		exchange.getResponseHeaders().set("Content-Type", "application/json");
+		exchange.sendResponseHeaders(status, body.length);
+		OutputStream out = exchange.getResponseBody();
+		out.write(body);
+		out.close();
+	}
+}
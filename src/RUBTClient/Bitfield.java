@@ -0,0 +1,313 @@
+package RUBTClient;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Set of piece indexes packed 64 to a long. Scans work a word at a time, so finding a piece one bitfield
+ * has and others lack costs one AND-NOT per 64 pieces instead of a shift and test per piece. Converts to
+ * and from the wire format of the BITFIELD message, where piece 0 is the high bit of the first byte.
+ * <p>
+ * Words are atomic and single bits change with compare-and-set, so threads can set and clear pieces
+ * concurrently without locking and without losing each other's changes. Scans read one word at a time
+ * and may miss a bit changed while they run.
+ */
+public class Bitfield {
+
+	private final AtomicLongArray 	words;
+	private final int 				size;
+
+	/**
+	 * @param size number of pieces, all initially clear
+	 */
+	public Bitfield(int size){
+		this.size = size;
+		this.words = new AtomicLongArray((size + 63) >>> 6);
+	}
+
+	/**
+	 * @param bytes bitfield in wire format, extra bytes and spare bits at the end are ignored
+	 * @param size number of pieces
+	 * @return the decoded bitfield
+	 */
+	public static Bitfield fromBytes(byte[] bytes, int size){
+		Bitfield bitfield = new Bitfield(size);
+		bitfield.setBytes(bytes, 0, bytes.length);
+		return bitfield;
+	}
+
+	/**
+	 * Replaces every bit with a bitfield in wire format
+	 * @param bytes array holding the bitfield
+	 * @param offset offset of the first byte in bytes
+	 * @param length number of bytes, extra bytes and spare bits at the end are ignored
+	 */
+	public void setBytes(byte[] bytes, int offset, int length){
+		length = Math.min(length, (size + 7) >>> 3);
+		long[] decoded = new long[words.length()];
+		for(int i = 0; i < length; i++){
+			int b = Integer.reverse(bytes[offset + i] & 0xFF) >>> 24;	//piece 0 is the high bit on the wire
+			decoded[i >>> 3] |= (long)b << ((i & 7) << 3);
+		}
+		if((size & 63) != 0){
+			decoded[decoded.length - 1] &= (1L << size) - 1;	//spare bits past the last piece
+		}
+		for(int w = 0; w < decoded.length; w++){
+			words.set(w, decoded[w]);
+		}
+	}
+
+	/**
+	 * @return the bitfield in wire format, one bit per piece rounded up to whole bytes
+	 */
+	public byte[] toBytes(){
+		byte[] bytes = new byte[(size + 7) >>> 3];
+		for(int i = 0; i < bytes.length; i++){
+			int b = (int)(words.get(i >>> 3) >>> ((i & 7) << 3)) & 0xFF;
+			bytes[i] = (byte)(Integer.reverse(b) >>> 24);
+		}
+		return bytes;
+	}
+
+	/**
+	 * @param index piece index
+	 * @return true if the piece is set
+	 */
+	public boolean get(int index){
+		return (words.get(index >>> 6) & (1L << index)) != 0;
+	}
+
+	/**
+	 * @param index piece index
+	 * @return true if the piece was clear before
+	 */
+	public boolean set(int index){
+		checkIndex(index);
+		long mask = 1L << index;
+		int w = index >>> 6;
+		while(true){
+			long word = words.get(w);
+			if((word & mask) != 0){
+				return false;
+			}
+			if(words.compareAndSet(w, word, word | mask)){
+				return true;
+			}
+		}
+	}
+
+	/**
+	 * @param index piece index
+	 * @return true if the piece was set before
+	 */
+	public boolean clear(int index){
+		checkIndex(index);
+		long mask = 1L << index;
+		int w = index >>> 6;
+		while(true){
+			long word = words.get(w);
+			if((word & mask) == 0){
+				return false;
+			}
+			if(words.compareAndSet(w, word, word & ~mask)){
+				return true;
+			}
+		}
+	}
+
+	/**
+	 * @param from first piece index to look at
+	 * @return the first set piece at or after from, or -1 if there is none
+	 */
+	public int nextSetBit(int from){
+		if(from >= size){
+			return -1;
+		}
+		int w = from >>> 6;
+		long word = words.get(w) & (-1L << from);
+		while(true){
+			if(word != 0){
+				return (w << 6) + Long.numberOfTrailingZeros(word);
+			}
+			if(++w == words.length()){
+				return -1;
+			}
+			word = words.get(w);
+		}
+	}
+
+	/**
+	 * @param from first piece index to look at
+	 * @return the first clear piece at or after from, or -1 if there is none
+	 */
+	public int nextClearBit(int from){
+		if(from >= size){
+			return -1;
+		}
+		int w = from >>> 6;
+		long word = ~words.get(w) & (-1L << from);
+		while(true){
+			if(word != 0){
+				int index = (w << 6) + Long.numberOfTrailingZeros(word);
+				return index < size ? index : -1;
+			}
+			if(++w == words.length()){
+				return -1;
+			}
+			word = ~words.get(w);
+		}
+	}
+
+	/**
+	 * @param from first piece index to look at
+	 * @param exclude pieces to skip
+	 * @return the first piece at or after from that is set here and clear in exclude, or -1 if there is none
+	 */
+	public int nextSetBitAndNot(int from, Bitfield exclude){
+		return nextSetBitAndNot(from, exclude, null);
+	}
+
+	/**
+	 * @param from first piece index to look at
+	 * @param exclude pieces to skip
+	 * @param exclude_too more pieces to skip, or null
+	 * @return the first piece at or after from that is set here and clear in both excludes, or -1 if there is none
+	 */
+	public int nextSetBitAndNot(int from, Bitfield exclude, Bitfield exclude_too){
+		return nextSetBitIn(from, null, exclude, exclude_too);
+	}
+
+	/**
+	 * @param from first piece index to look at
+	 * @param in pieces to look at, or null for all
+	 * @param exclude pieces to skip
+	 * @param exclude_too more pieces to skip, or null
+	 * @return the first piece at or after from that is set here and in in, and clear in both excludes, or -1 if there is none
+	 */
+	public int nextSetBitIn(int from, Bitfield in, Bitfield exclude, Bitfield exclude_too){
+		if(from >= size){
+			return -1;
+		}
+		for(int w = from >>> 6; w < words.length(); w++){
+			long word = words.get(w) & ~exclude.words.get(w);
+			if(in != null){
+				word &= in.words.get(w);
+			}
+			if(exclude_too != null){
+				word &= ~exclude_too.words.get(w);
+			}
+			if(w == from >>> 6){
+				word &= -1L << from;
+			}
+			if(word != 0){
+				return (w << 6) + Long.numberOfTrailingZeros(word);
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * Sets every piece, for a peer that says it has all of them
+	 */
+	public void setAll(){
+		for(int w = 0; w < words.length(); w++){
+			words.set(w, -1L);
+		}
+		if((size & 63) != 0){
+			words.set(words.length() - 1, (1L << size) - 1);	//spare bits past the last piece
+		}
+	}
+
+	/**
+	 * @param other bitfield of the same size
+	 * @return a new bitfield of the pieces set both here and in other
+	 */
+	public Bitfield intersection(Bitfield other){
+		Bitfield both = new Bitfield(size);
+		for(int w = 0; w < words.length(); w++){
+			both.words.set(w, words.get(w) & other.words.get(w));
+		}
+		return both;
+	}
+
+	/**
+	 * @param other bitfield of the same size
+	 * @return a new bitfield of the pieces set here and clear in other
+	 */
+	public Bitfield difference(Bitfield other){
+		Bitfield only = new Bitfield(size);
+		for(int w = 0; w < words.length(); w++){
+			only.words.set(w, words.get(w) & ~other.words.get(w));
+		}
+		return only;
+	}
+
+	/**
+	 * @param other bitfield of the same size
+	 * @return true if any piece is set here and clear in other
+	 */
+	public boolean hasAnyNotIn(Bitfield other){
+		for(int w = 0; w < words.length(); w++){
+			if((words.get(w) & ~other.words.get(w)) != 0){
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * @return number of set pieces
+	 */
+	public int cardinality(){
+		int count = 0;
+		for(int w = 0; w < words.length(); w++){
+			count += Long.bitCount(words.get(w));
+		}
+		return count;
+	}
+
+	/**
+	 * @return true if every piece is set
+	 */
+	public boolean isComplete(){
+		return cardinality() == size;
+	}
+
+	/**
+	 * @return number of pieces
+	 */
+	public int size(){
+		return size;
+	}
+
+	/**
+	 * @return number of 64 piece words
+	 */
+	public int wordCount(){
+		return words.length();
+	}
+
+	/**
+	 * @param w word index
+	 * @return pieces 64 * w to 64 * w + 63, piece 64 * w in the lowest bit
+	 */
+	public long word(int w){
+		return words.get(w);
+	}
+
+	/**
+	 * @return the set pieces as zeros and ones, piece 0 first
+	 */
+	public String toString(){
+		StringBuilder builder = new StringBuilder(size);
+		for(int i = 0; i < size; i++){
+			builder.append(get(i) ? '1' : '0');
+		}
+		return builder.toString();
+	}
+
+	private void checkIndex(int index){
+		if(index < 0 || index >= size){
+			throw new IndexOutOfBoundsException("piece " + index + " of " + size);
+		}
+	}
+}
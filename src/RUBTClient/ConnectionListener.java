@@ -22,6 +22,8 @@ import java.io.DataOutputStream;
  *
  */
 public class ConnectionListener extends Thread{
+	private static final Log log = Log.get(ConnectionListener.class);
+	
 	private final RUBTClient client;
 	
 	/**
@@ -38,30 +40,34 @@ public class ConnectionListener extends Thread{
 	 */
 	public void run(){
 		boolean validPort = false;
-		client.setPort(6881);
+		int first_port = client.getFirstPort();
+		int last_port = first_port == 0 ? 0 : first_port + 8;
+		int port = first_port;
 		client.serverSocket = null;
 		
-		while(client.getPort() <= 6889 && !validPort){
+		while(port <= last_port && !validPort){
 			try {
-				client.serverSocket = new ServerSocket(client.getPort());
+				client.serverSocket = new ServerSocket(port);
 				validPort = true;
 			} catch (IOException e) {
-				client.setPort(client.getPort() + 1);
+				port++;
 			}
 		}
-		if(client.getPort() >= 6890){
-			System.err.println("RUBTClient startIncomingConnections(): all valid ports taken. quitting....");
+		if(!validPort){
+			client.setPort(port);	//unblocks the client thread waiting for a port
+			log.error("no free listening port", "first", first_port, "last", last_port);
 			client.quitClientLoop();
 			return;
 		}
+		client.setPort(client.serverSocket.getLocalPort());
 		while (client.keepRunning){
 			try{
 				if(client.serverSocket == null){
-					System.err.println("RUBTClient startIncomingConnections: null listener Socket. quitting...");
+					log.error("listener socket missing");
 					client.quitClientLoop();
 				}
 				if(Thread.currentThread().isInterrupted()){
-					System.out.println("intererupted listener thread");
+					log.debug("listener interrupted");
 					break;
 				}
 				client.incomingSocket = client.serverSocket.accept();
@@ -72,31 +78,33 @@ public class ConnectionListener extends Thread{
 				Message msg = new Message();
 				byte[] handshake;
 				byte[] peer_id;
-				peer.sendMessage(msg.handShake(client.torrentinfo.info_hash.array(), client.tracker.getUser_id()));
+				peer.sendMessage(msg.handShake(client.torrentinfo.info_hash.array(), client.trackers.getUser_id()));
 				handshake = peer.handshake();
 				if(handshake == null){
 					continue;
 				}
 				peer_id = handshakeCheck(handshake);
 				if(peer_id == null){
-					System.out.println("no peer id returned from handshake");
+					log.debug("incoming handshake rejected", "peer", peer);
 					peer.closeConnections();
 					continue;
 				}
 				peer.setPeer_id(peer_id);
-				System.out.println("incoming peer id " +  peer_id);
+				peer.setFast(Message.supportsFast(handshake));
+				peer.setExtended(Message.supportsExtensions(handshake));
+				log.debug("incoming peer", "peer", peer);
 				peer.setClient(client);
 				peer.setConnected(true);
 				peer.start();
 			}catch(EOFException e){
-				System.err.println("RUBTClient startIncomingConnections: tracker contacted us. just ignore him");
+				log.trace("connection closed before handshake");
 			}catch(IOException ioe){
-				System.out.println('\n' + "RUBTClient startIncomingConnections: IOException while handling request" + '\n');
+				log.debug("incoming connection failed", "error", ioe.getMessage());
 			}catch(Exception e){
-				System.err.println("RUBTClient startIncomingConnections: generic exception");
+				log.error("incoming connection failed", e);
 			}
 		}
-		System.out.println("Ending connection listener thread");
+		log.debug("listener stopped");
 		return;
 	}
 	
@@ -1,11 +1,15 @@
 package RUBTClient;
 
-import java.io.FileNotFoundException;
 import java.io.IOException;
-import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
 
 import edu.rutgers.cs.cs352.bt.TorrentInfo;
 /**
@@ -16,35 +20,83 @@ import edu.rutgers.cs.cs352.bt.TorrentInfo;
  */
 public class DestFile {
 	
+	/**
+	 * Told on a disk thread when a downloaded piece has been checked, so it must hand socket work to another thread
+	 */
+	public interface PieceCallback {
+		
+		/**
+		 * @param piece index of the piece
+		 * @param valid true if the piece matched its hash and is on its way to disk
+		 */
+		void pieceChecked(int piece, boolean valid);
+	}
+	
+	/**
+	 * Told on a disk thread when a block requested by a peer has been read, so it must hand socket work to another thread
+	 */
+	public interface ReadCallback {
+		
+		/**
+		 * @param piece index of the piece
+		 * @param begin offset of the block within the piece
+		 * @param block the data read
+		 */
+		void readCompleted(int piece, int begin, byte[] block);
+	}
+	
+	//number of piece buffers that may be in flight at once, and whether they live outside the heap
+	private static final int 		PIECE_BUFFERS = Integer.getInteger("rubt.pieceBuffers", 32);
+	private static final boolean 	DIRECT_BUFFERS = Boolean.getBoolean("rubt.directBuffers");
+	//bytes of verified pieces that may wait for the disk, and how long a piece may wait for its neighbours
+	private static final long 		WRITE_CACHE_BYTES = Long.getLong("rubt.writeCacheBytes", 16L * 1024 * 1024);
+	private static final long 		WRITE_DELAY = Long.getLong("rubt.writeDelay", 2000L);
+	//bytes of whole pieces kept in memory for serving uploads
+	private static final long 		READ_CACHE_BYTES = Long.getLong("rubt.readCacheBytes", 16L * 1024 * 1024);
+	//threads doing the disk work of a torrent
+	private static final int 		DISK_THREADS = Integer.getInteger("rubt.diskThreads", 2);
+	
+	private static final Log log = Log.get(DestFile.class);
+	
 	private TorrentInfo torrentinfo;
-	private RandomAccessFile dest;
-	int totalsize;
-	int incomplete;
+	private Storage storage;
+	long totalsize;
+	final AtomicLong incomplete;
 	private String filename;
-	private byte[] mybitfield;
+	private final PieceStates states;		//missing, claimed by a peer, or downloaded and verified
 
 	/**
-	 * rarityMachine for use of boolfield() method elsewhere
+	 * rarityMachine counting how many peers have each piece
 	 */
 	public rarityMachine myRarityMachine;
 	/**
-	 *  for external reference of piececount
+	 * picks which piece to request next, with deadlines for streaming
 	 */
-	public Piece[] pieces;
+	public final PiecePicker picker;
 	/**
-	 * for external reference of expectedbytes
+	 * counters, gauges and histograms of this torrent and the client downloading it
 	 */
-	public int expectedbytes;
-	
-	//int array for pieces - 0 = not downloaded, 1 = in progress, 2 = downloaded and verified
-	private int[] mypieces;
-	
+	public final Metrics metrics = new Metrics();
+	/**
+	 *  for external reference of piececount
+	 */
+	public Piece[] pieces;
 	private boolean initialized;
 	private RUBTClient client;
+	private final PieceBufferPool bufferPool;
+	private final DiskIO disk;
+	private final WriteCache writeCache;
+	private final ReadCache readCache;
+	//released when the piece they wait for is verified
+	private final ConcurrentHashMap<Integer, CountDownLatch> completion_waiters = new ConcurrentHashMap<Integer, CountDownLatch>();
+	private final int[] file_priorities;
+	private final Metrics.Histogram verify_time;
+	private final Metrics.Counter 	pieces_verified;
+	private final Metrics.Counter 	pieces_failed;
 	
 	/**
 	 * @param torrentinfo object to read info from
-	 * @param filename to write file to
+	 * @param filename to write file to, or directory to write the files of a multi-file torrent to
 	 */
 	public DestFile(TorrentInfo torrentinfo, String filename){
 		
@@ -52,94 +104,248 @@ public class DestFile {
 		this.initialized = false;
 		this.setTorrentinfo(torrentinfo);
 		this.totalsize = torrentinfo.file_length;
-		this.incomplete = torrentinfo.file_length;
+		this.incomplete = new AtomicLong(torrentinfo.file_length);
 		this.filename = filename;
+		this.storage = new Storage(torrentinfo, filename);
+		this.bufferPool = new PieceBufferPool(torrentinfo.piece_length, PIECE_BUFFERS, DIRECT_BUFFERS);
+		this.disk = new DiskIO("diskIO", DISK_THREADS, metrics);
+		this.writeCache = new WriteCache(storage, disk, torrentinfo.piece_length, bufferPool, new FlushListener(this), WRITE_CACHE_BYTES, WRITE_DELAY);
 		
 		this.myRarityMachine = new rarityMachine(torrentinfo.piece_hashes.length, this);
 		
-		//calculate sizes of arrays representing pieces, bitfields, etc
-		mypieces = new int[torrentinfo.piece_hashes.length];
+		//size the arrays representing pieces and bitfields
 		pieces = new Piece[torrentinfo.piece_hashes.length];
-		int mod1;
-		if((mod1 = torrentinfo.piece_hashes.length % 8) == 0){
-			mybitfield = new byte[torrentinfo.piece_hashes.length / 8];
-			expectedbytes = torrentinfo.piece_hashes.length / 8;
-			
-		}else{
-			mybitfield = new byte[((torrentinfo.piece_hashes.length - mod1) / 8) + 1];
-			expectedbytes = ((torrentinfo.piece_hashes.length - mod1) / 8) + 1;
-		}
-		this.initializeBitfield();
-		for(int i = 0; i<mypieces.length - 1; i++){
+		states = new PieceStates(torrentinfo.piece_hashes.length);
+		//pieces only know their size here, they borrow a buffer from bufferPool once they are requested
+		for(int i = 0; i<pieces.length - 1; i++){
 			pieces[i] = new Piece(torrentinfo.piece_length);
 		}
 		
 		//deal with possibility of different last piece length
-		int diff = torrentinfo.file_length % torrentinfo.piece_length;
+		int diff = (int)(torrentinfo.file_length % torrentinfo.piece_length);
 		if(diff == 0){
 			pieces[torrentinfo.piece_hashes.length - 1] = new Piece(torrentinfo.piece_length);
 		}else{
 			pieces[torrentinfo.piece_hashes.length - 1] = new Piece(diff);
 		}
+		this.readCache = new ReadCache(storage, pieces, READ_CACHE_BYTES, metrics);
+		this.picker = new PiecePicker(states, pieces, myRarityMachine, torrentinfo.piece_length);
+		this.file_priorities = new int[torrentinfo.files.length];
+		Arrays.fill(this.file_priorities, PiecePicker.PRIORITY_NORMAL);
+		this.verify_time = metrics.timer("rubt_piece_verify_seconds", "Time taken to hash a piece");
+		this.pieces_verified = metrics.counter("rubt_pieces_verified_total{result=\"valid\"}", "Pieces hashed, by result");
+		this.pieces_failed = metrics.counter("rubt_pieces_verified_total{result=\"invalid\"}", "Pieces hashed, by result");
+		registerGauges();
+	}
+	
+	private void registerGauges(){
+		metrics.gauge("rubt_bytes_left", "Bytes of the torrent not yet verified", new Metrics.Gauge(){
+			public long value(){
+				return incomplete.get();
+			}
+		});
+		metrics.gauge("rubt_pieces_complete", "Pieces verified", new Metrics.Gauge(){
+			public long value(){
+				return states.getComplete().cardinality();
+			}
+		});
+		metrics.gauge("rubt_pieces_in_progress", "Pieces claimed by a peer", new Metrics.Gauge(){
+			public long value(){
+				return states.getClaimed().cardinality();
+			}
+		});
+		metrics.gauge("rubt_disk_queue_depth", "Disk jobs waiting for a disk thread", new Metrics.Gauge(){
+			public long value(){
+				return disk.getQueued();
+			}
+		});
+		metrics.gauge("rubt_write_cache_bytes", "Verified bytes waiting to be written", new Metrics.Gauge(){
+			public long value(){
+				return writeCache.getCachedBytes();
+			}
+		});
+		metrics.gauge("rubt_read_cache_bytes", "Bytes held by the read cache", new Metrics.Gauge(){
+			public long value(){
+				return readCache.getCachedBytes();
+			}
+		});
+		metrics.gauge("rubt_piece_buffers_in_use", "Piece buffers lent to pieces being downloaded, hashed or written", new Metrics.Gauge(){
+			public long value(){
+				return bufferPool.inUse();
+			}
+		});
 	}
 
 	/**
-	 * Set up RAF associated with this DestFile
+	 * Set up the files associated with this DestFile, creating directories and sizing every file
 	 */
 	public void initializeRAF(){
 		
 		try {
-			dest = new RandomAccessFile(filename,"rw");
-			dest.setLength(torrentinfo.file_length);
+			storage.allocate();
 			initialized = true;
-		} catch (FileNotFoundException e) {
-			e.printStackTrace();
 		} catch (IOException e) {
-			e.printStackTrace();
+			log.error("could not allocate files", e);
 		}
 	}
+	
+	/**
+	 * @return true if any of the files being downloaded into already exists
+	 */
+	public boolean exists(){
+		return storage.exists();
+	}
 
 	
-	/**Takes in a Piece object and writes its data to the location specified by the piece length and offset.
-	 * @param id Piece object containing data to add to the target file 
-	 * @return true if piece verifies
-	 */
-	public synchronized boolean addPiece(int id){
-		if(verify(this.pieces[id].getData()) == id){
-			try {
-				//calculate location to write data in the file using piece length and offset if applicable
-				long target = id*getTorrentinfo().piece_length;
-				dest.seek(target);
-				dest.write(this.pieces[id].getData());
-				
-				//set piece as 'verified' and refresh bitfield
-				this.mypieces[id] = 2;
-				this.renewBitfield();
-				
-				//update incomplete field
-				this.incomplete -= (this.pieces[id].getData().length);
-				if(this.incomplete <= 0){
-					this.client.contactTracker("completed");
-					this.client.setSeeding();
-					this.incomplete = 0;
+	/**Queues a downloaded piece to be verified on a disk thread and handed to the write cache, which writes it to disk later.
+	 * @param id index of the piece whose blocks have all arrived
+	 * @param callback told whether the piece verified, unless it was not queued
+	 * @return true if the piece was queued, false if it has no data or is already complete
+	 */
+	public boolean addPiece(final int id, final PieceCallback callback){
+		//the hash job owns the buffer from here on, so clearing the piece cannot hand it out again
+		final ByteBuffer data = this.pieces[id].takeData();
+		if(data == null){
+			return false;
+		}
+		if(this.states.isComplete(id)){
+			bufferPool.release(data);
+			return false;
+		}
+		disk.submit(DiskIO.PRIORITY_HASH, (long)id * torrentinfo.piece_length, new Runnable(){
+			public void run(){
+				boolean valid = verify(id, data) && commit(id, data);
+				if(!valid){
+					bufferPool.release(data);
+					states.release(id);
 				}
-				return true;
-			} catch (IOException e) {
-				System.err.println("Error while writing to RandomAccessFile");
+				callback.pieceChecked(id, valid);
 			}
+		});
+		return true;
+	}
+	
+	/**
+	 * Marks a verified piece complete and hands its buffer to the write cache, which returns it to the pool once it is on disk
+	 * @param id index of the piece
+	 * @param data verified data of the piece
+	 * @return false if the piece was already complete
+	 */
+	private boolean commit(int id, ByteBuffer data){
+		if(this.states.isComplete(id)){
+			return false;
 		}
-		return false;
+		//the data is readable from the cache before the piece is marked complete and offered to peers
+		this.writeCache.add(id, data);
+		
+		//the thread that completes the last piece announces completion
+		if(markComplete(id)){
+			this.client.announce("completed");
+			this.client.setSeeding();
+		}
+		return true;
 	}
 	
 	/**
-	 * Closes RandomAccessFile associated with this DestFile.
+	 * Marks a verified piece complete, downloaded or found on disk: forgets its deadline and holders, wakes the
+	 * readers waiting on it and counts its bytes off incomplete
+	 * @param id index of the piece
+	 * @return true if this took incomplete to zero
 	 */
-	public void close(){
-		try {
-			this.dest.close();
-		} catch (IOException e) {
-			System.err.println("Error closing RandomAccessFile");
+	private boolean markComplete(int id){
+		//set piece as 'verified', only its own bit changes
+		if(!this.states.complete(id)){
+			return false;
+		}
+		this.picker.pieceCompleted(id);
+		CountDownLatch waiters = this.completion_waiters.remove(id);
+		if(waiters != null){
+			waiters.countDown();
 		}
+		return this.incomplete.addAndGet(-this.pieces[id].getSize()) == 0;
+	}
+	
+	/**
+	 * Blocks until a piece is verified
+	 * @param id index of the piece
+	 * @param timeout milliseconds to wait at most
+	 * @return true if the piece is verified, false if the wait timed out
+	 * @throws InterruptedException if the waiting thread is interrupted
+	 */
+	public boolean awaitPiece(int id, long timeout) throws InterruptedException{
+		if(this.states.isComplete(id)){
+			return true;
+		}
+		CountDownLatch latch = new CountDownLatch(1);
+		CountDownLatch existing = this.completion_waiters.putIfAbsent(id, latch);
+		if(existing != null){
+			latch = existing;
+		}
+		//the piece may have been verified before the latch was registered
+		if(this.states.isComplete(id)){
+			return true;
+		}
+		return latch.await(timeout, TimeUnit.MILLISECONDS) || this.states.isComplete(id);
+	}
+	
+	/**
+	 * @return true when verified pieces are waiting for the disk faster than it writes them, so no new pieces should be requested
+	 */
+	public boolean isDiskCongested(){
+		return writeCache.isCongested();
+	}
+	
+	/**
+	 * Forgets a verified piece whose data could not be written, so it is downloaded again
+	 * @param id index of the piece
+	 */
+	private void writeFailed(int id){
+		if(!this.states.reset(id)){
+			return;
+		}
+		this.readCache.invalidate(id);
+		this.incomplete.addAndGet(this.pieces[id].getSize());
+	}
+	
+	/**
+	 * Borrows a buffer from the pool for a piece that is about to be requested, only called by the peer that claimed the piece
+	 * @param id index of the piece
+	 * @return true if the piece has a buffer, false if every buffer is in use
+	 */
+	public boolean claimBuffer(int id){
+		if(this.pieces[id].hasBuffer()){
+			return true;
+		}
+		ByteBuffer buffer = bufferPool.tryAcquire();
+		if(buffer == null){
+			return false;
+		}
+		this.pieces[id].attach(buffer);
+		return true;
+	}
+	
+	/**
+	 * @return pool the piece buffers are borrowed from
+	 */
+	public PieceBufferPool getBufferPool(){
+		return bufferPool;
+	}
+	
+	/**
+	 * @return cache serving uploads, for its hit and miss counts
+	 */
+	public ReadCache getReadCache(){
+		return readCache;
+	}
+	
+	/**
+	 * Writes out every cached piece, stops the disk threads and closes the files associated with this DestFile.
+	 */
+	public void close(){
+		this.writeCache.close();
+		this.disk.shutdown();
+		this.storage.close();
+		log.info("read cache", "stats", this.readCache);
 	}
 	
 	/**
@@ -153,26 +359,48 @@ public class DestFile {
 		try {
 			md = MessageDigest.getInstance("SHA-1");
 		} catch (NoSuchAlgorithmException e) {
-			System.err.println("Error intitializing MessageDigest");
+			log.error("SHA-1 unavailable", e);
 		}
 		byte[] hash = md.digest(piece);
 		//iterate through torrentinfo piece hashes and look for a match
 		for(int i = 0; i < this.getTorrentinfo().piece_hashes.length; i++){
 			if(Arrays.equals(hash, this.getTorrentinfo().piece_hashes[i].array())){
-				System.out.println("PASSED at piece " + i);
+				log.debug("piece verified", "piece", i, "valid", true);
 				return i;
 			}
 		}
-		System.out.println("FAILED");
+		log.debug("piece verified", "piece", -1, "valid", false);
 		return -1;
 	}
 	
-	/**Alternate method for verifying, accepts a Piece object instead of the raw byte[]
-	 * @param piece - Piece to verify
-	 * @return Boolean representing success/fail of verification
+	/**
+	 * Checks data against the hash of the piece it is supposed to be, without searching the other hashes
+	 * @param id index of the piece
+	 * @param data piece data from its position to its limit, left unchanged
+	 * @return true if the data hashes to the piece's hash
 	 */
-	public int verify(Piece piece){
-		return verify(piece.getData());
+	public boolean verify(int id, ByteBuffer data){
+		MessageDigest md;
+		try {
+			md = MessageDigest.getInstance("SHA-1");
+		} catch (NoSuchAlgorithmException e) {
+			log.error("SHA-1 unavailable", e);
+			return false;
+		}
+		long start = System.nanoTime();
+		FlightEvents.PieceHash trace = FlightEvents.pieceHashStarted();
+		md.update(data.duplicate());
+		boolean valid = Arrays.equals(md.digest(), this.getTorrentinfo().piece_hashes[id].array());
+		verify_time.recordSince(start);
+		FlightEvents.pieceHashed(trace, id, valid);
+		if(valid){
+			pieces_verified.increment();
+			log.debug("piece verified", "piece", id, "valid", true);
+			return true;
+		}
+		pieces_failed.increment();
+		log.debug("piece verified", "piece", id, "valid", false);
+		return false;
 	}
 	
 	/**
@@ -189,148 +417,165 @@ public class DestFile {
 	}
 	
 	/**
-	 *  Checks through a (presumed to exist) file for valid pieces and updates mypieces accordingly.
+	 *  Checks through a (presumed to exist) file for valid pieces and updates mybitfield accordingly.
 	 * @return true if the file is already complete, false otherwise
 	 */
 	public boolean checkExistingFile(){
 		
-		boolean ret = true;
+		final AtomicBoolean ret = new AtomicBoolean(true);
 		
 		if(!initialized){
 			this.initializeRAF();
 		}
 		
+		//every piece is read and hashed on the disk threads, in file order, each with a buffer borrowed from the pool
+		final CountDownLatch checked = new CountDownLatch(torrentinfo.piece_hashes.length);
 		for(int i = 0; i < torrentinfo.piece_hashes.length; i++){
-			byte temp[] = null;
-			
-			//special case for last piece, calculate if a smaller byte array is needed
-			if(i == torrentinfo.piece_hashes.length - 1){
-				if(torrentinfo.file_length % torrentinfo.piece_length != 0){
-					temp = new byte[torrentinfo.file_length % torrentinfo.piece_length];
-				}
-			}else{
-				temp = new byte[torrentinfo.piece_length];
-			}
-			
-			try {
-				this.dest.seek(i * torrentinfo.piece_length);
-				this.dest.read(temp);
-				if(this.verify(temp) == i){
-					mypieces[i] = 2;
-					this.incomplete -= (this.pieces[i].getData().length);
-				}else{
-					ret = false;
-					System.out.println("Piece " + i + " is INvalid.");
-					mypieces[i] = 0;
+			final int id = i;
+			disk.submit(DiskIO.PRIORITY_HASH, (long)i * torrentinfo.piece_length, new Runnable(){
+				public void run(){
+					ByteBuffer temp = bufferPool.tryAcquire();
+					//every pool buffer is in flight during a recheck, use a buffer of our own that is not given back
+					final boolean pooled = temp != null;
+					if(!pooled){
+						temp = ByteBuffer.allocate(torrentinfo.piece_length);
+					}
+					temp.limit(pieces[id].getSize());
+					try {
+						//pieces verified since the last flush are only in the write cache
+						if(!writeCache.read(id, 0, temp)){
+							storage.read(id, 0, temp);
+						}
+						temp.flip();
+						if(!pieceChecked(id, verify(id, temp))){
+							ret.set(false);
+							log.debug("existing piece invalid", "piece", id);
+						}
+					} catch (IOException e) {
+						ret.set(false);
+						log.error("could not read existing piece", e, "piece", id);
+					} finally {
+						if(pooled){
+							bufferPool.release(temp);
+						}
+						checked.countDown();
+					}
 				}
-			} catch (IOException e) {
-				e.printStackTrace();
-			}
+			});
+		}
+		try {
+			checked.await();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return false;
 		}
 		
-		return ret;
+		return ret.get();
 		
 	}
 	
 	/**
-	 *  Refreshes bitfield based on the current status of mypieces.
+	 * Records the outcome of checking a piece already on disk
+	 * @param id index of the piece
+	 * @param valid true if the data on disk matched the hash
+	 * @return valid
 	 */
-	public void renewBitfield(){
-		
-		for(int i = 0; i < this.mypieces.length; i++){
-			
-			int mod = i%8;
-			int currentbyte = (i-(mod)) / 8;
-			
-			if(this.mypieces[i] == 2){
-				this.mybitfield[currentbyte] |= (1 << 7-mod);
-			}else{
-				this.mybitfield[currentbyte] &= ~(1 << 7-mod);
-			}
-			
+	private boolean pieceChecked(int id, boolean valid){
+		if(valid){
+			markComplete(id);
+		}else if(states.reset(id)){
+			//a recheck found a piece that was complete damaged on disk
+			log.warn("piece no longer valid", "piece", id);
+			this.readCache.invalidate(id);
+			this.incomplete.addAndGet(this.pieces[id].getSize());
 		}
-		
-		myRarityMachine.setMybitfield(this.mypieces);
-		
-		printBitfield();
+		return valid;
 	}
+	
 	/**
-	 * Initializes all bits to 0 in local bitfield
+	 * Hashes every piece again, completing those that match and forgetting those that no longer do.
+	 * Pieces being downloaded are not expected, the client pauses first
+	 * @return true if every piece is complete afterwards
 	 */
-	public void initializeBitfield(){
-		
-		for(int i = 0; i < mypieces.length; i++){
-			int mod = i%8;
-			int currentbyte = (i-(mod)) / 8;
-			mybitfield[currentbyte] &= ~(1 << 7-mod);
-			mypieces[i] = 0;
-		}
+	public boolean recheck(){
+		return checkExistingFile();
 	}
 	
 	/**
-	 * @return Bitfield of this DestFile
+	 * @return Bitfield of the verified pieces of this DestFile
 	 */
-	public byte[] getMybitfield(){
-		return mybitfield;
+	public Bitfield getMybitfield(){
+		return states.getComplete();
 	}
 	
 	/**
-	 * Manually set bit in bitfield
-	 * @param i Bit to set
-	 * @param bool Value to set
+	 * @return Bitfield of the pieces currently being downloaded
 	 */
-	public void manualMod(int i, boolean bool){
-		
-		int mod = i%8;
-		int currentbyte = (i-(mod)) / 8;
-		if(bool){
-			mybitfield[currentbyte] |= (1 << 7-mod);
-		}else{
-			mybitfield[currentbyte] &= ~(1 << 7-mod);
-		}
+	public Bitfield getInProgress(){
+		return states.getClaimed();
 	}
 	
 	/**
-	 * @param array - Bitfield to modify
-	 * @param i - Position (in bytes) to modify
-	 * @param bool
-	 * @return modified byte array
+	 * @return lock-free table of the state of every piece
 	 */
-	public byte[] manualMod(byte[] array, int i, boolean bool){
-		
-		int mod = i%8;
-		int currentbyte = (i-(mod)) / 8;
-		if(bool){
-			array[currentbyte] |= (1 << 7-mod);
-		}else{
-			array[currentbyte] &= ~(1 << 7-mod);
-		}
-		
-		return array;
+	public PieceStates getPieceStates(){
+		return states;
 	}
 	
-	/**Returns first piece that we don't have that a particular peer does have
+	/**
+	 * @return bytes of the torrent not yet downloaded and verified
+	 */
+	public long getIncomplete(){
+		return incomplete.get();
+	}
+	
+	/**Returns first piece that we don't have that a particular peer does have, without claiming it
 	 * @param input Other bitfield
-	 * @return First bit where input is 1 and mybitfield is 0 - aka first piece we are interested in downloading
-	 */
-	public synchronized int firstNewPiece(byte[] input){
-	
-		for(int i = 0; i < mypieces.length; i++){
-			
-			int mod = i%8;
-			int currentbyte = (i-(mod)) / 8;
-			
-			if((mybitfield[currentbyte] >> (7-mod) & 1) != 1){
-				if((input[currentbyte] >> (7-mod) & 1) == 1){
-					if(mypieces[i] == 0){
-						return i;
-					}
+	 * @return First piece the peer has that is neither complete nor claimed - aka first piece we are interested in downloading
+	 */
+	public int firstNewPiece(Bitfield input){
+		return picker.firstWanted(input);
+	}
+	
+	/**Changes the priority of every piece of a file. A piece shared with another file gets the higher of the two priorities
+	 * @param file index of the file in the torrent
+	 * @param priority one of the PiecePicker priorities
+	 */
+	public synchronized void setFilePriority(int file, int priority){
+		TorrentInfo.FileInfo[] files = this.getTorrentinfo().files;
+		int piece_length = this.getTorrentinfo().piece_length;
+		if(priority < PiecePicker.PRIORITY_SKIP || priority > PiecePicker.PRIORITY_HIGH){
+			throw new IllegalArgumentException("priority " + priority);
+		}
+		file_priorities[file] = priority;
+		if(files[file].length == 0){
+			return;
+		}
+		int first = (int)(files[file].offset / piece_length);
+		int last = (int)((files[file].offset + files[file].length - 1) / piece_length);
+		for(int i = first; i <= last; i++){
+			long start = (long)i * piece_length;
+			long end = start + pieces[i].getSize();
+			int piece_priority = PiecePicker.PRIORITY_SKIP;
+			for(int f = 0; f < files.length; f++){
+				if(files[f].length > 0 && files[f].offset < end && files[f].offset + files[f].length > start){
+					piece_priority = Math.max(piece_priority, file_priorities[f]);
 				}
 			}
+			picker.setPriority(i, piece_priority);
 		}
-		return -1;
 	}
 	
+	/**
+	 * @param file index of the file in the torrent
+	 * @return priority given to the file
+	 */
+	public int getFilePriority(int file){
+		return file_priorities[file];
+	}
+
+
+	
 	/**Returns a chunk of data from a piece, presumably for uploading
 	 * 
 	 * @param piece - which piece to select
@@ -341,52 +586,58 @@ public class DestFile {
 	public byte[] getPieceData(int piece, int start, int amount){
 		byte[] ret  = new byte[amount];
 		try {
-			dest.seek(piece*torrentinfo.piece_length + start);
-			dest.read(ret);
+			//pieces still waiting in the write cache are not on disk yet, the rest go through the read cache
+			if(!writeCache.read(piece, start, ByteBuffer.wrap(ret))){
+				readCache.read(piece, start, ByteBuffer.wrap(ret));
+			}
 			return ret;
 		} catch (IOException e) {
-			// TODO Auto-generated catch block
-			e.printStackTrace();
+			log.error("could not read block", e, "piece", piece, "begin", start, "length", amount);
 		}
 		return null;
 	}
 	
-	private void printBitfield(){
-		System.out.print("Bitfield:");
-		for(int i = 0; i<expectedbytes; i++){
-			System.out.print(" " + String.format("%8s", Integer.toBinaryString(mybitfield[i] & 0xFF)).replace(' ', '0'));
-		}
-		System.out.print("\n");
-	}
-	
-	/**
-	 * @param bitfield to print
-	 * @param exp expected bytes(length of bitfield)
+	/**Reads a block on a disk thread, for uploading
+	 * 
+	 * @param piece - which piece to select
+	 * @param start - the offset within the piece to begin the data chunk
+	 * @param amount - in bytes, how much data to read
+	 * @param callback - given the data once it is read, never called if the read fails
 	 */
-	public static void printBitfield(byte[] bitfield, int exp){
-		System.out.print("Bitfield:");
-		for(int i = 0; i<exp; i++){
-			System.out.print(" " + String.format("%8s", Integer.toBinaryString(bitfield[i] & 0xFF)).replace(' ', '0'));
-		}
-		System.out.print("\n");
+	public void readPieceData(final int piece, final int start, final int amount, final ReadCallback callback){
+		disk.submit(DiskIO.PRIORITY_READ, (long)piece * torrentinfo.piece_length + start, new Runnable(){
+			public void run(){
+				byte[] block = getPieceData(piece, start, amount);
+				if(block != null){
+					callback.readCompleted(piece, start, block);
+				}
+			}
+		});
 	}
 	
-	/**Marks a piece as 'in progress' by setting its flag to 1
-	 * 
-	 * @param pos - which piece to mark 'in progress'
+	/**
+	 * @param id index of the piece
+	 * @return true if the piece is verified and can be uploaded
 	 */
-	public synchronized void markInProgress(int pos){
-		mypieces[pos] = 1;
+	public boolean hasPiece(int id){
+		return states.isComplete(id);
 	}
 	
-	/**Clears a piece's 'in progress' status by setting its flag to 0
+	/**Clears a piece's 'in progress' status so another peer can claim it, unless another peer is still downloading it
 	 * 
-	 * @param pos - which piece to mark 'in progress'
+	 * @param pos - which piece to release
+	 * @param holder - the peer that stopped downloading it
 	 */
-	public synchronized void clearProgress(int pos){
-		if(mypieces[pos] != 2){
-			mypieces[pos] = 0;
+	public void clearProgress(int pos, Object holder){
+		if(!picker.release(pos, holder)){
+			return;		//a duplicate of the piece still fills the buffer, or the peer no longer held it
+		}
+		ByteBuffer buffer = pieces[pos].detach();
+		if(buffer == null){
+			return;		//the piece is being hashed, the hash job releases or completes it
 		}
+		bufferPool.release(buffer);
+		states.release(pos);
 	}
 		
 	//various getters and setters	
@@ -429,4 +680,33 @@ public class DestFile {
 	public void setClient(RUBTClient client) {
 		this.client = client;
 	}
+	
+	/**
+	 * Keeps the piece states in step with the write cache
+	 */
+	private static class FlushListener implements WriteCache.Listener {
+		
+		private final DestFile destfile;
+		
+		FlushListener(DestFile destfile){
+			this.destfile = destfile;
+		}
+		
+		/**
+		 * Room was made in the cache, peers held back while the disk was behind may request again
+		 */
+		public void flushed(int piece){
+			if(destfile.client != null){
+				destfile.client.feedStarvedPeers();
+			}
+		}
+		
+		/**
+		 * The piece never reached the disk, it has to be downloaded again
+		 */
+		public void writeFailed(int piece, IOException e){
+			log.error("could not write piece", e, "piece", piece);
+			destfile.writeFailed(piece);
+		}
+	}
 }
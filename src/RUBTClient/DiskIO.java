@@ -0,0 +1,133 @@
+package RUBTClient;
+
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Thread pool that runs every disk job of a torrent, so threads handling the network never wait on the
+ * disk. Jobs are ordered by priority: writes first, then hash checks, then reads for uploads. Priority
+ * is a head start rather than an absolute rank: each step down delays a job as if it had been queued
+ * AGING later, so a read queued long enough ago runs before a write queued just now and no job waits
+ * forever. Jobs due within the same short window run by priority, then in order of their offset in
+ * the torrent, so the disk sweeps across the file instead of seeking back and forth.
+ */
+public class DiskIO {
+
+	private static final Log log = Log.get(DiskIO.class);
+
+	/** Writing verified pieces, which frees their buffers */
+	public static final int PRIORITY_WRITE = 0;
+	/** Hashing a downloaded or existing piece */
+	public static final int PRIORITY_HASH = 1;
+	/** Reading blocks requested by peers */
+	public static final int PRIORITY_READ = 2;
+
+	//jobs due within one window are sorted by priority, then offset
+	private static final long WINDOW = TimeUnit.MILLISECONDS.toNanos(50);
+	//how much later each step down in priority counts a job as queued
+	private static final long AGING = TimeUnit.MILLISECONDS.toNanos(Long.getLong("rubt.diskAging", 250L));
+	private static final String[] OPERATIONS = {"write", "hash", "read"};
+
+	private final ThreadPoolExecutor 	pool;
+	private final AtomicLong 			sequence = new AtomicLong();
+	private final Metrics.Histogram[] 	waits = new Metrics.Histogram[OPERATIONS.length];	//time queued, by priority
+	private final Metrics.Histogram[] 	runs = new Metrics.Histogram[OPERATIONS.length];	//time running, by priority
+
+	/**
+	 * @param name prefix of the thread names
+	 * @param threads number of threads doing disk work
+	 * @param metrics where the time jobs wait and run is recorded
+	 */
+	public DiskIO(final String name, int threads, Metrics metrics){
+		for(int i = 0; i < OPERATIONS.length; i++){
+			waits[i] = metrics.timer("rubt_disk_wait_seconds{op=\"" + OPERATIONS[i] + "\"}", "Time disk jobs wait for a disk thread");
+			runs[i] = metrics.timer("rubt_disk_run_seconds{op=\"" + OPERATIONS[i] + "\"}", "Time disk jobs take to run");
+		}
+		this.pool = new ThreadPoolExecutor(threads, threads, 0L, TimeUnit.MILLISECONDS,
+				new PriorityBlockingQueue<Runnable>(), new ThreadFactory(){
+					private final AtomicInteger count = new AtomicInteger();
+					public Thread newThread(Runnable r){
+						Thread thread = new Thread(r, name + "-" + count.incrementAndGet());
+						thread.setDaemon(true);
+						return thread;
+					}
+				});
+	}
+
+	/**
+	 * Queues a job
+	 * @param priority one of the PRIORITY constants
+	 * @param offset offset in the torrent the job touches first
+	 * @param job work to run on a disk thread
+	 */
+	public void submit(int priority, long offset, Runnable job){
+		long now = System.nanoTime();
+		pool.execute(new Job(priority, now, (now + priority * AGING) / WINDOW, offset, sequence.getAndIncrement(), job));
+	}
+
+	/**
+	 * @return number of jobs waiting for a disk thread
+	 */
+	public int getQueued(){
+		return pool.getQueue().size();
+	}
+
+	/**
+	 * Runs the jobs already queued and stops the threads
+	 */
+	public void shutdown(){
+		pool.shutdown();
+		try {
+			pool.awaitTermination(30, TimeUnit.SECONDS);
+		}catch (InterruptedException e){
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	private class Job implements Runnable, Comparable<Job> {
+
+		private final int 		priority;
+		private final long 		queued;		//System.nanoTime() when submitted
+		private final long 		window;		//window the job is due in, its priority counted as a delay
+		private final long 		offset;
+		private final long 		sequence;
+		private final Runnable 	job;
+
+		Job(int priority, long queued, long window, long offset, long sequence, Runnable job){
+			this.priority = priority;
+			this.queued = queued;
+			this.window = window;
+			this.offset = offset;
+			this.sequence = sequence;
+			this.job = job;
+		}
+
+		public void run(){
+			long start = System.nanoTime();
+			waits[priority].record(start - queued);
+			try {
+				job.run();
+			}catch (RuntimeException e){
+				log.error("disk job failed", e);
+			}
+			runs[priority].recordSince(start);
+		}
+
+		public int compareTo(Job other){
+			if(window != other.window){
+				return window < other.window ? -1 : 1;
+			}
+			if(priority != other.priority){
+				return priority < other.priority ? -1 : 1;
+			}
+			if(offset != other.offset){
+				return offset < other.offset ? -1 : 1;
+			}
+			return sequence < other.sequence ? -1 : (sequence == other.sequence ? 0 : 1);
+		}
+	}
+}
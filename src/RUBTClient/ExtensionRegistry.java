@@ -0,0 +1,208 @@
+package RUBTClient;
+
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import edu.rutgers.cs.cs352.bt.exceptions.BencodingException;
+import edu.rutgers.cs.cs352.bt.util.Bencoder2;
+
+/**
+ * Extensions of the extension protocol (BEP 10), known by name and carried in messages with id 20.
+ * Each side gives every extension it supports a one byte id in its extended handshake, and messages
+ * are sent with the id the receiver chose. Here an extension's id is its position in the registry,
+ * starting at 1, since 0 is the extended handshake.
+ * <p>
+ * Extensions are registered before the client connects to peers. Messages are dispatched from the
+ * client's worker threads, so an extension may be called for several peers at once.
+ */
+public class ExtensionRegistry {
+
+	/**
+	 * An extension of the protocol, such as peer exchange
+	 */
+	public interface Extension {
+
+		/**
+		 * @return name of the extension in the extended handshake, e.g. ut_pex
+		 */
+		String getName();
+
+		/**
+		 * Called once a peer's extended handshake names the extension
+		 * @param peer Peer that supports the extension
+		 */
+		void peerSupports(Peer peer);
+
+		/**
+		 * @param peer Peer that sent the message
+		 * @param payload the message after its extension id
+		 * @throws BencodingException if the payload is malformed, the peer is then disconnected
+		 */
+		void messageReceived(Peer peer, ByteBuffer payload) throws BencodingException;
+	}
+
+	private static final Log log = Log.get(ExtensionRegistry.class);
+
+	private static final String VERSION = "RUBT 1.0";
+
+	private final RUBTClient 		client;
+	private final List<Extension> 	extensions = new CopyOnWriteArrayList<Extension>();	//id 1 first
+
+	/**
+	 * @param client client whose listening port is sent in the extended handshake
+	 */
+	public ExtensionRegistry(RUBTClient client){
+		this.client = client;
+	}
+
+	/**
+	 * @param extension extension to offer to peers
+	 * @return the id peers send its messages with
+	 */
+	public synchronized int register(Extension extension){
+		if(get(extension.getName()) != null){
+			throw new IllegalArgumentException("extension " + extension.getName() + " is already registered");
+		}
+		if(extensions.size() == 255){
+			throw new IllegalArgumentException("no extension id left for " + extension.getName());
+		}
+		extensions.add(extension);
+		return extensions.size();
+	}
+
+	/**
+	 * @param name name of the extension
+	 * @return the registered extension, or null
+	 */
+	public Extension get(String name){
+		for(Extension extension: extensions){
+			if(extension.getName().equals(name)){
+				return extension;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Sends our extended handshake: the id of every registered extension, our listening port and our version
+	 * @param peer Peer whose handshake offered the extension protocol
+	 */
+	public void sendHandshake(Peer peer){
+		HashMap<ByteBuffer, Object> ids = new HashMap<ByteBuffer, Object>();
+		for(int i = 0; i < extensions.size(); i++){
+			ids.put(key(extensions.get(i).getName()), i + 1);
+		}
+		HashMap<ByteBuffer, Object> handshake = new HashMap<ByteBuffer, Object>();
+		handshake.put(key("m"), ids);
+		handshake.put(key("p"), client.getPort());
+		handshake.put(key("v"), key(VERSION));
+		try {
+			peer.sendMessage(new Message().extended(0, Bencoder2.encode(handshake)));
+		}catch (BencodingException e){
+			log.error("could not encode extended handshake", e);
+		}
+	}
+
+	/**
+	 * Sends a message of an extension, if the peer supports it
+	 * @param peer Peer to send the message to
+	 * @param name name of the extension
+	 * @param payload bencoded dictionary, followed by any data of the extension
+	 * @return false if the peer did not name the extension in its extended handshake
+	 */
+	public boolean send(Peer peer, String name, byte[] payload){
+		int id = peer.getExtensionId(name);
+		if(id == 0){
+			return false;
+		}
+		peer.sendMessage(new Message().extended(id, payload));
+		return true;
+	}
+
+	/**
+	 * Hands an extended message to the extension registered under its id
+	 * @param peer Peer that sent the message
+	 * @param message the message without its length prefix, id 20 first
+	 * @return false if the message is malformed and the peer should be disconnected
+	 */
+	public boolean messageReceived(Peer peer, byte[] message){
+		if(message.length < 2){
+			return false;
+		}
+		int id = message[1] & 0xFF;
+		ByteBuffer payload = ByteBuffer.wrap(message, 2, message.length - 2).slice();
+		try {
+			if(id == 0){
+				handshakeReceived(peer, payload);
+			}else if(id <= extensions.size()){
+				extensions.get(id - 1).messageReceived(peer, payload);
+			}else if(log.isEnabled(Log.DEBUG)){
+				log.debug("unknown extension id", "peer", peer, "id", id);
+			}
+			return true;
+		}catch (BencodingException e){
+			log.debug("malformed extended message", "peer", peer, "id", id, "error", e.getMessage());
+		}catch (RuntimeException e){
+			log.debug("malformed extended message", "peer", peer, "id", id, "error", e);	//a value of the wrong type
+		}
+		return false;
+	}
+
+	@SuppressWarnings("rawtypes")
+	private void handshakeReceived(Peer peer, ByteBuffer payload) throws BencodingException{
+		Map handshake = (Map)Bencoder2.decode(bytes(payload));
+		Map<String, Integer> ids = new HashMap<String, Integer>();
+		Object m = handshake.get(key("m"));
+		if(m instanceof Map){
+			for(Object entry: ((Map)m).entrySet()){
+				Map.Entry id = (Map.Entry)entry;
+				int value = ((Number)id.getValue()).intValue();
+				if(value > 0 && value <= 255){
+					ids.put(Response.asString((ByteBuffer)id.getKey()), value);		//0 disables an extension
+				}
+			}
+		}
+		Object port = handshake.get(key("p"));
+		if(port instanceof Number && peer.getPort() == 0){
+			peer.setPort(((Number)port).intValue());		//peers that connected to us listen elsewhere
+		}
+		peer.setExtensionIds(Collections.unmodifiableMap(ids));
+		if(log.isEnabled(Log.DEBUG)){
+			Object version = handshake.get(key("v"));
+			log.debug("extended handshake", "peer", peer, "extensions", ids.keySet(),
+					"version", version instanceof ByteBuffer ? Response.asString((ByteBuffer)version) : null);
+		}
+		for(Extension extension: extensions){
+			if(ids.containsKey(extension.getName())){
+				extension.peerSupports(peer);
+			}
+		}
+	}
+
+	/**
+	 * @param name dictionary key or string value
+	 * @return the string as a bencoding byte string
+	 */
+	static ByteBuffer key(String name){
+		try {
+			return ByteBuffer.wrap(name.getBytes("UTF-8"));
+		}catch (UnsupportedEncodingException e){
+			throw new IllegalStateException("UTF-8 is required of every Java platform", e);
+		}
+	}
+
+	/**
+	 * @param buffer a payload, from its position to its limit
+	 * @return a copy of the payload, for Bencoder2 which reads whole arrays
+	 */
+	static byte[] bytes(ByteBuffer buffer){
+		byte[] bytes = new byte[buffer.remaining()];
+		buffer.duplicate().get(bytes);
+		return bytes;
+	}
+}
@@ -0,0 +1,263 @@
+package RUBTClient;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * Flight Recorder events of the client, recorded when a recording is running, e.g. with
+ * -XX:StartFlightRecording:filename=rubt.jfr. Every method returns after checking that its event
+ * is enabled, so without a recording they cost next to nothing. Events are grouped under RUBT in
+ * JDK Mission Control.
+ */
+public class FlightEvents {
+
+	@Name("RUBT.PeerConnected")
+	@Label("Peer Connected")
+	@Category({"RUBT", "Peers"})
+	@Description("A peer completed the handshake and was added to the client")
+	static class PeerConnected extends Event {
+		@Label("Peer")
+		String peer;
+		@Label("Incoming")
+		boolean incoming;
+	}
+
+	@Name("RUBT.PeerDisconnected")
+	@Label("Peer Disconnected")
+	@Category({"RUBT", "Peers"})
+	@Description("The connection to a peer was closed")
+	static class PeerDisconnected extends Event {
+		@Label("Peer")
+		String peer;
+		@Label("Blocks Received")
+		long blocks;
+	}
+
+	@Name("RUBT.Choke")
+	@Label("Choke")
+	@Category({"RUBT", "Peers"})
+	@Description("A peer choked or unchoked us, or we choked or unchoked a peer")
+	static class Choke extends Event {
+		@Label("Peer")
+		String peer;
+		@Label("By Us")
+		@Description("True if we changed the choke state of the peer, false if the peer changed ours")
+		boolean by_us;
+		@Label("Choked")
+		boolean choked;
+	}
+
+	@Name("RUBT.PieceClaimed")
+	@Label("Piece Claimed")
+	@Category({"RUBT", "Pieces"})
+	@Description("A piece was picked to be downloaded from a peer")
+	static class PieceClaimed extends Event {
+		@Label("Piece")
+		int piece;
+		@Label("Peer")
+		String peer;
+	}
+
+	@Name("RUBT.PieceDownloaded")
+	@Label("Piece Downloaded")
+	@Category({"RUBT", "Pieces"})
+	@Description("Every block of a piece arrived and the piece was checked against its hash")
+	static class PieceDownloaded extends Event {
+		@Label("Piece")
+		int piece;
+		@Label("Peer")
+		String peer;
+		@Label("Valid")
+		boolean valid;
+	}
+
+	@Name("RUBT.PieceHash")
+	@Label("Piece Hash")
+	@Category({"RUBT", "Disk"})
+	@Description("SHA-1 check of a downloaded piece, or of a piece found on disk at startup")
+	static class PieceHash extends Event {
+		@Label("Piece")
+		int piece;
+		@Label("Valid")
+		boolean valid;
+	}
+
+	@Name("RUBT.DiskWrite")
+	@Label("Disk Write")
+	@Category({"RUBT", "Disk"})
+	@Description("A run of adjacent verified pieces written from the write cache")
+	static class DiskWrite extends Event {
+		@Label("First Piece")
+		int first_piece;
+		@Label("Pieces")
+		int pieces;
+		@Label("Bytes")
+		@DataAmount
+		long bytes;
+		@Label("Failed")
+		boolean failed;
+	}
+
+	@Name("RUBT.TrackerAnnounce")
+	@Label("Tracker Announce")
+	@Category({"RUBT", "Tracker"})
+	@Description("An announce to one tracker, retries included")
+	static class TrackerAnnounce extends Event {
+		@Label("Tracker")
+		String tracker;
+		@Label("Event")
+		String event;
+		@Label("Peers")
+		int peers;
+		@Label("Succeeded")
+		boolean succeeded;
+	}
+
+	/**
+	 * @param peer peer that was added
+	 * @param incoming true if the peer connected to us
+	 */
+	static void peerConnected(Peer peer, boolean incoming){
+		PeerConnected event = new PeerConnected();
+		if(event.isEnabled()){
+			event.peer = peer.toString();
+			event.incoming = incoming;
+			event.commit();
+		}
+	}
+
+	/**
+	 * @param peer peer whose connection was closed
+	 */
+	static void peerDisconnected(Peer peer){
+		PeerDisconnected event = new PeerDisconnected();
+		if(event.isEnabled()){
+			event.peer = peer.toString();
+			event.blocks = peer.getRtt().getCount();
+			event.commit();
+		}
+	}
+
+	/**
+	 * @param peer the other side of the choke
+	 * @param by_us true if we choked or unchoked the peer
+	 * @param choked the new state
+	 */
+	static void choke(Peer peer, boolean by_us, boolean choked){
+		Choke event = new Choke();
+		if(event.isEnabled()){
+			event.peer = peer.toString();
+			event.by_us = by_us;
+			event.choked = choked;
+			event.commit();
+		}
+	}
+
+	/**
+	 * @param piece index of the piece
+	 * @param peer peer it is requested from
+	 */
+	static void pieceClaimed(int piece, Peer peer){
+		PieceClaimed event = new PieceClaimed();
+		if(event.isEnabled()){
+			event.piece = piece;
+			event.peer = peer.toString();
+			event.commit();
+		}
+	}
+
+	/**
+	 * @param piece index of the piece
+	 * @param peer peer that sent its last block
+	 * @param valid true if the piece matched its hash
+	 */
+	static void pieceDownloaded(int piece, Peer peer, boolean valid){
+		PieceDownloaded event = new PieceDownloaded();
+		if(event.isEnabled()){
+			event.piece = piece;
+			event.peer = peer.toString();
+			event.valid = valid;
+			event.commit();
+		}
+	}
+
+	/**
+	 * @return event timing a piece hash, to be ended with {@link #pieceHashed}
+	 */
+	static PieceHash pieceHashStarted(){
+		PieceHash event = new PieceHash();
+		event.begin();
+		return event;
+	}
+
+	/**
+	 * @param event event from {@link #pieceHashStarted}
+	 * @param piece index of the piece
+	 * @param valid true if the piece matched its hash
+	 */
+	static void pieceHashed(PieceHash event, int piece, boolean valid){
+		event.end();
+		if(event.shouldCommit()){
+			event.piece = piece;
+			event.valid = valid;
+			event.commit();
+		}
+	}
+
+	/**
+	 * @return event timing a disk write, to be ended with {@link #diskWritten}
+	 */
+	static DiskWrite diskWriteStarted(){
+		DiskWrite event = new DiskWrite();
+		event.begin();
+		return event;
+	}
+
+	/**
+	 * @param event event from {@link #diskWriteStarted}
+	 * @param first_piece index of the first piece written
+	 * @param pieces number of pieces written
+	 * @param bytes bytes written
+	 * @param failed true if the write failed
+	 */
+	static void diskWritten(DiskWrite event, int first_piece, int pieces, long bytes, boolean failed){
+		event.end();
+		if(event.shouldCommit()){
+			event.first_piece = first_piece;
+			event.pieces = pieces;
+			event.bytes = bytes;
+			event.failed = failed;
+			event.commit();
+		}
+	}
+
+	/**
+	 * @return event timing an announce, to be ended with {@link #announced}
+	 */
+	static TrackerAnnounce announceStarted(){
+		TrackerAnnounce event = new TrackerAnnounce();
+		event.begin();
+		return event;
+	}
+
+	/**
+	 * @param event event from {@link #announceStarted}
+	 * @param tracker announce url of the tracker
+	 * @param announce_event started, completed, stopped, or null for a regular announce
+	 * @param response answer of the tracker, null if it failed
+	 */
+	static void announced(TrackerAnnounce event, String tracker, String announce_event, Response response){
+		event.end();
+		if(event.shouldCommit()){
+			event.tracker = tracker;
+			event.event = announce_event;
+			event.succeeded = response != null;
+			event.peers = response == null ? 0 : response.getPeers().size();
+			event.commit();
+		}
+	}
+}
@@ -0,0 +1,258 @@
+package RUBTClient;
+
+import java.io.PrintStream;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Leveled logging written by a background thread. A call below the level set with -Drubt.logLevel
+ * returns after one comparison. An enabled call only queues the event name, its fields and the throwable;
+ * the line is formatted and printed on the writer thread, so a thread on a hot path never waits on the
+ * console. When the queue is full records are dropped and counted rather than blocking the caller.
+ * <p>
+ * Every record is an event name followed by key value pairs:
+ * <pre>
+ * 12:00:01.250 DEBUG [diskIO-1] DestFile: piece verified piece=12 valid=true
+ * </pre>
+ * Errors and warnings go to standard error, everything else to standard output.
+ */
+public class Log {
+
+	/** Failures that stop something from working */
+	public static final int ERROR = 0;
+	/** Unexpected conditions the client recovers from */
+	public static final int WARN = 1;
+	/** Progress worth seeing on the console */
+	public static final int INFO = 2;
+	/** Per piece and per message detail */
+	public static final int DEBUG = 3;
+	/** Per block detail */
+	public static final int TRACE = 4;
+
+	private static final String[] LEVEL_NAMES = {"ERROR", "WARN ", "INFO ", "DEBUG", "TRACE"};
+
+	private static volatile int level = parseLevel(System.getProperty("rubt.logLevel", "info"));
+	private static final BlockingQueue<Record> queue = new ArrayBlockingQueue<Record>(Integer.getInteger("rubt.logQueue", 8192));
+	private static final AtomicLong dropped = new AtomicLong();
+	private static final AtomicLong accepted = new AtomicLong();	//records queued, counted before they are offered
+	private static final AtomicLong written = new AtomicLong();	//records the writer has printed
+	private static final Thread writer;
+
+	static {
+		writer = new Thread(new Writer(), "logWriter");
+		writer.setDaemon(true);
+		writer.start();
+		Runtime.getRuntime().addShutdownHook(new Thread(){
+			public void run(){
+				flush();
+			}
+		});
+	}
+
+	private final String name;
+
+	private Log(String name){
+		this.name = name;
+	}
+
+	/**
+	 * @param owner class whose simple name tags every record
+	 * @return a log for the class
+	 */
+	public static Log get(Class<?> owner){
+		return new Log(owner.getSimpleName());
+	}
+
+	/**
+	 * @param level the most detailed level written
+	 */
+	public static void setLevel(int level){
+		Log.level = level;
+	}
+
+	/**
+	 * @param name error, warn, info, debug or trace
+	 * @return the level, or INFO for an unknown name
+	 */
+	public static int parseLevel(String name){
+		for(int i = 0; i < LEVEL_NAMES.length; i++){
+			if(LEVEL_NAMES[i].trim().equalsIgnoreCase(name)){
+				return i;
+			}
+		}
+		return INFO;
+	}
+
+	/**
+	 * @param level level to check
+	 * @return true if records of that level are written, to skip building costly fields
+	 */
+	public boolean isEnabled(int level){
+		return level <= Log.level;
+	}
+
+	/**
+	 * @param event what happened
+	 * @param fields alternating keys and values
+	 */
+	public void error(String event, Object... fields){
+		log(ERROR, event, null, fields);
+	}
+
+	/**
+	 * @param event what happened
+	 * @param thrown cause, printed with its stack trace
+	 * @param fields alternating keys and values
+	 */
+	public void error(String event, Throwable thrown, Object... fields){
+		log(ERROR, event, thrown, fields);
+	}
+
+	/**
+	 * @param event what happened
+	 * @param fields alternating keys and values
+	 */
+	public void warn(String event, Object... fields){
+		log(WARN, event, null, fields);
+	}
+
+	/**
+	 * @param event what happened
+	 * @param thrown cause, printed with its stack trace
+	 * @param fields alternating keys and values
+	 */
+	public void warn(String event, Throwable thrown, Object... fields){
+		log(WARN, event, thrown, fields);
+	}
+
+	/**
+	 * @param event what happened
+	 * @param fields alternating keys and values
+	 */
+	public void info(String event, Object... fields){
+		log(INFO, event, null, fields);
+	}
+
+	/**
+	 * @param event what happened
+	 * @param fields alternating keys and values
+	 */
+	public void debug(String event, Object... fields){
+		log(DEBUG, event, null, fields);
+	}
+
+	/**
+	 * @param event what happened
+	 * @param fields alternating keys and values
+	 */
+	public void trace(String event, Object... fields){
+		log(TRACE, event, null, fields);
+	}
+
+	private void log(int level, String event, Throwable thrown, Object[] fields){
+		if(level > Log.level){
+			return;
+		}
+		Record record = new Record(System.currentTimeMillis(), level, Thread.currentThread().getName(), name, event, thrown, fields);
+		accepted.incrementAndGet();
+		if(!queue.offer(record)){
+			accepted.decrementAndGet();
+			dropped.incrementAndGet();
+		}
+	}
+
+	/**
+	 * Writes every record queued so far, waiting at most a second. Waits for the records to be printed, not
+	 * just taken off the queue, as the writer takes them in batches
+	 */
+	public static void flush(){
+		long deadline = System.currentTimeMillis() + 1000;
+		long target = accepted.get();
+		while(written.get() < target && System.currentTimeMillis() < deadline){
+			try {
+				Thread.sleep(5);
+			}catch (InterruptedException e){
+				Thread.currentThread().interrupt();
+				return;
+			}
+		}
+	}
+
+	/**
+	 * @return records dropped because the queue was full
+	 */
+	public static long getDropped(){
+		return dropped.get();
+	}
+
+	private static class Record {
+		final long 		time;
+		final int 		level;
+		final String 	thread;
+		final String 	logger;
+		final String 	event;
+		final Throwable thrown;
+		final Object[] 	fields;
+
+		Record(long time, int level, String thread, String logger, String event, Throwable thrown, Object[] fields){
+			this.time = time;
+			this.level = level;
+			this.thread = thread;
+			this.logger = logger;
+			this.event = event;
+			this.thrown = thrown;
+			this.fields = fields;
+		}
+	}
+
+	private static class Writer implements Runnable {
+
+		private final SimpleDateFormat 	clock = new SimpleDateFormat("HH:mm:ss.SSS");
+		private final StringBuilder 	line = new StringBuilder(256);
+		private final List<Record> 		batch = new ArrayList<Record>();
+		private long 					reported_drops;
+
+		public void run(){
+			while(true){
+				try {
+					batch.add(queue.poll(1, TimeUnit.SECONDS));
+				}catch (InterruptedException e){
+					return;
+				}
+				queue.drainTo(batch);
+				for(Record record: batch){
+					if(record != null){
+						write(record);
+						written.incrementAndGet();
+					}
+				}
+				batch.clear();
+				long drops = dropped.get();
+				if(drops != reported_drops){
+					System.err.println(clock.format(new Date()) + " WARN  [logWriter] Log: records dropped count=" + (drops - reported_drops));
+					reported_drops = drops;
+				}
+			}
+		}
+
+		private void write(Record record){
+			line.setLength(0);
+			line.append(clock.format(new Date(record.time))).append(' ').append(LEVEL_NAMES[record.level]);
+			line.append(" [").append(record.thread).append("] ").append(record.logger).append(": ").append(record.event);
+			for(int i = 0; i + 1 < record.fields.length; i += 2){
+				line.append(' ').append(record.fields[i]).append('=').append(record.fields[i + 1]);
+			}
+			PrintStream out = record.level <= WARN ? System.err : System.out;
+			out.println(line);
+			if(record.thrown != null){
+				record.thrown.printStackTrace(out);
+			}
+		}
+	}
+}
@@ -31,6 +31,10 @@ public class Message
 	 * @field INTERESTED Value of the interested identifier 
 	 */
 	public static final byte INTERESTED = 2;
+	/**
+	 * @field NOT_INTERESTED Value of the not interested identifier
+	 */
+	public static final byte NOT_INTERESTED = 3;
 	/**
 	 * @field HAVE Value of the have identifier
 	 */
@@ -47,12 +51,66 @@ public class Message
 	 * @field PIECE Value of the piece identifier
 	 */
 	public static final byte PIECE = 7;
+	/**
+	 * @field SUGGEST_PIECE Value of the identifier of a piece the sender suggests downloading, Fast extension
+	 */
+	public static final byte SUGGEST_PIECE = 13;
+	/**
+	 * @field HAVE_ALL Value of the identifier sent instead of a bitfield by a peer with every piece, Fast extension
+	 */
+	public static final byte HAVE_ALL = 14;
+	/**
+	 * @field HAVE_NONE Value of the identifier sent instead of a bitfield by a peer with no piece, Fast extension
+	 */
+	public static final byte HAVE_NONE = 15;
+	/**
+	 * @field REJECT_REQUEST Value of the identifier of a request the sender will not answer, Fast extension
+	 */
+	public static final byte REJECT_REQUEST = 16;
+	/**
+	 * @field ALLOWED_FAST Value of the identifier of a piece that may be requested while choked, Fast extension
+	 */
+	public static final byte ALLOWED_FAST = 17;
+	/**
+	 * @field EXTENDED Value of the identifier of extension protocol messages, the next byte names the extension
+	 */
+	public static final byte EXTENDED = 20;
 	/**
 	 * @field QUIT Value of the quit identifier
 	 */
 	public static final byte QUIT = 25;
+	/**
+	 * @field SNUBBED Value of the identifier telling our client a peer stopped answering requests
+	 */
+	public static final byte SNUBBED = 26;
+	/**
+	 * @field PAUSE Value of the identifier telling our client to pause transfers, from the admin API
+	 */
+	public static final byte PAUSE = 27;
+	/**
+	 * @field RESUME Value of the identifier telling our client to resume transfers, from the admin API
+	 */
+	public static final byte RESUME = 28;
+	/**
+	 * @field RECHECK Value of the identifier telling our client to hash every piece again, from the admin API
+	 */
+	public static final byte RECHECK = 29;
+	/**
+	 * @field UNCHOKE_SLOTS Value of the identifier telling our client to change its unchoke slots, followed by the count
+	 */
+	public static final byte UNCHOKE_SLOTS = 30;
+	//names of the message identifiers, by identifier
+	private static final String[] TYPE_NAMES = {"choke", "unchoke", "interested", "not_interested", "have", "bitfield", "request", "piece", "cancel", "port",
+			"other", "other", "other", "suggest_piece", "have_all", "have_none", "reject_request", "allowed_fast",
+			"other", "other", "extended"};
+	//reserved handshake byte and bit telling the other side we support the Fast extension
+	private static final int FAST_BYTE = 27;
+	private static final int FAST_BIT = 0x04;
+	//reserved handshake byte and bit telling the other side we support the extension protocol
+	private static final int EXTENSION_BYTE = 25;
+	private static final int EXTENSION_BIT = 0x10;
 	 //message headers
-	private final byte[] handshake_consts = {0x13,'B','i','t','T','o','r','r','e','n','t',' ','p','r','o','t','o','c','o','l',0,0,0,0,0,0,0,0};
+	private final byte[] handshake_consts = {0x13,'B','i','t','T','o','r','r','e','n','t',' ','p','r','o','t','o','c','o','l',0,0,0,0,0,EXTENSION_BIT,0,FAST_BIT};
 	private final byte[] have_consts = {0,0,0,5,4};
 	private final byte[] request_consts = {0,0,0,0xD,6};
 	//all non-payload messages
@@ -61,6 +119,16 @@ public class Message
 	private final byte[] interested = {0,0,0,1,2};
 	private final byte[] not_interested = {0,0,0,1,3};
 	private final byte[] keep_alive = {0,0,0,0};
+	private final byte[] have_all = {0,0,0,1,HAVE_ALL};
+	private final byte[] have_none = {0,0,0,1,HAVE_NONE};
+	/**
+	 * @param id message identifier
+	 * @return name of the message, or "other" for identifiers this client does not know
+	 */
+	public static String typeName(int id){
+		return id >= 0 && id < TYPE_NAMES.length ? TYPE_NAMES[id] : "other";
+	}
+	
 	/**
 	 * This method constructs a byte array that contains the handshake message
 	 * @param info_hash takes the info hash given by the .torrent file
@@ -78,6 +146,24 @@ public class Message
 		return handshake;
 	}
 	
+	/**
+	 * @param handshake handshake received from a peer
+	 * @return true if the peer set the Fast extension bit in its reserved bytes
+	 */
+	public static boolean supportsFast(byte[] handshake)
+	{
+		return (handshake[FAST_BYTE] & FAST_BIT) != 0;
+	}
+	
+	/**
+	 * @param handshake handshake received from a peer
+	 * @return true if the peer set the extension protocol bit in its reserved bytes
+	 */
+	public static boolean supportsExtensions(byte[] handshake)
+	{
+		return (handshake[EXTENSION_BYTE] & EXTENSION_BIT) != 0;
+	}
+	
 	/**
 	 * This method takes all inputs and constants for a request message
 	 * and generates returns a complete request message.
@@ -96,6 +182,85 @@ public class Message
 		return request.array();//returns the buffer as a byte array
 	}
 	
+	/**
+	 * Generates a reject message, answering a request that will not be served
+	 * @param index index of the piece requested
+	 * @param begin offset of the request inside of the piece
+	 * @param length length of the request
+	 * @return returns a composed reject message
+	 */
+	public byte[] reject(int index, int begin, int length)
+	{
+		ByteBuffer reject = ByteBuffer.allocate(17);
+		reject.putInt(13);
+		reject.put(REJECT_REQUEST);
+		reject.putInt(index);
+		reject.putInt(begin);
+		reject.putInt(length);
+		return reject.array();
+	}
+	
+	/**
+	 * Generates an allowed fast message
+	 * @param index index of a piece the peer may request while we choke it
+	 * @return returns a composed allowed fast message
+	 */
+	public byte[] allowedFast(int index)
+	{
+		return pieceIndexMessage(ALLOWED_FAST, index);
+	}
+	
+	/**
+	 * Generates a suggest piece message
+	 * @param index index of a piece we can send quickly
+	 * @return returns a composed suggest piece message
+	 */
+	public byte[] suggestPiece(int index)
+	{
+		return pieceIndexMessage(SUGGEST_PIECE, index);
+	}
+	
+	private byte[] pieceIndexMessage(byte id, int index)
+	{
+		ByteBuffer message = ByteBuffer.allocate(9);
+		message.putInt(5);
+		message.put(id);
+		message.putInt(index);
+		return message.array();
+	}
+	
+	/**
+	 * Generates an extension protocol message
+	 * @param id id the receiver gave the extension in its extended handshake, 0 for the extended handshake itself
+	 * @param payload bencoded dictionary, followed by any data of the extension
+	 * @return returns a composed extended message
+	 */
+	public byte[] extended(int id, byte[] payload)
+	{
+		ByteBuffer extended = ByteBuffer.allocate(payload.length+6);
+		extended.putInt(payload.length+2);
+		extended.put(EXTENDED);
+		extended.put((byte)id);
+		extended.put(payload);
+		return extended.array();
+	}
+	
+	/**
+	 * @return have all message, sent instead of a full bitfield
+	 */
+	public byte[] getHave_all() 
+	{
+		return have_all;
+	}
+	
+	/**
+	 * @return have none message, sent instead of an empty bitfield
+	 */
+	public byte[] getHave_none() 
+	{
+		return have_none;
+	}
+	
 	/**
 	 * @return choke message
 	 */
@@ -148,8 +313,9 @@ public class Message
 	 * @param mybitfield the clients bitfield
 	 * @return returns our bitfield
 	 */
-	public byte[] getBitFieldMessage(byte[] mybitfield) 
+	public byte[] getBitFieldMessage(Bitfield bitfield_set) 
 	{
+		byte[] mybitfield = bitfield_set.toBytes();
 		int field_length = mybitfield.length+1;
 		ByteBuffer buffer = ByteBuffer.allocate(4);
 		buffer.putInt(field_length);
@@ -180,7 +346,7 @@ public class Message
 		int begin = ByteBuffer.wrap(begin_bytes).getInt();
 		ByteBuffer buffer = ByteBuffer.allocate(4);
 		buffer.putInt(length);
-		block = file.getPieceData(index, begin, length); //gets the requested chunk from the file
+		block = file.getPieceData(index, begin, req_length); //gets the requested chunk from the file
 		System.arraycopy(buffer.array(), 0, piece_message, 0, 4);    //copy length
 		piece_message[4]=PIECE;
 		System.arraycopy(index_bytes, 0, piece_message, 5, 4);   //copy index
@@ -189,6 +355,24 @@ public class Message
 		return piece_message;
 	}
 	
+	/**
+	 * Generates a piece message around a block that has already been read
+	 * @param index piece index requested
+	 * @param begin offset of the request
+	 * @param block data of the request
+	 * @return constructed piece message
+	 */
+	public byte[] getPieceMessage(int index, int begin, byte[] block)
+	{
+		ByteBuffer piece_message = ByteBuffer.allocate(block.length+13); //size of piece is length of block, plus 13 bytes for header info
+		piece_message.putInt(block.length+9);
+		piece_message.put(PIECE);
+		piece_message.putInt(index);
+		piece_message.putInt(begin);
+		piece_message.put(block);
+		return piece_message.array();
+	}
+	
 	/**
 	 * Generates a quit message to signal our client
 	 * @return quit message
@@ -198,6 +382,40 @@ public class Message
 		byte[] quit_message = {QUIT};
 		return quit_message;
 	}
+	/**
+	 * Generates a snubbed message to signal our client
+	 * @return snubbed message
+	 */
+	public byte[] getSnubbedMessage()
+	{
+		byte[] snubbed_message = {SNUBBED};
+		return snubbed_message;
+	}
+	/**
+	 * @param id identifier of the action
+	 * @return a message with only the identifier, for the actions our client queues for itself
+	 */
+	public byte[] getActionMessage(byte id)
+	{
+		byte[] action_message = {id};
+		return action_message;
+	}
+	/**
+	 * @param slots most peers unchoked at once
+	 * @return a message telling our client to change its unchoke slots
+	 */
+	public byte[] getUnchokeSlotsMessage(int slots)
+	{
+		return ByteBuffer.allocate(5).put(UNCHOKE_SLOTS).putInt(slots).array();
+	}
+	/**
+	 * @param id identifier of a message
+	 * @return true for the identifiers our client queues for itself, which peers may not send
+	 */
+	public static boolean isInternal(byte id)
+	{
+		return id >= QUIT && id <= UNCHOKE_SLOTS;
+	}
 	/**
 	 * Generates a have message to send to our peers
 	 * @param index of the piece that we have
@@ -0,0 +1,293 @@
+package RUBTClient;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Registry of the counters, gauges and histograms a client keeps about itself. Metrics are named the way
+ * the plain text exposition format names them, labels included, e.g.
+ * <code>rubt_messages_received_total{type="piece"}</code>, and are created the first time they are asked
+ * for, so recording never has to check whether a metric exists. Recording takes no locks.
+ */
+public class Metrics {
+
+	/**
+	 * Value read when the metrics are exported
+	 */
+	public interface Gauge {
+		/**
+		 * @return current value
+		 */
+		long value();
+	}
+
+	/**
+	 * Value that only goes up
+	 */
+	public static class Counter {
+
+		private final AtomicLong count = new AtomicLong();
+
+		/**
+		 * Adds one
+		 */
+		public void increment(){
+			count.incrementAndGet();
+		}
+
+		/**
+		 * @param amount added to the count
+		 */
+		public void add(long amount){
+			count.addAndGet(amount);
+		}
+
+		/**
+		 * @return the count
+		 */
+		public long get(){
+			return count.get();
+		}
+	}
+
+	/**
+	 * Distribution of recorded values, in buckets that are exact below 8 and within an eighth of the
+	 * value above, so quantiles are off by at most 12.5%
+	 */
+	public static class Histogram {
+
+		private static final int SUB_BUCKETS = 8;
+
+		private final AtomicLongArray 	buckets = new AtomicLongArray(62 * SUB_BUCKETS);
+		private final AtomicLong 		count = new AtomicLong();
+		private final AtomicLong 		sum = new AtomicLong();
+		private final AtomicLong 		max = new AtomicLong();
+		private final double 			scale;
+
+		/**
+		 * @param scale exported value of one recorded unit, 1e-9 for nanoseconds exported as seconds
+		 */
+		Histogram(double scale){
+			this.scale = scale;
+		}
+
+		/**
+		 * @param value non-negative value to record, negative values are recorded as 0
+		 */
+		public void record(long value){
+			value = Math.max(0, value);
+			buckets.incrementAndGet(index(value));
+			count.incrementAndGet();
+			sum.addAndGet(value);
+			long current;
+			while(value > (current = max.get()) && !max.compareAndSet(current, value)){
+			}
+		}
+
+		/**
+		 * Records the time since start
+		 * @param start System.nanoTime() when the timed operation began
+		 */
+		public void recordSince(long start){
+			record(System.nanoTime() - start);
+		}
+
+		/**
+		 * @return number of values recorded
+		 */
+		public long getCount(){
+			return count.get();
+		}
+
+		/**
+		 * @return sum of the values recorded, scaled
+		 */
+		public double getSum(){
+			return sum.get() * scale;
+		}
+
+		/**
+		 * @return largest value recorded, scaled
+		 */
+		public double getMax(){
+			return max.get() * scale;
+		}
+
+		/**
+		 * @param quantile from 0 to 1
+		 * @return upper bound of the bucket holding the quantile, scaled, or 0 if nothing was recorded
+		 */
+		public double getQuantile(double quantile){
+			long total = count.get();
+			if(total == 0){
+				return 0;
+			}
+			long rank = Math.max(1, (long)Math.ceil(quantile * total));
+			long seen = 0;
+			for(int i = 0; i < buckets.length(); i++){
+				seen += buckets.get(i);
+				if(seen >= rank){
+					return Math.min(upperBound(i), max.get()) * scale;
+				}
+			}
+			return max.get() * scale;
+		}
+
+		private static int index(long value){
+			if(value < SUB_BUCKETS){
+				return (int)value;
+			}
+			int exponent = 63 - Long.numberOfLeadingZeros(value);
+			int sub = (int)(value >>> (exponent - 3)) & (SUB_BUCKETS - 1);
+			return (exponent - 2) * SUB_BUCKETS + sub;
+		}
+
+		private static long upperBound(int index){
+			if(index < SUB_BUCKETS){
+				return index;
+			}
+			int exponent = index / SUB_BUCKETS + 2;
+			long lower = (long)(SUB_BUCKETS + index % SUB_BUCKETS) << (exponent - 3);
+			return lower + (1L << (exponent - 3)) - 1;
+		}
+	}
+
+	private static final double[] QUANTILES = {0.5, 0.9, 0.99};
+
+	private final ConcurrentSkipListMap<String, Object> metrics = new ConcurrentSkipListMap<String, Object>();
+	private final ConcurrentHashMap<String, String> 	help = new ConcurrentHashMap<String, String>();
+
+	/**
+	 * @param name name of the counter, labels included
+	 * @param description what the counter counts
+	 * @return the counter, created the first time it is asked for
+	 */
+	public Counter counter(String name, String description){
+		Object metric = metrics.get(name);
+		if(metric == null){
+			help.putIfAbsent(baseName(name), description);
+			Object created = new Counter();
+			metric = metrics.putIfAbsent(name, created);
+			if(metric == null){
+				metric = created;
+			}
+		}
+		return (Counter)metric;
+	}
+
+	/**
+	 * @param name name of the histogram, labels included
+	 * @param description what the histogram measures
+	 * @param scale exported value of one recorded unit
+	 * @return the histogram, created the first time it is asked for
+	 */
+	public Histogram histogram(String name, String description, double scale){
+		Object metric = metrics.get(name);
+		if(metric == null){
+			help.putIfAbsent(baseName(name), description);
+			Object created = new Histogram(scale);
+			metric = metrics.putIfAbsent(name, created);
+			if(metric == null){
+				metric = created;
+			}
+		}
+		return (Histogram)metric;
+	}
+
+	/**
+	 * @param name name of the histogram, labels included
+	 * @param description what the histogram measures
+	 * @return histogram of nanoseconds, exported in seconds
+	 */
+	public Histogram timer(String name, String description){
+		return histogram(name, description, 1e-9);
+	}
+
+	/**
+	 * Registers a gauge, replacing any gauge of the same name
+	 * @param name name of the gauge, labels included
+	 * @param description what the gauge shows
+	 * @param gauge reads the value
+	 */
+	public void gauge(String name, String description, Gauge gauge){
+		help.putIfAbsent(baseName(name), description);
+		metrics.put(name, gauge);
+	}
+
+	/**
+	 * @return every value by name, histograms flattened into their count, sum, quantiles and maximum
+	 */
+	public Map<String, Number> snapshot(){
+		Map<String, Number> values = new LinkedHashMap<String, Number>();
+		for(Map.Entry<String, Object> entry: metrics.entrySet()){
+			String name = entry.getKey();
+			Object metric = entry.getValue();
+			if(metric instanceof Counter){
+				values.put(name, ((Counter)metric).get());
+			}else if(metric instanceof Gauge){
+				values.put(name, ((Gauge)metric).value());
+			}else {
+				Histogram histogram = (Histogram)metric;
+				values.put(withSuffix(name, "_count"), histogram.getCount());
+				values.put(withSuffix(name, "_sum"), histogram.getSum());
+				for(double quantile: QUANTILES){
+					values.put(withLabel(name, "quantile", Double.toString(quantile)), histogram.getQuantile(quantile));
+				}
+				values.put(withSuffix(name, "_max"), histogram.getMax());
+			}
+		}
+		return values;
+	}
+
+	/**
+	 * @return every metric in the plain text exposition format, histograms as summaries
+	 */
+	public String toText(){
+		StringBuilder text = new StringBuilder();
+		String last_base = null;
+		for(Map.Entry<String, Object> entry: metrics.entrySet()){
+			String name = entry.getKey();
+			Object metric = entry.getValue();
+			String base = baseName(name);
+			if(!base.equals(last_base)){
+				String type = metric instanceof Counter ? "counter" : metric instanceof Gauge ? "gauge" : "summary";
+				text.append("# HELP ").append(base).append(' ').append(help.get(base)).append('\n');
+				text.append("# TYPE ").append(base).append(' ').append(type).append('\n');
+				last_base = base;
+			}
+			if(metric instanceof Counter){
+				text.append(name).append(' ').append(((Counter)metric).get()).append('\n');
+			}else if(metric instanceof Gauge){
+				text.append(name).append(' ').append(((Gauge)metric).value()).append('\n');
+			}else {
+				Histogram histogram = (Histogram)metric;
+				for(double quantile: QUANTILES){
+					text.append(withLabel(name, "quantile", Double.toString(quantile))).append(' ').append(histogram.getQuantile(quantile)).append('\n');
+				}
+				text.append(withSuffix(name, "_sum")).append(' ').append(histogram.getSum()).append('\n');
+				text.append(withSuffix(name, "_count")).append(' ').append(histogram.getCount()).append('\n');
+			}
+		}
+		return text.toString();
+	}
+
+	private static String baseName(String name){
+		int brace = name.indexOf('{');
+		return brace == -1 ? name : name.substring(0, brace);
+	}
+
+	private static String withSuffix(String name, String suffix){
+		int brace = name.indexOf('{');
+		return brace == -1 ? name + suffix : name.substring(0, brace) + suffix + name.substring(brace);
+	}
+
+	private static String withLabel(String name, String label, String value){
+		String pair = label + "=\"" + value + "\"";
+		int brace = name.indexOf('{');
+		return brace == -1 ? name + "{" + pair + "}" : name.substring(0, name.length() - 1) + "," + pair + "}";
+	}
+}
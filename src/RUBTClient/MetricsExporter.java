@@ -0,0 +1,141 @@
+package RUBTClient;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.AttributeNotFoundException;
+import javax.management.DynamicMBean;
+import javax.management.JMException;
+import javax.management.MBeanAttributeInfo;
+import javax.management.MBeanInfo;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Exposes a client's metrics as a read-only MBean, and as plain text on /metrics when given a port
+ */
+public class MetricsExporter {
+
+	private static final Log log = Log.get(MetricsExporter.class);
+
+	private final Metrics 		metrics;
+	private final ObjectName 	name;
+	private HttpServer 			server;
+
+	/**
+	 * @param metrics metrics to expose
+	 * @param id distinguishes this client's MBean from other clients in the same JVM
+	 * @throws JMException if id makes an invalid MBean name
+	 */
+	public MetricsExporter(Metrics metrics, String id) throws JMException{
+		this.metrics = metrics;
+		this.name = new ObjectName("RUBTClient:type=Metrics,name=" + ObjectName.quote(id));
+	}
+
+	/**
+	 * Registers the MBean, and serves /metrics if port is positive
+	 * @param port port for the plain text endpoint, 0 or less for none
+	 * @throws JMException if the MBean cannot be registered
+	 * @throws IOException if the port cannot be bound
+	 */
+	public void start(int port) throws JMException, IOException{
+		ManagementFactory.getPlatformMBeanServer().registerMBean(new MetricsMBean(), name);
+		if(port > 0){
+			server = HttpServer.create(new InetSocketAddress(port), 0);
+			server.createContext("/metrics", new TextHandler());
+			server.start();
+			log.info("serving metrics", "url", "http://localhost:" + server.getAddress().getPort() + "/metrics");
+		}
+	}
+
+	/**
+	 * Unregisters the MBean and stops serving /metrics
+	 */
+	public void stop(){
+		if(server != null){
+			server.stop(0);
+		}
+		MBeanServer mbeans = ManagementFactory.getPlatformMBeanServer();
+		try {
+			if(mbeans.isRegistered(name)){
+				mbeans.unregisterMBean(name);
+			}
+		}catch (JMException e){
+			log.warn("could not unregister", e, "name", name);
+		}
+	}
+
+	private class TextHandler implements HttpHandler {
+
+		public void handle(HttpExchange exchange) throws IOException{
+			try {
+				byte[] body = metrics.toText().getBytes("UTF-8");
+				exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+				exchange.sendResponseHeaders(200, body.length);
+				OutputStream out = exchange.getResponseBody();
+				out.write(body);
+				out.close();
+			}finally {
+				exchange.close();
+			}
+		}
+	}
+
+	/**
+	 * One read-only attribute per exported value. The attributes are listed again every time the MBean
+	 * is inspected, since metrics such as per message type counters appear as the client runs
+	 */
+	private class MetricsMBean implements DynamicMBean {
+
+		public Object getAttribute(String attribute) throws AttributeNotFoundException{
+			Number value = metrics.snapshot().get(attribute);
+			if(value == null){
+				throw new AttributeNotFoundException(attribute);
+			}
+			return value;
+		}
+
+		public AttributeList getAttributes(String[] attributes){
+			Map<String, Number> snapshot = metrics.snapshot();
+			AttributeList list = new AttributeList();
+			for(String attribute: attributes){
+				Number value = snapshot.get(attribute);
+				if(value != null){
+					list.add(new Attribute(attribute, value));
+				}
+			}
+			return list;
+		}
+
+		public MBeanInfo getMBeanInfo(){
+			List<MBeanAttributeInfo> attributes = new ArrayList<MBeanAttributeInfo>();
+			for(Map.Entry<String, Number> entry: metrics.snapshot().entrySet()){
+				attributes.add(new MBeanAttributeInfo(entry.getKey(), entry.getValue().getClass().getName(), entry.getKey(), true, false, false));
+			}
+			return new MBeanInfo(Metrics.class.getName(), "RUBT client metrics", attributes.toArray(new MBeanAttributeInfo[attributes.size()]), null, null, null);
+		}
+
+		public void setAttribute(Attribute attribute) throws AttributeNotFoundException{
+			throw new AttributeNotFoundException("metrics are read-only");
+		}
+
+		public AttributeList setAttributes(AttributeList attributes){
+			return new AttributeList();
+		}
+
+		public Object invoke(String action, Object[] params, String[] signature){
+			throw new UnsupportedOperationException(action);
+		}
+	}
+}
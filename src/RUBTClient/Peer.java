@@ -3,9 +3,15 @@ package RUBTClient;
 import java.net.*;
 import java.io.*;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.Date;
+import java.util.Iterator;
+import java.util.Map;
 import java.util.TimerTask;
 import java.util.Timer;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * @author Ben Green
@@ -26,7 +32,7 @@ public class Peer extends Thread {
 	private DataInputStream 	peerInputStream;	
 	private DataOutputStream	peerOutputStream;	
 	
-	private boolean 			choked; 			
+	private volatile boolean 	choked; 			
 	private boolean 			choking; 	
 	private boolean 			incoming;
 	private boolean			 	connected;			
@@ -34,7 +40,8 @@ public class Peer extends Thread {
 	private boolean 			remote_interested;
 	
 	private byte[] 				response;
-	private byte[] 				bitfield;
+	private Bitfield 			bitfield;
+	private Bitfield 			counted;			//pieces of the peer counted in the rarity machine
 	
 	
 	private Date 				last_sent;
@@ -42,10 +49,30 @@ public class Peer extends Thread {
 	private RUBTClient 			client;
 	private MessageTask 		message;
 	
-	private int 				last_requested_piece; 
+	private final AtomicInteger last_requested_piece = new AtomicInteger(-1); 	//-1 until a piece is requested
+	
+	private static final Log log = Log.get(Peer.class);
+	//milliseconds without a block, while a request is waiting, before the peer counts as snubbing us
+	private static final long SNUB_TIME = Long.getLong("rubt.snubTime", 60000L);
+	
+	//System.nanoTime() each request still waiting for its block was sent, keyed by piece and offset
+	private final ConcurrentHashMap<Long, Long> pending_requests = new ConcurrentHashMap<Long, Long>();
+	private final Metrics.Histogram rtt = new Metrics.Histogram(1e-9);
+	private final Metrics.Histogram service_time = new Metrics.Histogram(1e-9);
+	private volatile long 		last_block = System.nanoTime();		//when a block last arrived, or the peer last unchoked us
+	private volatile boolean 	snubbed;
+	
+	private volatile boolean 	fast;				//both sides offered the Fast extension in their handshakes
+	private Bitfield 			allowed_fast;		//pieces the peer lets us request while it chokes us
+	private Bitfield 			allowed_fast_sent;	//pieces we let the peer request while we choke it
+	private Bitfield 			suggested;			//pieces the peer suggested we download from it
+	private Bitfield 			rejected;			//pieces the peer refused while unchoking us, skipped until its next unchoke
+	
+	private volatile boolean 	extended;			//both sides offered the extension protocol in their handshakes
+	private volatile Map<String, Integer> extension_ids = Collections.emptyMap();	//ids the peer gave extensions, by name
 	
 	protected double			sent_bps;
-	protected double			sent_bytes;
+	protected final AtomicLong	sent_bytes = new AtomicLong();	//added to by the disk threads that read blocks
 	protected double			received_bps;
 	protected double 			received_bytes;
 	
@@ -67,8 +94,6 @@ public class Peer extends Thread {
 		this.port = port;
 		this.peer_id = peer_id;
 
-		sent_bytes = 0;
-		sent_bytes = 0;
 		received_bps = 0;
 		received_bytes = 0;
 		
@@ -103,7 +128,7 @@ public class Peer extends Thread {
 		try {
 			this.peerSocket.setSoTimeout(125*1000);  // set a new timer for received message, 2 minutes 5 seconds
 		} catch (SocketException e) {
-			System.out.println("peer socket exception");
+			log.warn("could not set socket timeout", e);
 		}
 
 		this.peerInputStream = peerInputStream;
@@ -122,7 +147,6 @@ public class Peer extends Thread {
 		performanceTimer = new Timer("PERF TIMER",true);
 		
 		sent_bps = 0;
-		sent_bytes = 0;
 		received_bps = 0;
 		received_bytes = 0;
 	}
@@ -140,7 +164,7 @@ public class Peer extends Thread {
 		public void run() {
 			
 			if(peer.connected&&(System.currentTimeMillis()-peer.getLastSent()>=(150*1000))){
-				System.out.println("Sending a keep alive");
+				log.trace("sending keep alive", "peer", peer);
 				byte[] keep_alive = {0,0,0,0};
 				peer.sendMessage(keep_alive);
 			}
@@ -157,15 +181,17 @@ public class Peer extends Thread {
 		
 		public void run(){
 			
+			if (peer.checkSnubbed(System.nanoTime())){
+				peer.client.addMessageTask(new MessageTask(peer, new Message().getSnubbedMessage()));
+			}
 			if (!peer.choked){
 				peer.received_bps = ((0.65 * peer.received_bps) + (0.35 * peer.received_bytes))/2;
 				if(peer.received_bps < 100) peer.received_bps = 0; 
 				peer.received_bytes = 0;
 			}
 			if (!peer.choking){
-				peer.sent_bps = ((0.65 * peer.sent_bps) + (0.35 * peer.sent_bytes))/2;
+				peer.sent_bps = ((0.65 * peer.sent_bps) + (0.35 * peer.sent_bytes.getAndSet(0)))/2;
 				if(peer.sent_bps < 100) peer.sent_bps = 0;
-				peer.sent_bytes = 0;
 			}
 		}
 	}
@@ -180,22 +206,21 @@ public class Peer extends Thread {
 		byte[] client_bitfield;
 		byte[] handshake;
 		
-		System.out.println("checking peer: " + this.getPeer_id());
 		if (this.client.alreadyConnected(this.peer_id)){
-			System.out.println("Peer.java: error at already connected");
+			log.debug("already connected", "peer", this);
 			//this.client.printPeers();
 			if(incoming) this.closeConnections();
 			return;
 		}
 		if(this.peerSocket == null  && !this.connectToPeer()){
-			System.out.println("Peer.java error at connectToPeer");
+			log.debug("could not connect", "peer", this);
 			return;
 		}
 		Message current_message = new Message();
 
 		if(!incoming){
 			this.client.blocking_peers.add(this);
-			this.sendMessage(current_message.handShake(this.client.torrentinfo.info_hash.array(), this.client.tracker.getUser_id()));
+			this.sendMessage(current_message.handShake(this.client.torrentinfo.info_hash.array(), this.client.trackers.getUser_id()));
 			handshake = this.handshake();
 			if(handshake == null){
 				return;
@@ -205,28 +230,38 @@ public class Peer extends Thread {
 			}
 			this.client.blocking_peers.remove(this);
 		}
-		client_bitfield = current_message.getBitFieldMessage(this.client.destfile.getMybitfield());
-
+		Bitfield mybitfield = this.client.destfile.getMybitfield();
+		if (fast && mybitfield.isComplete()){
+			client_bitfield = current_message.getHave_all();
+		}else if (fast && mybitfield.cardinality() == 0){
+			client_bitfield = current_message.getHave_none();
+		}else {
+			client_bitfield = current_message.getBitFieldMessage(mybitfield);
+		}
 		this.sendMessage(client_bitfield);
+		if (fast){
+			this.client.allowFast(this);
+		}
+		if (extended){
+			this.client.getExtensions().sendHandshake(this);
+		}
 		
 		this.client.addPeerToList(this);
-		System.out.println("Peer added: " + this.peer_id);
+		log.debug("peer added", "peer", this, "incoming", incoming);
+		FlightEvents.peerConnected(this, incoming);
 
 		performanceTask = new PerformanceTimerTask(this);
 		this.performanceTimer.scheduleAtFixedRate(performanceTask, 2*1000 ,2 * 1000);
 		
 		while (connected){   //runs until we are no longer connected to the Peer
 			try {
-				Thread.sleep(1*50);
+				int length_prefix;
 				try {
-					if(peerInputStream.available() == 0){
-						continue;     //means the peer hasn't written anything to the socket yet, I would like to find a better way to do this
-					}
-				}catch (IOException e){
-					return;
+					length_prefix = peerInputStream.readInt();	//blocks until the peer writes, so arrival times are not held back by polling
+				}catch (SocketTimeoutException e){
+					continue;	//a quiet peer, it is dropped by the keep alive and snubbing checks rather than here
 				}
-				
-				int length_prefix = peerInputStream.readInt();
+				long arrived = System.nanoTime();
 				if(length_prefix <=0){ //means this is a keep alive from the peer
 					continue;
 				}
@@ -234,19 +269,47 @@ public class Peer extends Thread {
 				//System.out.println("length prefix " + length_prefix);
 				response = new byte[length_prefix];
 				peerInputStream.readFully(response);
+				client.messageReceived(response);
+				if(Message.isInternal(response[0])){
+					//ids the client queues for itself, a peer may not inject them
+					log.debug("internal message id from peer ignored", "peer", this, "id", response[0]);
+					continue;
+				}
+				if(response[0] == Message.PIECE && length_prefix >= 9){
+					blockArrived(response, arrived);
+					//holding back the next read slows the peer down through TCP flow control
+					client.getDownloadLimit().acquire(length_prefix + 4);
+				}
 				
 				if(response[0] == Message.BITFIELD&&first_sent==false){ //if the id is a bitfield, set this peers bitfield to this byte array, as long as it is sent at the right time.
-					System.out.println("setting the bitfield");
-					bitfield = new byte[length_prefix-1];
-					System.arraycopy(response,1,this.bitfield,0,bitfield.length);
+					bitfield.setBytes(response, 1, length_prefix-1);
+				}else if(response[0] == Message.HAVE_ALL&&first_sent==false&&fast){
+					bitfield.setAll();
+				}else if(response[0] == Message.REJECT_REQUEST && length_prefix >= 13 && fast){
+					pending_requests.remove(blockKey(response, 1));
+					rejectArrived((int)(blockKey(response, 1) >>> 32));
+				}else if(response[0] == Message.CHOKE){
+					//tasks run concurrently, so the choke state is kept here in the order the peer sent it
+					setChoked(true);
+				}else if(response[0] == Message.UNCHOKE){
+					setChoked(false);
 				}
 				message = new MessageTask(this, response);//makes the response into a  new message task, passes a peer as well
 				client.addMessageTask(message); //puts the message in its clients  task queue and resets timers
-			}catch (EOFException e) { 
-					continue;
+			}catch (IOException e){
+				if (connected){
+					//the peer closed the connection. Removing it closes this thread, so another thread does it
+					log.debug("connection lost", "peer", this, "error", e.getMessage());
+					final Peer peer = this;
+					client.workers.execute(new Runnable(){
+						public void run(){
+							client.removePeer(peer);
+						}
+					});
+				}
+				return;
 			}catch (Exception e){
-				System.err.println("Peer.java run() : General Exception");
-				e.printStackTrace();
+				log.error("failed reading from peer", e, "peer", this);
 			}
 		}
 		return;
@@ -264,10 +327,10 @@ public class Peer extends Thread {
 			this.peerInputStream = new DataInputStream(peerSocket.getInputStream());
 			connected = true;
 		}catch (UnknownHostException e){
-			System.err.println("Peer.java connectToPeer(): UnknownHostException");
+			log.debug("unknown host", "peer", this);
 			return false;
 		}catch (IOException e){
-			System.err.println("Peer.java connectToPeer(): IOException");
+			log.debug("could not connect", "peer", this, "error", e.getMessage());
 			return false;
 		}
 		sendTask = new SendTimerTask(this);
@@ -280,17 +343,26 @@ public class Peer extends Thread {
 	/**
 	 * Sends a message to the peer
 	 * Source: Taken From Rob Moore's skeleton code in our Sakai Resources folder
-	 * @param Message message to be sent by the peer
+	 * @param message message to be sent by the peer
 	 */
-	public synchronized void sendMessage(byte[] Message){
+	public synchronized void sendMessage(byte[] message){
 		if (this.peerOutputStream == null){
-			System.out.println("stream is null");
+			log.warn("sending before connecting", "peer", this);
 		}else {
 			try {
-				peerOutputStream.write(Message);
+				long sent = System.nanoTime();
+				peerOutputStream.write(message);
+				if (message.length == 17 && message[4] == Message.REQUEST){
+					pending_requests.put(blockKey(message, 5), sent);
+				}
+				if (client != null){
+					client.messageSent(message);
+				}
 			} catch (IOException e) {
-				System.err.println("Broken pipe, removing peer");
-				client.removePeer(this);
+				log.debug("send failed, removing peer", "peer", this, "error", e.getMessage());
+				if (client != null){
+					client.removePeer(this);	//a peer still handshaking has no client, its handshake fails on its own
+				}
 			}
 		}
 		//TODO update our last sent field
@@ -310,8 +382,10 @@ public class Peer extends Thread {
 			closeConnections();
 			return null;
 		}catch (IOException e1){
-			System.err.println("Peer.java Handshake Error. Disconnecting peer");  //there was an error reading the handshake, disconnects from the peer.
-			this.client.blocking_peers.remove(this);
+			log.debug("could not read handshake", "peer", this);  //there was an error reading the handshake, disconnects from the peer.
+			if (this.client != null){
+				this.client.blocking_peers.remove(this);
+			}
 			closeConnections();
 			return null;
 		}
@@ -332,6 +406,11 @@ public class Peer extends Thread {
 		System.arraycopy(peer_handshake,48,peer_id,0,20);//copies the peer id.
 		
 		if (Arrays.equals(peer_infohash, this.client.torrentinfo.info_hash.array())){  //returns true if the peer id matches and the info hash matches
+			if (this.peer_id == null){  //peers from a compact peer list only get their id from the handshake
+				this.peer_id = peer_id;
+			}
+			this.fast = Message.supportsFast(peer_handshake);
+			this.extended = Message.supportsExtensions(peer_handshake);
 			return true;
 		}else {
 			return false;
@@ -351,12 +430,14 @@ public class Peer extends Thread {
 			if (peerSocket != null)
 				peerSocket.close();
 			
+			if (connected){
+				FlightEvents.peerDisconnected(this);
+			}
 			connected = false;
 			this.stop();
 			cleanUp();
 		}catch (IOException e){
-			System.out.println("Peer.java: failed to close connections");
-			e.printStackTrace();
+			log.warn("could not close connections", e, "peer", this);
 			return;
 		}
 	}
@@ -379,6 +460,16 @@ public class Peer extends Thread {
 		return ip;
 	}
 	
+	/**
+	 * @return raw address of the connected socket, null before connecting
+	 */
+	public byte[] getAddress() {
+		if (peerSocket == null || peerSocket.getInetAddress() == null){
+			return null;
+		}
+		return peerSocket.getInetAddress().getAddress();
+	}
+
 	/**
 	 * This method sets a peers connected field to true or false
 	 * @param connected if the peer is connected or not
@@ -402,7 +493,133 @@ public class Peer extends Thread {
 	public int getPort() {
 		return port;
 	}
+	
+	/**
+	 * @param port port the peer listens on, learned from its extended handshake when it connected to us
+	 */
+	public void setPort(int port) {
+		this.port = port;
+	}
+	
+	/**
+	 * @return time from sending a request to the start of its block arriving, of every block from this peer
+	 */
+	public Metrics.Histogram getRtt() {
+		return rtt;
+	}
+	
+	/**
+	 * @return time from sending a request to its whole block being read, of every block from this peer
+	 */
+	public Metrics.Histogram getServiceTime() {
+		return service_time;
+	}
+	
+	/**
+	 * @return requests sent to the peer that it has not answered yet
+	 */
+	public int getPendingRequests() {
+		return pending_requests.size();
+	}
+	
+	/**
+	 * @return true if the peer left a request unanswered for the snub time while unchoking us
+	 */
+	public boolean isSnubbed() {
+		return snubbed;
+	}
+	
+	/**
+	 * Marks the peer snubbed if it is unchoking us, has a request waiting and sent no block for the snub time
+	 * @param now System.nanoTime()
+	 * @return true if the peer became snubbed by this call
+	 */
+	boolean checkSnubbed(long now) {
+		if (snubbed || choked || pending_requests.isEmpty()){
+			return false;
+		}
+		long limit = now - SNUB_TIME * 1000000L;
+		if (last_block - limit > 0){
+			return false;
+		}
+		Iterator<Long> sent = pending_requests.values().iterator();
+		while (sent.hasNext()){
+			if (sent.next() - limit > 0){
+				return false;		//a request sent since then still has time
+			}
+		}
+		snubbed = true;
+		return true;
+	}
+	
+	/**
+	 * Records a rejected request against the choke state it arrived in. A peer choking us rejects the
+	 * requests it drops and may take back allowed fast pieces, a peer unchoking us refuses the piece
+	 * @param piece index of the piece the request was for
+	 */
+	private void rejectArrived(int piece) {
+		if (piece < 0 || piece >= rejected.size()){
+			return;
+		}
+		if (choked){
+			allowed_fast.clear(piece);
+		}else {
+			rejected.set(piece);
+		}
+	}
 
+	/**
+	 * Times the request a piece message answers
+	 * @param piece_message the message without its length prefix
+	 * @param arrived System.nanoTime() when the message started arriving
+	 */
+	private void blockArrived(byte[] piece_message, long arrived) {
+		long now = System.nanoTime();
+		last_block = now;
+		snubbed = false;
+		Long sent = pending_requests.remove(blockKey(piece_message, 1));
+		if (sent == null){
+			return;		//a block we did not ask for, or asked for before being choked
+		}
+		rtt.record(arrived - sent);
+		service_time.record(now - sent);
+		client.blockTimed(arrived - sent, now - sent);
+	}
+	
+	/**
+	 * @return piece index and offset of a request or piece message, as one key
+	 */
+	private static long blockKey(byte[] message, int offset) {
+		long piece = ((message[offset] & 0xFFL) << 24) | ((message[offset + 1] & 0xFF) << 16) | ((message[offset + 2] & 0xFF) << 8) | (message[offset + 3] & 0xFF);
+		long begin = ((message[offset + 4] & 0xFFL) << 24) | ((message[offset + 5] & 0xFF) << 16) | ((message[offset + 6] & 0xFF) << 8) | (message[offset + 7] & 0xFF);
+		return (piece << 32) | begin;
+	}
+	
+	/**
+	 * @return address and port of the peer, for logging
+	 */
+	@Override
+	public String toString() {
+		if (ip == null && peerSocket != null){
+			return peerSocket.getInetAddress().getHostAddress() + ":" + peerSocket.getPort();
+		}
+		return ip + ":" + port;
+	}
+
+	/**
+	 * @return true if the peer connected to us, false if we connected to it
+	 */
+	public boolean isIncoming() {
+		return incoming;
+	}
+
+	/**
+	 * @return true if the remote peer is interested in our pieces
+	 */
+	public boolean isRemoteInterested() {
+		return remote_interested;
+	}
+	
 	/**
 	 * @return returns if the peer is interested or not
 	 */
@@ -429,23 +646,150 @@ public class Peer extends Thread {
 	 * @param state if the peer is choked or not
 	 */
 	public void setChoked(boolean state){
+		if (state && !fast){
+			//a peer drops the requests of a peer it chokes, unless it rejects each one under the Fast extension
+			pending_requests.clear();
+		}else if (!state && this.choked){
+			//the wait for a block starts over with every unchoke
+			last_block = System.nanoTime();
+			snubbed = false;
+			for (int i = rejected.nextSetBit(0); i != -1; i = rejected.nextSetBit(i + 1)){
+				rejected.clear(i);
+			}
+		}
+		if (state != this.choked){
+			FlightEvents.choke(this, false, state);
+		}
 		this.choked = state;
 	}
 	
 	/**
 	 * @return the remote peers bitfield
 	 */
-	public byte[] getBitfield(){
+	public Bitfield getBitfield(){
 		return this.bitfield;
 	}
 	
+	/**
+	 * @return pieces of the peer the rarity machine counts. The reader thread fills the bitfield before the
+	 * 		   event loop counts it, so the two differ while a BITFIELD waits in the task queue
+	 */
+	public Bitfield getCounted(){
+		return this.counted;
+	}
+	
 	/**
 	 * This method sets the peer's client, and also initializes its bitfield to the correct length
 	 * @param client client that is associated with this peer
 	 */
 	public void setClient(RUBTClient client){
 		this.client = client;
-		this.bitfield = new byte[client.getbitfield().length]; 
+		this.bitfield = new Bitfield(client.destfile.pieces.length); 
+		this.counted = new Bitfield(client.destfile.pieces.length);
+		this.allowed_fast = new Bitfield(client.destfile.pieces.length);
+		this.allowed_fast_sent = new Bitfield(client.destfile.pieces.length);
+		this.suggested = new Bitfield(client.destfile.pieces.length);
+		this.rejected = new Bitfield(client.destfile.pieces.length);
+	}
+	
+	/**
+	 * @return true if both sides offered the Fast extension, so HAVE_ALL, HAVE_NONE, REJECT_REQUEST,
+	 * 		   ALLOWED_FAST and SUGGEST_PIECE may be exchanged and a choke no longer drops requests
+	 */
+	public boolean isFast(){
+		return fast;
+	}
+	
+	/**
+	 * @param fast true if the peer's handshake offered the Fast extension
+	 */
+	public void setFast(boolean fast){
+		this.fast = fast;
+	}
+	
+	/**
+	 * @return true if both sides offered the extension protocol, so extended messages may be exchanged
+	 */
+	public boolean isExtended(){
+		return extended;
+	}
+	
+	/**
+	 * @param extended true if the peer's handshake offered the extension protocol
+	 */
+	public void setExtended(boolean extended){
+		this.extended = extended;
+	}
+	
+	/**
+	 * @param name name of an extension
+	 * @return id the peer gave the extension in its extended handshake, 0 if it does not support it
+	 */
+	public int getExtensionId(String name){
+		Integer id = extension_ids.get(name);
+		return id == null ? 0 : id;
+	}
+	
+	/**
+	 * @param extension_ids ids the peer gave extensions in its extended handshake, by name
+	 */
+	public void setExtensionIds(Map<String, Integer> extension_ids){
+		this.extension_ids = extension_ids;
+	}
+	
+	/**
+	 * @return pieces the peer lets us request while it chokes us
+	 */
+	public Bitfield getAllowedFast(){
+		return allowed_fast;
+	}
+	
+	/**
+	 * @return pieces we let the peer request while we choke it
+	 */
+	public Bitfield getAllowedFastSent(){
+		return allowed_fast_sent;
+	}
+	
+	/**
+	 * @param piece index of a piece the peer requested
+	 * @return true if we told the peer it may request the piece while we choke it
+	 */
+	public boolean isAllowedFastSent(int piece){
+		return piece >= 0 && piece < allowed_fast_sent.size() && allowed_fast_sent.get(piece);
+	}
+	
+	/**
+	 * @return pieces the peer suggested we download from it
+	 */
+	public Bitfield getSuggested(){
+		return suggested;
+	}
+	
+	/**
+	 * @return pieces the peer refused while unchoking us, cleared when it unchokes us again
+	 */
+	public Bitfield getRejected(){
+		return rejected;
+	}
+	
+	/**
+	 * @return true if we may send the peer a request, because it unchokes us or allows a piece it has while choking us
+	 */
+	public boolean canRequest(){
+		return !choked || allowed_fast.nextSetBitIn(0, bitfield, rejected, null) != -1;
+	}
+	
+	/**
+	 * @return pieces we may request of the peer now: every piece it has while it unchokes us, only its
+	 * 		   allowed fast pieces while it chokes us, less the pieces it rejected
+	 */
+	public Bitfield getRequestable(){
+		Bitfield requestable = choked ? bitfield.intersection(allowed_fast) : bitfield;
+		if (rejected.nextSetBit(0) != -1){
+			requestable = requestable.difference(rejected);
+		}
+		return requestable;
 	}
 
 	/**
@@ -503,6 +847,9 @@ public class Peer extends Thread {
 	 * @param b if we are choking the remote peer
 	 */
 	public void setChoking(boolean choking) {
+		if (choking != this.choking){
+			FlightEvents.choke(this, true, choking);
+		}
 		this.choking = choking;
 	}
 	
@@ -511,7 +858,7 @@ public class Peer extends Thread {
 	 * @return piece index of the last requested piece
 	 */
 	public int getLastRequestedPiece(){
-		return last_requested_piece;
+		return last_requested_piece.get();
 	}
 	
 	/**
@@ -519,7 +866,18 @@ public class Peer extends Thread {
 	 * @param last last requested piece index
 	 */
 	public void setLastRequestedPiece(int last){
-		this.last_requested_piece = last;
+		this.last_requested_piece.set(last);
+	}
+	
+	/**
+	 * Sets the last requested piece only if it is still the expected one. Tasks for a peer run concurrently,
+	 * so two of them may try to start or give up its piece at once
+	 * @param expected piece index the caller saw, -1 for none
+	 * @param last new piece index, -1 for none
+	 * @return true if the piece was replaced, false if another task changed it first
+	 */
+	public boolean replaceLastRequestedPiece(int expected, int last){
+		return this.last_requested_piece.compareAndSet(expected, last);
 	}
 
 	public void setRemoteInterested(boolean interested) {
@@ -0,0 +1,297 @@
+package RUBTClient;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.NetworkInterface;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.ConcurrentHashMap;
+
+import edu.rutgers.cs.cs352.bt.exceptions.BencodingException;
+import edu.rutgers.cs.cs352.bt.util.BencodeReader;
+import edu.rutgers.cs.cs352.bt.util.Bencoder2;
+
+/**
+ * Peer exchange (ut_pex) over the extension protocol. Each peer that supports it is sent the peers we
+ * are connected to right after its extended handshake, then every interval the peers connected and
+ * dropped since. Peers learned from other peers are connected to like peers from the tracker, so the
+ * client fills its connections without waiting for the next announce.
+ * <p>
+ * Learned peers are skipped if already connected, if they are us, or if tried within the retry time.
+ * They are also skipped once the client has rubt.pexMaxPeers connections. A peer's message is ignored
+ * if it arrives less than half an interval after its previous one, and only the first 50 added peers
+ * of a message are used. Only IPv4 peers are exchanged.
+ */
+public class PeerExchange implements ExtensionRegistry.Extension {
+
+	/** Name of the extension in the extended handshake */
+	public static final String NAME = "ut_pex";
+
+	private static final Log log = Log.get(PeerExchange.class);
+
+	//milliseconds between the messages sent to a peer
+	private static final long 	INTERVAL = Long.getLong("rubt.pexInterval", 60000L);
+	//connections past which learned peers are ignored, tracker peers and incoming peers are not limited
+	private static final int 	MAX_PEERS = Integer.getInteger("rubt.pexMaxPeers", 50);
+	//milliseconds before a learned address that was tried is tried again
+	private static final long 	RETRY = Long.getLong("rubt.pexRetry", 300000L);
+	//most peers added or dropped in one message
+	private static final int 	MAX_DELTA = 50;
+
+	private static final int 	FLAG_SEED = 0x02;			//the peer has every piece
+	private static final int 	FLAG_REACHABLE = 0x10;		//we connected to the peer, so it accepts connections
+	private static final byte[] KEY_ADDED = {'a','d','d','e','d'};
+
+	private final RUBTClient client;
+	private final Timer 	 timer = new Timer("pexTimer", true);
+
+	//compact addresses last sent to each peer, by address
+	private final ConcurrentHashMap<Peer, Map<String, byte[]>> advertised = new ConcurrentHashMap<Peer, Map<String, byte[]>>();
+	//System.currentTimeMillis() our last message to each peer was sent
+	private final ConcurrentHashMap<Peer, Long> last_sent = new ConcurrentHashMap<Peer, Long>();
+	//System.currentTimeMillis() each peer's last accepted message arrived
+	private final ConcurrentHashMap<Peer, Long> last_received = new ConcurrentHashMap<Peer, Long>();
+	//System.currentTimeMillis() each learned address was last tried
+	private final ConcurrentHashMap<String, Long> tried = new ConcurrentHashMap<String, Long>();
+
+	private final Metrics.Counter learned;
+	private final Metrics.Counter connects;
+
+	/**
+	 * @param client client whose peers are exchanged
+	 */
+	public PeerExchange(RUBTClient client){
+		this.client = client;
+		this.learned = client.destfile.metrics.counter("rubt_pex_peers_received_total", "Peers received through peer exchange");
+		this.connects = client.destfile.metrics.counter("rubt_pex_connects_total", "Connections started to peers received through peer exchange");
+	}
+
+	/**
+	 * Starts sending the peers connected and dropped every interval
+	 */
+	public void start(){
+		timer.scheduleAtFixedRate(new TimerTask(){
+			public void run(){
+				exchange();
+			}
+		}, INTERVAL, INTERVAL);
+	}
+
+	/**
+	 * Stops sending
+	 */
+	public void stop(){
+		timer.cancel();
+	}
+
+	public String getName(){
+		return NAME;
+	}
+
+	public void peerSupports(Peer peer){
+		sendDelta(peer);
+	}
+
+	@SuppressWarnings("rawtypes")
+	public void messageReceived(Peer peer, ByteBuffer payload) throws BencodingException{
+		long now = System.currentTimeMillis();
+		Long last = last_received.get(peer);
+		if(last != null && now - last < INTERVAL / 2){
+			log.debug("peer exchange too frequent, ignored", "peer", peer);
+			return;
+		}
+		last_received.put(peer, now);
+		//only the added list is used, it is read in place rather than decoding and copying the whole message
+		byte[] source = payload.array();
+		int[] span = new BencodeReader(source, payload.arrayOffset() + payload.position(), payload.remaining(), false).findValue(KEY_ADDED);
+		if(span != null && source[span[0]] >= '0' && source[span[0]] <= '9'){
+			ByteBuffer added = new BencodeReader(source, span[0], span[1] - span[0], true).readString();
+			connect(peer, source, added.arrayOffset() + added.position(), added.remaining(), now);
+		}
+	}
+
+	/**
+	 * Sends every supporting peer its delta and forgets the state of peers that left
+	 */
+	private void exchange(){
+		long now = System.currentTimeMillis();
+		for(Peer peer: client.peers.toArray(new Peer[0])){
+			Long last = last_sent.get(peer);
+			//a peer sent its first message shortly before this tick waits for the next, well clear of the receiving side's half interval
+			if(peer.getExtensionId(NAME) != 0 && (last == null || now - last >= INTERVAL * 3 / 4)){
+				sendDelta(peer);
+			}
+		}
+		for(Iterator<Peer> it = advertised.keySet().iterator(); it.hasNext();){
+			if(!client.peers.contains(it.next())){
+				it.remove();
+			}
+		}
+		for(Iterator<Peer> it = last_sent.keySet().iterator(); it.hasNext();){
+			if(!client.peers.contains(it.next())){
+				it.remove();
+			}
+		}
+		for(Iterator<Peer> it = last_received.keySet().iterator(); it.hasNext();){
+			if(!client.peers.contains(it.next())){
+				it.remove();
+			}
+		}
+		for(Iterator<Long> it = tried.values().iterator(); it.hasNext();){
+			if(now - it.next() >= RETRY){
+				it.remove();
+			}
+		}
+	}
+
+	/**
+	 * Sends a peer the peers connected and dropped since its last message, or every connected peer
+	 * the first time. Nothing is sent when nothing changed
+	 * @param peer Peer that supports peer exchange
+	 */
+	private synchronized void sendDelta(Peer peer){
+		Map<String, byte[]> previous = advertised.get(peer);
+		Map<String, byte[]> current = new LinkedHashMap<String, byte[]>();
+		Map<String, Integer> flags = new HashMap<String, Integer>();
+		for(Peer other: client.peers.toArray(new Peer[0])){
+			byte[] address = other.getAddress();
+			if(other == peer || address == null || address.length != 4 || other.getPort() <= 0 || other.getPort() > 0xFFFF){
+				continue;	//unknown listening port, or IPv6
+			}
+			byte[] compact = ByteBuffer.allocate(6).put(address).putShort((short)other.getPort()).array();
+			String key = address(compact, 0);
+			current.put(key, compact);
+			flags.put(key, (other.getBitfield().isComplete() ? FLAG_SEED : 0) | (other.isIncoming() ? 0 : FLAG_REACHABLE));
+		}
+		Map<String, byte[]> sent = previous == null ? new HashMap<String, byte[]>() : new HashMap<String, byte[]>(previous);
+		ByteBuffer added = ByteBuffer.allocate(MAX_DELTA * 6);
+		ByteBuffer added_flags = ByteBuffer.allocate(MAX_DELTA);
+		for(Map.Entry<String, byte[]> entry: current.entrySet()){
+			if(!added_flags.hasRemaining()){
+				break;		//the rest go in the next message
+			}
+			if(!sent.containsKey(entry.getKey())){
+				added.put(entry.getValue());
+				added_flags.put((byte)(int)flags.get(entry.getKey()));
+				sent.put(entry.getKey(), entry.getValue());
+			}
+		}
+		ByteBuffer dropped = ByteBuffer.allocate(MAX_DELTA * 6);
+		for(Iterator<Map.Entry<String, byte[]>> it = sent.entrySet().iterator(); it.hasNext() && dropped.hasRemaining();){
+			Map.Entry<String, byte[]> entry = it.next();
+			if(!current.containsKey(entry.getKey())){
+				dropped.put(entry.getValue());
+				it.remove();
+			}
+		}
+		if(previous != null && added.position() == 0 && dropped.position() == 0){
+			return;
+		}
+		HashMap<ByteBuffer, Object> message = new HashMap<ByteBuffer, Object>();
+		message.put(ExtensionRegistry.key("added"), ByteBuffer.wrap(Arrays.copyOf(added.array(), added.position())));
+		message.put(ExtensionRegistry.key("added.f"), ByteBuffer.wrap(Arrays.copyOf(added_flags.array(), added_flags.position())));
+		message.put(ExtensionRegistry.key("dropped"), ByteBuffer.wrap(Arrays.copyOf(dropped.array(), dropped.position())));
+		try {
+			if(client.getExtensions().send(peer, NAME, Bencoder2.encode(message))){
+				advertised.put(peer, sent);
+				last_sent.put(peer, System.currentTimeMillis());
+			}
+		}catch (BencodingException e){
+			log.error("could not encode peer exchange", e);
+			return;
+		}
+		if(log.isEnabled(Log.TRACE)){
+			log.trace("peer exchange sent", "peer", peer, "added", added.position() / 6, "dropped", dropped.position() / 6);
+		}
+	}
+
+	/**
+	 * Connects to the peers a peer sent that are new to us, within the connection limit
+	 * @param source Peer the addresses came from
+	 * @param compact array holding addresses in compact form, 4 address bytes and 2 port bytes each
+	 * @param offset offset of the first address in the array
+	 * @param length length of the addresses in bytes
+	 * @param now System.currentTimeMillis()
+	 */
+	private void connect(Peer source, byte[] compact, int offset, int length, long now){
+		Set<String> known = new HashSet<String>();
+		for(Peer peer: client.peers.toArray(new Peer[0])){
+			known.add(listenAddress(peer));
+		}
+		for(Peer peer: client.blocking_peers.toArray(new Peer[0])){
+			known.add(listenAddress(peer));
+		}
+		int room = MAX_PEERS - known.size();
+		int count = Math.min(length / 6, MAX_DELTA);
+		learned.add(count);
+		List<Peer> fresh = new ArrayList<Peer>();
+		for(int i = 0; i < count && fresh.size() < room; i++){
+			String address = address(compact, offset + i * 6);
+			int port = ((compact[offset + i * 6 + 4] & 0xFF) << 8) | (compact[offset + i * 6 + 5] & 0xFF);
+			String ip = address.substring(0, address.lastIndexOf(':'));
+			if(port == 0 || known.contains(address) || isSelf(ip, port)){
+				continue;
+			}
+			Long last = tried.get(address);
+			if(last != null && now - last < RETRY){
+				continue;
+			}
+			tried.put(address, now);
+			known.add(address);
+			fresh.add(new Peer(ip, null, port));
+		}
+		if(fresh.isEmpty()){
+			return;
+		}
+		connects.add(fresh.size());
+		log.debug("peers from peer exchange", "source", source, "received", count, "connecting", fresh.size());
+		client.addPeers(fresh);
+	}
+
+	/**
+	 * @return ip:port of a compact address
+	 */
+	private static String address(byte[] compact, int offset){
+		return (compact[offset] & 0xFF) + "." + (compact[offset + 1] & 0xFF) + "." + (compact[offset + 2] & 0xFF) + "." + (compact[offset + 3] & 0xFF)
+				+ ":" + (((compact[offset + 4] & 0xFF) << 8) | (compact[offset + 5] & 0xFF));
+	}
+
+	/**
+	 * @return ip:port the peer accepts connections on, with port 0 when it is not known
+	 */
+	private static String listenAddress(Peer peer){
+		if(peer.getIp() != null){
+			return peer.getIp() + ":" + peer.getPort();
+		}
+		byte[] address = peer.getAddress();
+		if(address == null || address.length != 4){
+			return peer.toString();
+		}
+		return address(ByteBuffer.allocate(6).put(address).putShort((short)peer.getPort()).array(), 0);
+	}
+
+	/**
+	 * @return true if ip and port are our own listening socket
+	 */
+	private boolean isSelf(String ip, int port){
+		if(port != client.getPort()){
+			return false;
+		}
+		try {
+			InetAddress address = InetAddress.getByName(ip);	//a literal address, nothing is looked up
+			return address.isLoopbackAddress() || address.isAnyLocalAddress() || NetworkInterface.getByInetAddress(address) != null;
+		}catch (IOException e){
+			return false;
+		}
+	}
+}
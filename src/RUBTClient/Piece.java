@@ -1,5 +1,7 @@
 package RUBTClient;
 
+import java.nio.ByteBuffer;
+
 /**
  * @author Manuel Lopez
  * @author Ben Green
@@ -8,45 +10,101 @@ package RUBTClient;
  */
 
 public class Piece {
-	
-	/**
-	 * @field data data of the piece
-	 */
-	public byte[] data;
+
+	private final int size;
+	private ByteBuffer buffer;		//borrowed from the PieceBufferPool only while the piece is in flight
 	private int offset;
-	
+
 	/**
 	 * @param size size of the piece object
 	 */
 	public Piece(int size)
 	{
-		this.data = new byte[size];
+		this.size = size;
 		this.offset = -1;
 	}
-	
+
 	/**
 	 * @return the offset
 	 */
-	public int getOffset() {
+	public synchronized int getOffset() {
 		return offset;
 	}
-	
+
+	/**
+	 * @return size of the piece in bytes
+	 */
+	public int getSize()
+	{
+		return size;
+	}
+
+	/**
+	 * @return the assembled data, from position 0 to the size of the piece, or null if the piece has no buffer
+	 */
+	public synchronized ByteBuffer getData()
+	{
+		if(buffer == null){
+			return null;
+		}
+		ByteBuffer data = buffer.duplicate();
+		data.clear();
+		data.limit(size);
+		return data;
+	}
+
 	/**
-	 * @return the data byte[]
+	 * Takes the buffer away from the piece once all of its blocks have arrived, so only one caller ever gets it
+	 * @return the assembled data, from position 0 to the size of the piece, or null if the piece has no buffer
 	 */
-	public byte[] getData()
+	public synchronized ByteBuffer takeData()
 	{
+		ByteBuffer data = getData();
+		detach();
 		return data;
 	}
 	
+	/**
+	 * @return true if the piece holds a buffer to assemble into
+	 */
+	public synchronized boolean hasBuffer()
+	{
+		return buffer != null;
+	}
+
+	/**
+	 * @param buffer buffer from the pool to assemble the piece into
+	 */
+	public synchronized void attach(ByteBuffer buffer)
+	{
+		this.buffer = buffer;
+		this.offset = -1;
+	}
+
+	/**
+	 * Takes the buffer away from the piece, so blocks arriving later are dropped
+	 * @return the buffer, to be returned to the pool, or null if the piece had none
+	 */
+	public synchronized ByteBuffer detach()
+	{
+		ByteBuffer detached = this.buffer;
+		this.buffer = null;
+		this.offset = -1;
+		return detached;
+	}
+
 	/**
 	 * @param data  - fresh chunk of data
 	 * @param offset - where in the piece to begin writing the data
 	 */
-	public void assemble(byte[] data, int offset){
-		for(int i = 0; i < data.length; i++){
-			this.data[offset+i] = data[i];
+	public synchronized void assemble(byte[] data, int offset){
+		if(buffer == null || offset < 0 || offset + data.length > size){
+			return;		//piece was cleared or committed while this block was on the way
 		}
+		ByteBuffer target = buffer.duplicate();
+		target.clear();
+		target.position(offset);
+		target.put(data);
 		this.offset = offset;
 	}
 }
@@ -0,0 +1,75 @@
+package RUBTClient;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+
+/**
+ * Bounded pool of piece sized buffers. Pieces borrow a buffer while they are being downloaded and give
+ * it back once they are written to disk, so memory use follows the number of pieces in flight rather
+ * than the size of the torrent. Buffers are created lazily up to the limit and then reused.
+ */
+public class PieceBufferPool {
+
+	private final int 				buffer_size;
+	private final int 				max_buffers;
+	private final boolean 			direct;
+	private final ArrayDeque<ByteBuffer> free = new ArrayDeque<ByteBuffer>();
+	private int 					created;
+
+	/**
+	 * @param buffer_size size of every buffer, the torrent's piece length
+	 * @param max_buffers most buffers that may exist at once
+	 * @param direct true for direct buffers, which storage can write without an extra copy
+	 */
+	public PieceBufferPool(int buffer_size, int max_buffers, boolean direct){
+		this.buffer_size = buffer_size;
+		this.max_buffers = max_buffers;
+		this.direct = direct;
+	}
+
+	/**
+	 * @return a cleared buffer, or null if every buffer is already borrowed
+	 */
+	public synchronized ByteBuffer tryAcquire(){
+		ByteBuffer buffer = free.poll();
+		if(buffer == null){
+			if(created >= max_buffers){
+				return null;
+			}
+			buffer = direct ? ByteBuffer.allocateDirect(buffer_size) : ByteBuffer.allocate(buffer_size);
+			created++;
+		}
+		buffer.clear();
+		return buffer;
+	}
+
+	/**
+	 * @param buffer buffer borrowed from this pool
+	 */
+	public synchronized void release(ByteBuffer buffer){
+		if(buffer != null){
+			free.push(buffer);
+		}
+	}
+
+	/**
+	 * @return number of buffers currently borrowed
+	 */
+	public synchronized int inUse(){
+		return created - free.size();
+	}
+
+	/**
+	 * @return number of buffers that may be borrowed before the pool runs dry
+	 */
+	public synchronized int available(){
+		return max_buffers - inUse();
+	}
+
+	/**
+	 * @return most buffers that may exist at once
+	 */
+	public int getMaxBuffers(){
+		return max_buffers;
+	}
+}
@@ -0,0 +1,341 @@
+package RUBTClient;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Decides which piece to request from a peer. Pieces with a deadline come first; everything else is
+ * picked by priority, rarest first within a priority. Skipped pieces are only requested when they are
+ * given a deadline through setDeadline.
+ * <p>
+ * In streaming mode the pieces just after a read cursor get deadlines, the piece at the cursor soonest
+ * and each following piece a little later, so playback can start within seconds and keep going. When
+ * more than half of the time a claimed piece had to meet its deadline has passed, a second peer may be
+ * given the same piece. It continues after the last block assembled so far, so the two peers finish the
+ * piece together and whichever sends the last block commits it. The claim and the buffer of a duplicated
+ * piece are only given up once every peer holding it has released it.
+ */
+public class PiecePicker {
+
+	//number of pieces after the cursor that get deadlines
+	private static final int 	STREAM_WINDOW = Integer.getInteger("rubt.streamWindow", 8);
+	//milliseconds until the piece at the cursor is needed
+	private static final long 	STREAM_STARTUP = Long.getLong("rubt.streamStartup", 2000L);
+	//playback rate in bytes per second, spacing the deadlines of the following pieces
+	private static final long 	STREAM_RATE = Long.getLong("rubt.streamRate", 512L * 1024);
+	//peers downloading a piece at once, counting the one that claimed it
+	private static final int 	MAX_PEERS_PER_PIECE = 2;
+
+	/**
+	 * @field PRIORITY_SKIP Piece is not downloaded
+	 */
+	public static final int PRIORITY_SKIP = 0;
+	/**
+	 * @field PRIORITY_LOW Piece is downloaded once no normal or high priority piece is left to request
+	 */
+	public static final int PRIORITY_LOW = 1;
+	/**
+	 * @field PRIORITY_NORMAL Priority every piece starts with
+	 */
+	public static final int PRIORITY_NORMAL = 2;
+	/**
+	 * @field PRIORITY_HIGH Piece is downloaded before normal and low priority pieces
+	 */
+	public static final int PRIORITY_HIGH = 3;
+
+	private static final String[] PRIORITY_NAMES = {"skip", "low", "normal", "high"};
+
+	private final PieceStates 		states;
+	private final Piece[] 			pieces;
+	private final rarityMachine 	rarity;
+	private final long 				piece_millis;		//playback time of one piece
+
+	private final AtomicLongArray 		deadlines;		//absolute milliseconds, 0 for none
+	private final AtomicLongArray 		claimed_at;		//when the piece was last claimed
+	private final List<Set<Object>> 	holders;		//peers downloading each piece, locked on the set
+	private final Bitfield 				urgent;			//pieces given a deadline through setDeadline
+	private final Bitfield[] 			priorities;		//pieces of each priority but skip, highest last
+
+	private volatile boolean 	streaming;
+	private volatile int 		cursor;
+
+	/**
+	 * @param states state of every piece
+	 * @param pieces pieces of the torrent, to see which ones are being assembled
+	 * @param rarity availability of every piece among connected peers
+	 * @param piece_length length of every piece but the last
+	 */
+	public PiecePicker(PieceStates states, Piece[] pieces, rarityMachine rarity, int piece_length){
+		this.states = states;
+		this.pieces = pieces;
+		this.rarity = rarity;
+		this.piece_millis = Math.max(1, piece_length * 1000L / Math.max(1, STREAM_RATE));
+		this.deadlines = new AtomicLongArray(pieces.length);
+		this.claimed_at = new AtomicLongArray(pieces.length);
+		this.holders = new ArrayList<Set<Object>>(pieces.length);
+		for(int i = 0; i < pieces.length; i++){
+			this.holders.add(new HashSet<Object>(MAX_PEERS_PER_PIECE));
+		}
+		this.urgent = new Bitfield(pieces.length);
+		this.priorities = new Bitfield[PRIORITY_HIGH + 1];
+		for(int priority = PRIORITY_LOW; priority <= PRIORITY_HIGH; priority++){
+			this.priorities[priority] = new Bitfield(pieces.length);
+		}
+		for(int i = 0; i < pieces.length; i++){
+			this.priorities[PRIORITY_NORMAL].set(i);
+		}
+		this.streaming = Boolean.getBoolean("rubt.streaming");
+	}
+
+	/**
+	 * Picks and claims a piece for a peer
+	 * @param available pieces the peer has
+	 * @param holder the peer, which holds the piece until it calls release or unpick
+	 * @return index of the piece to request, which may already be claimed by a peer that is falling
+	 * 		   behind its deadline, or -1 if the peer has nothing we need
+	 */
+	public int pick(Bitfield available, Object holder){
+		long now = System.currentTimeMillis();
+
+		if(streaming){
+			int k = 0;
+			for(int i = states.getComplete().nextClearBit(cursor); i != -1 && k < STREAM_WINDOW; i = states.getComplete().nextClearBit(i + 1), k++){
+				//deadlines are given the first time a piece is seen in the window
+				if(getPriority(i) == PRIORITY_SKIP){
+					continue;
+				}
+				deadlines.compareAndSet(i, 0, now + STREAM_STARTUP + k * piece_millis);
+				if(available.get(i)){
+					int picked = claimOrDuplicate(i, now, holder);
+					if(picked != -1){
+						return picked;
+					}
+				}
+			}
+		}
+
+		for(int i = urgent.nextSetBitAndNot(0, states.getComplete()); i != -1; i = urgent.nextSetBitAndNot(i + 1, states.getComplete())){
+			if(available.get(i)){
+				int picked = claimOrDuplicate(i, now, holder);
+				if(picked != -1){
+					return picked;
+				}
+			}
+		}
+
+		//rarest first for everything else, rescanning if another peer claims the rarest piece first
+		for(int priority = PRIORITY_HIGH; priority > PRIORITY_SKIP; priority--){
+			int piece;
+			while((piece = rarity.rarestPiece(available, priorities[priority])) != -1){
+				if(claim(piece, now, holder)){
+					return piece;
+				}
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * @param available pieces a peer has
+	 * @return the first piece the peer has that is neither complete, claimed nor skipped, or -1, without claiming it
+	 */
+	public int firstWanted(Bitfield available){
+		int first = -1;
+		for(int priority = PRIORITY_LOW; priority <= PRIORITY_HIGH; priority++){
+			int piece = available.nextSetBitIn(0, priorities[priority], states.getComplete(), states.getClaimed());
+			if(piece != -1 && (first == -1 || piece < first)){
+				first = piece;
+			}
+		}
+		return first;
+	}
+
+	/**
+	 * Changes the priority of a piece, pieces being downloaded when they are skipped are still finished
+	 * @param piece index of the piece
+	 * @param priority one of PRIORITY_SKIP, PRIORITY_LOW, PRIORITY_NORMAL and PRIORITY_HIGH
+	 */
+	public synchronized void setPriority(int piece, int priority){
+		if(priority < PRIORITY_SKIP || priority > PRIORITY_HIGH){
+			throw new IllegalArgumentException("priority " + priority);
+		}
+		//add to the new priority before leaving the old one, so the piece is never skipped by accident
+		if(priority != PRIORITY_SKIP){
+			priorities[priority].set(piece);
+		}
+		for(int other = PRIORITY_LOW; other <= PRIORITY_HIGH; other++){
+			if(other != priority){
+				priorities[other].clear(piece);
+			}
+		}
+	}
+
+	/**
+	 * @param name skip, low, normal or high
+	 * @return the priority with that name, or -1 if there is none
+	 */
+	public static int parsePriority(String name){
+		for(int priority = PRIORITY_SKIP; priority <= PRIORITY_HIGH; priority++){
+			if(PRIORITY_NAMES[priority].equalsIgnoreCase(name)){
+				return priority;
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * @param piece index of the piece
+	 * @return priority of the piece
+	 */
+	public int getPriority(int piece){
+		for(int priority = PRIORITY_HIGH; priority > PRIORITY_SKIP; priority--){
+			if(priorities[priority].get(piece)){
+				return priority;
+			}
+		}
+		return PRIORITY_SKIP;
+	}
+
+	/**
+	 * Hands back a piece returned by pick that could not be requested after all
+	 * @param piece index of the piece
+	 * @param holder the peer it was picked for
+	 */
+	public void unpick(int piece, Object holder){
+		if(release(piece, holder)){
+			states.release(piece);
+		}
+	}
+
+	/**
+	 * Takes a peer off a piece it stopped downloading
+	 * @param piece index of the piece
+	 * @param holder the peer
+	 * @return true if the peer was the last one holding the piece, so its claim and buffer are to be given up;
+	 * 		   false if another peer is still downloading it, or the peer no longer held it
+	 */
+	public boolean release(int piece, Object holder){
+		Set<Object> held = holders.get(piece);
+		synchronized(held){
+			return held.remove(holder) && held.isEmpty();
+		}
+	}
+
+	/**
+	 * Forgets the deadline and holders of a piece that was verified
+	 * @param piece index of the piece
+	 */
+	public void pieceCompleted(int piece){
+		urgent.clear(piece);
+		deadlines.set(piece, 0);
+		Set<Object> held = holders.get(piece);
+		synchronized(held){
+			held.clear();
+		}
+	}
+
+	/**
+	 * Gives a piece a deadline, so it is requested before pieces without one
+	 * @param piece index of the piece
+	 * @param deadline absolute time in milliseconds the piece is needed by
+	 */
+	public void setDeadline(int piece, long deadline){
+		if(states.isComplete(piece)){
+			return;
+		}
+		long current;
+		do {
+			current = deadlines.get(piece);
+		} while((current == 0 || deadline < current) && !deadlines.compareAndSet(piece, current, deadline));
+		urgent.set(piece);
+	}
+
+	/**
+	 * Moves the read cursor, the pieces after it get fresh deadlines
+	 * @param piece index of the piece that is read next
+	 */
+	public void setCursor(int piece){
+		if(piece < 0 || piece >= pieces.length){
+			throw new IllegalArgumentException("piece " + piece + " of " + pieces.length);
+		}
+		//forget the deadlines of the window being left, unless someone asked for them explicitly
+		int k = 0;
+		for(int i = states.getComplete().nextClearBit(cursor); i != -1 && k < STREAM_WINDOW; i = states.getComplete().nextClearBit(i + 1), k++){
+			if(!urgent.get(i)){
+				deadlines.set(i, 0);
+			}
+		}
+		cursor = piece;
+	}
+
+	/**
+	 * Moves the read cursor to the piece holding a byte of the torrent
+	 * @param offset offset in the torrent that is read next
+	 * @param piece_length length of every piece but the last
+	 */
+	public void setCursorOffset(long offset, int piece_length){
+		setCursor((int)Math.min(pieces.length - 1, offset / piece_length));
+	}
+
+	/**
+	 * @return index of the piece that is read next
+	 */
+	public int getCursor(){
+		return cursor;
+	}
+
+	/**
+	 * @param streaming true to give the pieces after the cursor deadlines
+	 */
+	public void setStreaming(boolean streaming){
+		this.streaming = streaming;
+	}
+
+	/**
+	 * @return true if the pieces after the cursor get deadlines
+	 */
+	public boolean isStreaming(){
+		return streaming;
+	}
+
+	private boolean claim(int piece, long now, Object holder){
+		if(!states.claim(piece)){
+			return false;
+		}
+		claimed_at.set(piece, now);
+		Set<Object> held = holders.get(piece);
+		synchronized(held){
+			held.clear();		//peers left over from a claim whose piece failed its hash
+			held.add(holder);
+		}
+		return true;
+	}
+
+	/**
+	 * @return the piece if it was claimed or may be duplicated, -1 otherwise
+	 */
+	private int claimOrDuplicate(int piece, long now, Object holder){
+		if(claim(piece, now, holder)){
+			return piece;
+		}
+		long deadline = deadlines.get(piece);
+		if(deadline == 0 || !states.isClaimed(piece) || !pieces[piece].hasBuffer()){
+			return -1;		//complete, being hashed, or not in a hurry
+		}
+		long started = claimed_at.get(piece);
+		if(now - started < (deadline - started) / 2){
+			return -1;		//the peer downloading it still has time
+		}
+		Set<Object> held = holders.get(piece);
+		synchronized(held){
+			//an empty set means the last holder is giving the piece up, its buffer is about to go
+			if(held.isEmpty() || held.size() >= MAX_PEERS_PER_PIECE || !held.add(holder)){
+				return -1;
+			}
+		}
+		return piece;
+	}
+}
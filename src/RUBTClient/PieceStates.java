@@ -0,0 +1,124 @@
+package RUBTClient;
+
+/**
+ * Lock-free table of where every piece is: missing, claimed by a peer that is downloading it, or
+ * complete. Transitions are compare-and-set operations on two bitfields, so any number of peers can
+ * claim and complete pieces at once and exactly one of them wins each piece.
+ * <p>
+ * A piece is completed by setting its complete bit before clearing its claimed bit, so a thread that
+ * sees neither bit set knows the piece really is missing.
+ */
+public class PieceStates {
+
+	private final Bitfield complete;
+	private final Bitfield claimed;
+
+	/**
+	 * @param size number of pieces, all initially missing
+	 */
+	public PieceStates(int size){
+		this.complete = new Bitfield(size);
+		this.claimed = new Bitfield(size);
+	}
+
+	/**
+	 * missing to claimed
+	 * @param piece index of the piece
+	 * @return true if this call claimed the piece, false if it was claimed or complete already
+	 */
+	public boolean claim(int piece){
+		if(complete.get(piece) || !claimed.set(piece)){
+			return false;
+		}
+		if(complete.get(piece)){
+			//completed between the check and the claim
+			claimed.clear(piece);
+			return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Claims the first piece a peer has that is neither complete nor claimed
+	 * @param available pieces the peer has
+	 * @return index of the claimed piece, or -1 if the peer has nothing left to claim
+	 */
+	public int claimNext(Bitfield available){
+		int piece = available.nextSetBitAndNot(0, complete, claimed);
+		while(piece != -1){
+			if(claim(piece)){
+				return piece;
+			}
+			//another peer won this one, keep scanning after it
+			piece = available.nextSetBitAndNot(piece + 1, complete, claimed);
+		}
+		return -1;
+	}
+
+	/**
+	 * claimed to missing
+	 * @param piece index of the piece
+	 * @return true if the piece was claimed
+	 */
+	public boolean release(int piece){
+		return claimed.clear(piece);
+	}
+
+	/**
+	 * missing or claimed to complete
+	 * @param piece index of the piece
+	 * @return true if this call completed the piece, false if it was complete already
+	 */
+	public boolean complete(int piece){
+		boolean completed = complete.set(piece);
+		claimed.clear(piece);
+		return completed;
+	}
+
+	/**
+	 * complete to missing, for a piece whose data was lost
+	 * @param piece index of the piece
+	 * @return true if the piece was complete
+	 */
+	public boolean reset(int piece){
+		return complete.clear(piece);
+	}
+
+	/**
+	 * @param piece index of the piece
+	 * @return true if the piece is complete
+	 */
+	public boolean isComplete(int piece){
+		return complete.get(piece);
+	}
+
+	/**
+	 * @param piece index of the piece
+	 * @return true if a peer is downloading the piece
+	 */
+	public boolean isClaimed(int piece){
+		return claimed.get(piece);
+	}
+
+	/**
+	 * @param available pieces a peer has
+	 * @return the first piece the peer has that is neither complete nor claimed, or -1, without claiming it
+	 */
+	public int firstWanted(Bitfield available){
+		return available.nextSetBitAndNot(0, complete, claimed);
+	}
+
+	/**
+	 * @return the complete pieces, a live view
+	 */
+	public Bitfield getComplete(){
+		return complete;
+	}
+
+	/**
+	 * @return the claimed pieces, a live view
+	 */
+	public Bitfield getClaimed(){
+		return claimed;
+	}
+}
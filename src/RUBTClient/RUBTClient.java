@@ -4,10 +4,15 @@ import java.io.*;
 import java.util.*;
 import java.net.Socket;
 import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.net.ServerSocket;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
 
 import edu.rutgers.cs.cs352.bt.TorrentInfo;
 import edu.rutgers.cs.cs352.bt.exceptions.BencodingException;
@@ -26,17 +31,17 @@ import edu.rutgers.cs.cs352.bt.exceptions.BencodingException;
 public class RUBTClient extends Thread{
 	
 	/**
-	 * tracker of the client
+	 * trackers of the client, in announce-list tiers
 	 */
-	public Tracker 	tracker;					
+	public TrackerList 	trackers;					
 	/**
 	 * destination file that the client is downloading into
 	 */
 	public DestFile destfile;
 	/**
-	 * amount client has uploaded
+	 * amount client has uploaded, added to by the disk threads that read blocks
 	 */
-	public int 		uploaded;					
+	public final AtomicLong uploaded = new AtomicLong();
 	/**
 	 * flag whether to keep our client running or not
 	 */
@@ -62,28 +67,65 @@ public class RUBTClient extends Thread{
 	 */
 	public ExecutorService 	workers = Executors.newCachedThreadPool();	
 	
+	private static final Log log = Log.get(RUBTClient.class);
+	
 	protected Socket 			 incomingSocket;
 	protected ServerSocket 		 serverSocket;
 	protected DataInputStream 	 listenInput;
 	protected DataOutputStream 	 listenOutput;
 	protected ConnectionListener listener;
 	
-	private int	 			port = 0;					
-	private int 			downloaded = 0;					
+	private volatile int	port = 0;					
+	private int 			first_port = Integer.getInteger("rubt.port", 6881);	//0 for any free port
+	private boolean 		console = true;				//read commands from standard input
+	private final AtomicLong 	downloaded = new AtomicLong();
 	private final int 		max_request = 16384;		
-	private static boolean 	seeding;
+	private volatile boolean seeding;
 
-	private int				unchokeLimit = 3;
+	private volatile int	unchokeLimit = Integer.getInteger("rubt.unchokeSlots", 3);
 	private volatile int   	unchokedPeers = 0;
+	private volatile boolean paused;			//neither downloading nor uploading, peers stay connected
+	
+	//bytes per second of piece messages, 0 for no limit
+	private final RateLimiter download_limit = new RateLimiter(Long.getLong("rubt.downloadLimit", 0L));
+	private final RateLimiter upload_limit = new RateLimiter(Long.getLong("rubt.uploadLimit", 0L));
 	
 
 	private final Timer 		trackerTimer = new Timer("trackerTimer",true);						
 	private TrackerAnnounceTask trackerTask;
+	private final TrackerCallback trackerCallback = new TrackerCallback(this);
 
 	private final Timer 		optimisticTimer = new Timer("optimisticTimer",true);
 	private OptimisticChokeTask optimisticTask;
 	
 	private final LinkedBlockingQueue<MessageTask> tasks = new LinkedBlockingQueue<MessageTask>();   
+	
+	//peers that had a piece to request while every piece buffer was in flight
+	private final ConcurrentLinkedQueue<Peer> starved_peers = new ConcurrentLinkedQueue<Peer>();
+	
+	//serves the download over HTTP while it downloads, null unless rubt.streamPort is set
+	private StreamServer 		streamServer;
+	//exposes destfile.metrics over JMX, and over HTTP when rubt.metricsPort is set
+	private MetricsExporter 	metricsExporter;
+	
+	private final Metrics.Counter 	bytes_received;
+	private final Metrics.Counter 	bytes_sent;
+	private final Metrics.Counter[] received_by_type = new Metrics.Counter[256];
+	private final Metrics.Counter[] sent_by_type = new Metrics.Counter[256];
+	private final Metrics.Histogram block_rtt;
+	private final Metrics.Histogram block_service;
+	
+	//extensions offered to peers over the extension protocol
+	private final ExtensionRegistry extensions = new ExtensionRegistry(this);
+	//swaps peer lists with peers, null for private torrents or when rubt.pex is false
+	private final PeerExchange 	peerExchange;
+	
+	//pieces we let each Fast extension peer request while we choke it
+	private static final int ALLOWED_FAST_PIECES = Integer.getInteger("rubt.allowedFast", 10);
+	//cached pieces suggested to each Fast extension peer that becomes interested
+	private static final int SUGGESTED_PIECES = Integer.getInteger("rubt.suggestPieces", 4);
+	//milliseconds shutdown waits for a tracker to answer the stopped event
+	private static final long STOP_TIMEOUT = Long.getLong("rubt.stopTimeout", 5000L);
 
 	
 	/**
@@ -93,14 +135,117 @@ public class RUBTClient extends Thread{
 	public RUBTClient(DestFile destfile){
 		this.destfile = destfile;
 		this.torrentinfo = destfile.getTorrentinfo();
-		this.tracker = new Tracker(this.torrentinfo.file_length);
+		this.trackers = new TrackerList(this.torrentinfo.announce_list, this.torrentinfo.file_length);
+		
+		Metrics metrics = destfile.metrics;
+		this.bytes_received = metrics.counter("rubt_peer_bytes_received_total", "Bytes of messages received from peers, length prefixes included");
+		this.bytes_sent = metrics.counter("rubt_peer_bytes_sent_total", "Bytes of messages sent to peers, handshakes included");
+		for (int id = 0; id < 256; id++){
+			String type = Message.typeName(id);
+			received_by_type[id] = metrics.counter("rubt_messages_received_total{type=\"" + type + "\"}", "Messages received from peers, by type");
+			sent_by_type[id] = metrics.counter("rubt_messages_sent_total{type=\"" + type + "\"}", "Messages sent to peers, by type");
+		}
+		this.block_rtt = metrics.timer("rubt_block_rtt_seconds", "Time from sending a request to its block starting to arrive");
+		this.block_service = metrics.timer("rubt_block_service_seconds", "Time from sending a request to its whole block being read");
+		registerGauges(metrics);
+		
+		//private torrents only get peers from their tracker
+		Object private_flag = torrentinfo.info_map.get(ExtensionRegistry.key("private"));
+		if (Boolean.parseBoolean(System.getProperty("rubt.pex", "true")) && !(private_flag instanceof Number && ((Number)private_flag).intValue() == 1)){
+			this.peerExchange = new PeerExchange(this);
+			this.extensions.register(peerExchange);
+		}else {
+			this.peerExchange = null;
+		}
+	}
+	
+	private void registerGauges(Metrics metrics){
+		metrics.gauge("rubt_task_queue_depth", "Messages waiting for the client event loop", new Metrics.Gauge(){
+			public long value(){
+				return tasks.size();
+			}
+		});
+		metrics.gauge("rubt_peers_connected", "Peers that completed the handshake", new Metrics.Gauge(){
+			public long value(){
+				return peers.size();
+			}
+		});
+		metrics.gauge("rubt_peers_connecting", "Peers we are connecting to", new Metrics.Gauge(){
+			public long value(){
+				return blocking_peers.size();
+			}
+		});
+		metrics.gauge("rubt_peers_starved", "Peers waiting for a piece buffer or for the disk", new Metrics.Gauge(){
+			public long value(){
+				return starved_peers.size();
+			}
+		});
+		metrics.gauge("rubt_peers{state=\"choking_us\"}", "Connected peers by choke and interest state", new PeerCount(this, PeerCount.CHOKING_US));
+		metrics.gauge("rubt_peers{state=\"choked_by_us\"}", "Connected peers by choke and interest state", new PeerCount(this, PeerCount.CHOKED_BY_US));
+		metrics.gauge("rubt_peers{state=\"interesting\"}", "Connected peers by choke and interest state", new PeerCount(this, PeerCount.INTERESTING));
+		metrics.gauge("rubt_peers{state=\"interested\"}", "Connected peers by choke and interest state", new PeerCount(this, PeerCount.INTERESTED));
+		metrics.gauge("rubt_peers{state=\"snubbed\"}", "Connected peers by choke and interest state", new PeerCount(this, PeerCount.SNUBBED));
+		metrics.gauge("rubt_downloaded_bytes", "Bytes of pieces downloaded and verified", new Metrics.Gauge(){
+			public long value(){
+				return downloaded.get();
+			}
+		});
+		metrics.gauge("rubt_uploaded_bytes", "Bytes of piece messages uploaded", new Metrics.Gauge(){
+			public long value(){
+				return uploaded.get();
+			}
+		});
+	}
+	
+	/**
+	 * Counts the connected peers in one choke or interest state when the metrics are read
+	 */
+	private static class PeerCount implements Metrics.Gauge {
+		
+		static final int CHOKING_US = 0;
+		static final int CHOKED_BY_US = 1;
+		static final int INTERESTING = 2;
+		static final int INTERESTED = 3;
+		static final int SNUBBED = 4;
+		
+		private final RUBTClient client;
+		private final int state;
+		
+		/**
+		 * @param client RUBTClient whose peers are counted
+		 * @param state one of the constants above
+		 */
+		public PeerCount(final RUBTClient client, int state){
+			this.client = client;
+			this.state = state;
+		}
+		
+		public long value(){
+			Peer[] array = client.peers.toArray(new Peer[0]);
+			long count = 0;
+			for (Peer peer: array){
+				boolean in_state;
+				switch (state){
+					case CHOKING_US: in_state = peer.isChoked(); break;
+					case CHOKED_BY_US: in_state = peer.isChoking(); break;
+					case INTERESTING: in_state = peer.isInterested(); break;
+					case SNUBBED: in_state = peer.isSnubbed(); break;
+					default: in_state = peer.isRemoteInterested(); break;
+				}
+				if (in_state){
+					count++;
+				}
+			}
+			return count;
+		}
 	}
 	
 	/**
 	 * main method parses torrent info file before spawning a RUBTClient thread to handle the bit torrent protocol
 	 * @param args 
 	 * arg1: name of torrent file with metadata of file to be downloaded
-	 * arg2: name of file that downloaded file will be saved if no such file exist
+	 * arg2: name of file that downloaded file will be saved if no such file exist, or the directory
+	 * the files of a multi-file torrent are saved in
 	 */
 	public static void main(String[] args){
 		
@@ -113,55 +258,86 @@ public class RUBTClient extends Thread{
 		//get user input arguments
 		String torrentname = args[0];
 		String destination = args[1];
-		//prepare file stream
-		FileInputStream fileInputStream = null;
-		File torrent = new File(torrentname);
 		
 		//extract torrent info from file specified in args
-		TorrentInfo torrentinfo = null;
-		
-		byte[] torrentbytes = new byte[(int)torrent.length()];
-		
+		TorrentInfo torrentinfo;
 		try {
-			fileInputStream = new FileInputStream(torrent);
-			fileInputStream.read(torrentbytes);
-			fileInputStream.close();
-		}catch (Exception e){
-			e.printStackTrace();
+			torrentinfo = loadTorrent(new File(torrentname));
+		}catch (IOException e){
+			log.error("could not read torrent file", e, "file", torrentname);
+			return;
+		}catch (BencodingException e){
+			log.error("could not decode torrent file", e, "file", torrentname);
+			return;
 		}
 		
+		RUBTClient client = create(torrentinfo, destination);
+		log.info("torrent loaded", "length", torrentinfo.file_length, "piece_length", torrentinfo.piece_length,
+				"pieces", torrentinfo.piece_hashes.length);
+		
+		AdminServer admin = null;
+		int admin_port = Integer.getInteger("rubt.adminPort", 0);
+		if (admin_port > 0){
+			try {
+				admin = new AdminServer(admin_port);
+				admin.add(client);
+				admin.start();
+			}catch (IOException e){
+				log.error("could not start admin server", e, "port", admin_port);
+				admin = null;
+			}
+		}
+		//spawns main client thread
+		client.start();
+		if (admin != null){
+			//torrents added through the admin server run alongside this one
+			admin.awaitClients();
+			admin.stop();
+		}
+	}
+	
+	/**
+	 * Reads and decodes a torrent file
+	 * @param torrent the .torrent file
+	 * @return metainfo of the torrent
+	 * @throws IOException if the file cannot be read
+	 * @throws BencodingException if the file is not a valid torrent
+	 */
+	public static TorrentInfo loadTorrent(File torrent) throws IOException, BencodingException{
+		byte[] torrentbytes = new byte[(int)torrent.length()];
+		DataInputStream input = new DataInputStream(new FileInputStream(torrent));
 		try {
-			torrentinfo = new TorrentInfo(torrentbytes);
-		} catch (BencodingException e) {
-			System.err.println("Beencoding Exception!");
-			e.printStackTrace();
+			input.readFully(torrentbytes);
+		}finally {
+			input.close();
 		}
-		
+		return new TorrentInfo(torrentbytes);
+	}
+	
+	/**
+	 * Sets up the files of a torrent, checking the pieces of any that already exist, and builds a client for it
+	 * @param torrentinfo torrent to download or seed
+	 * @param destination file to save a single-file torrent to, or directory for the files of a multi-file torrent
+	 * @return client ready to be started, seeding if every piece was already there
+	 */
+	public static RUBTClient create(TorrentInfo torrentinfo, String destination){
 		DestFile destfile = new DestFile(torrentinfo, destination);
 		
-		File mp4 = new File(destination);
-		boolean file_complete= false;
+		boolean file_complete = false;
 		
-		if (mp4.exists()){
+		if (destfile.exists()){
 			file_complete = destfile.checkExistingFile();
 		}else {
 			destfile.initializeRAF();
 		}
 		
-		if (file_complete){
-			seeding = true;
-		}
-		//builds bitfield based off of local mp3 file
-		
-		destfile.renewBitfield(); 
 		RUBTClient client = new RUBTClient(destfile); 
 		//set client field of destfile to current client for later tracker util
-		destfile.setClient(client);		
-		System.out.println(torrentinfo.file_length);
-		System.out.println(torrentinfo.piece_length);
-		System.out.println(torrentinfo.file_length/torrentinfo.piece_length);
-		//spawns main client thread
-		client.start();			
+		destfile.setClient(client);
+		if (file_complete){
+			client.setSeeding();
+		}
+		return client;
 	}
 	
 	/**
@@ -171,40 +347,164 @@ public class RUBTClient extends Thread{
 	private static class TrackerAnnounceTask extends TimerTask {
 		
 		private final RUBTClient client;
+		private final String event;
 		
 		/**
 		 * @param client RUBTClient object whose thread makes initial TrackerAnnounec Tasks
 		 * 		  and whose methods are use in TrackerAnnoucneTask run method
+		 * @param event event to announce, null for a periodic announcement
 		 */
-		public TrackerAnnounceTask(final RUBTClient client){
+		public TrackerAnnounceTask(final RUBTClient client, final String event){
 			this.client = client;
+			this.event = event;
 		}
 		
 		/**
-		 * At specified interval, TrackerAnnounceTask calls contactTracker from RUBTClient and adds the peers
-		 * returned from the tracker response. Ends with setting the new interval for the next TrackerAnnounceTask
+		 * At specified interval, TrackerAnnounceTask starts an asynchronous announce. The TrackerCallback adds
+		 * the peers returned from the tracker and schedules the next TrackerAnnounceTask
 		 */
 		public void run(){
-			//get list of peers from periodic tracker announcement (null for no event)
-			Response peer_list = this.client.contactTracker(null);
-			List<Peer> newPeers = peer_list.getValidPeers();
-			
+			this.client.announce(event);
+		}
+	}
+	
+	/**
+	 * Receives tracker responses on the tracker's announcer thread, hands the new peers to the client
+	 * and schedules the next announcement
+	 */
+	private static class TrackerCallback implements Tracker.AnnounceCallback {
+		
+		private static final int RETRY_INTERVAL = 30;	//seconds before the started event is retried
+		
+		private final RUBTClient client;
+		
+		/**
+		 * @param client RUBTClient whose peers and tracker timer are updated
+		 */
+		public TrackerCallback(final RUBTClient client){
+			this.client = client;
+		}
+		
+		public void announceSucceeded(String event, Response response){
+			if(event != null && (event.equals("stopped") || event.equals("completed"))){
+				return;
+			}
+			if(!this.client.keepRunning){
+				return;
+			}
 			//add peers to list of connected client peers and resets timer for next announcement 
-			this.client.addPeers(newPeers);  
-			
-			System.out.println("@@@@@@@@@@@@@@@@@@@@@@@@@@@@@    tracker timer     @@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@");
-			System.out.println("new interval: " + this.client.tracker.getInterval());
+			this.client.addPeers(response.getPeers());
 			
-			int interval = this.client.tracker.getInterval();
+			int interval = response.interval == null ? 0 : response.interval;
+			if(event == null){
+				log.debug("tracker interval", "interval", interval);
+				if(interval > 180  || interval < 60){
+					interval = 180;
+				}
+			}else if(interval <= 0 || interval >= 180){
+				//set tracker interval based on initial tracker response
+				interval = 120;
+			}
+			this.client.trackers.setInterval(interval);
+			this.client.scheduleAnnounce(null, interval);
+		}
+		
+		public void announceFailed(String event, Exception e){
+			log.warn("announce failed", e, "event", event);
 			
-			if(interval > 180  || interval < 60){
-				interval = 180;
+			if (event != null && event.equals("started")){
+				//every tier failed. keep serving incoming peers and try the started event again
+				log.warn("no tracker answered on startup", "retry_seconds", RETRY_INTERVAL);
+				this.client.scheduleAnnounce("started", RETRY_INTERVAL);
+			}else if (event == null){
+				this.client.scheduleAnnounce(null, this.client.trackers.getInterval());
+			}
+		}
+	}
+	
+	/**
+	 * Receives the outcome of checking a downloaded piece on a disk thread and hands it to a worker
+	 */
+	private static class PieceCommitCallback implements DestFile.PieceCallback {
+		
+		private final RUBTClient client;
+		private final Peer peer;
+		
+		/**
+		 * @param client RUBTClient the piece was downloaded by
+		 * @param peer Peer that sent the last block of the piece
+		 */
+		public PieceCommitCallback(final RUBTClient client, final Peer peer){
+			this.client = client;
+			this.peer = peer;
+		}
+		
+		public void pieceChecked(final int piece, final boolean valid){
+			//announcing the piece and requesting the next one write to sockets, which must not hold up the disk threads
+			this.client.afterDisk(new Runnable(){
+				public void run(){
+					client.pieceChecked(peer, piece, valid);
+				}
+			});
+		}
+	}
+	
+	/**
+	 * Sends a block read on a disk thread to the peer that requested it, from a worker
+	 */
+	private static class BlockSender implements DestFile.ReadCallback {
+		
+		private final RUBTClient client;
+		private final Peer peer;
+		
+		/**
+		 * @param client RUBTClient uploading the block
+		 * @param peer Peer that requested the block
+		 */
+		public BlockSender(final RUBTClient client, final Peer peer){
+			this.client = client;
+			this.peer = peer;
+		}
+		
+		public void readCompleted(final int piece, final int begin, final byte[] block){
+			this.client.afterDisk(new Runnable(){
+				public void run(){
+					send(piece, begin, block);
+				}
+			});
+		}
+		
+		private void send(int piece, int begin, byte[] block){
+			if (!this.client.peers.contains(this.peer)){
+				return;		//the peer left while the block was being read
 			}
-			this.client.trackerTimer.schedule(new TrackerAnnounceTask(this.client), interval * 1000);
+			if (this.peer.isChoking() && !this.peer.isAllowedFastSent(piece)){
+				//the peer was choked while the block was being read
+				if (this.peer.isFast()){
+					this.peer.sendMessage(new Message().reject(piece, begin, block.length));
+				}
+				return;
+			}
+			byte[] message = new Message().getPieceMessage(piece, begin, block);
+			this.peer.sent_bytes.addAndGet(message.length);
+			this.client.uploaded.addAndGet(message.length);
+			this.peer.sendMessage(message);  //sends it off to peer to be uploaded through the socket
 		}
 	}
 	
 	
+	/**
+	 * Runs the completion of a disk job on a worker, so a peer with a full TCP window never stalls hashing and writes
+	 * @param completion work to run
+	 */
+	private void afterDisk(Runnable completion){
+		try {
+			this.workers.execute(completion);
+		}catch (RejectedExecutionException e){
+			log.debug("disk completion dropped, the client is stopping");
+		}
+	}
+	
 	private static class OptimisticChokeTask extends TimerTask{
 		
 		private final RUBTClient client;
@@ -228,15 +528,13 @@ public class RUBTClient extends Thread{
 			double bytes_per_second = 0;
 			double lowest_bps = Integer.MAX_VALUE;
 			
-			if (client.peers.size() < 1) return;
+			if (client.peers.size() < 1 || client.paused) return;
 			
 			Peer dropped_peer = client.peers.get(0);
 			Peer picked_up_peer = null;
 			Message message = new Message();
 			
 			boolean seeding = client.getSeeding();  //replace this with an actual call the the client field
-			System.out.println("@@@@@@@@@@@@@@@@@@ Optomizely unchoking    @@@@@@@@@@@@@@@@@@@@@@@");
-			System.out.println("seeding: " + seeding);
 			for (Peer peer: client.peers){
 				if (!peer.isChoking()){
 					if (seeding){
@@ -245,7 +543,7 @@ public class RUBTClient extends Thread{
 						bytes_per_second = peer.received_bps;
 					}
 					
-					System.out.println(peer.getPeer_id() + " performance: " + bytes_per_second + "bps");
+					log.trace("unchoked peer rate", "peer", peer, "bytes_per_second", bytes_per_second);
 					
 					if(bytes_per_second <  lowest_bps){
 						lowest_bps = bytes_per_second;
@@ -266,7 +564,6 @@ public class RUBTClient extends Thread{
 				client.decrementUnchoked();
 			}
 			
-			System.out.println("Peer: " + dropped_peer.getPeer_id() + " has been choked");
 			
 			Random randomGenerator = new Random();
 			
@@ -275,10 +572,9 @@ public class RUBTClient extends Thread{
 				picked_up_peer.sendMessage(message.getUnchoke());
 				picked_up_peer.setChoking(false);
 				client.incrementUnchoked();
-				System.out.println("Peer: " + picked_up_peer.getPeer_id() + " has been unchoked");
 			}
-			System.out.println("downloaded "+ client.downloaded);
-			System.out.println("@@@@@@@@@@@@@  Optimizely Time done  @@@@@@@@@@@@");
+			log.debug("optimistic unchoke", "seeding", seeding, "choked", dropped_peer,
+					"unchoked", picked_up_peer, "downloaded", client.downloaded.get());
 		}
 	}
 	
@@ -300,7 +596,10 @@ public class RUBTClient extends Thread{
 
 		ShutdownHook hook = new ShutdownHook(this);
 		hook.attachShutdownHook();
-		startInputListener();
+		if (console){
+			startInputListener();
+		}
+		startStreamServer();
 		
 		final Message message = new Message();
 		//sends started event and then takes the list of valid peers
@@ -310,20 +609,12 @@ public class RUBTClient extends Thread{
 		//block until port is set by connection listener thread
 		while(this.port == 0){
 		}
-		Response peer_list = contactTracker("started");
-		//takes care of handshake verification and populates queue with initial tasks
-		addPeers(peer_list.getValidPeers());
-		{	
-			//set tracer interval based on initial tracker response and set timer
-			int interval = peer_list.interval;
-			if(interval <= 0 || interval >= 180){
-				interval = 120;
-			}
-			System.out.println("tracker announce interval: " + interval);
-			this.tracker.setInterval(interval);
-			trackerTask = new TrackerAnnounceTask(this);
-			this.trackerTimer.schedule(trackerTask, interval * 1000);
+		startMetricsExporter();
+		if (peerExchange != null){
+			peerExchange.start();
 		}
+		//peers from the started event are added by the TrackerCallback once the tracker answers
+		announce("started");
 		
 		/**
 		 * Main client thread event loop that runs until flag is set by user
@@ -346,63 +637,106 @@ public class RUBTClient extends Thread{
 						if (peer!= null && !peers.contains(peer)){
 							return;
 						}
+						//Fast extension messages are only allowed once both handshakes offered the extension
+						if (msg[0] >= Message.SUGGEST_PIECE && msg[0] <= Message.ALLOWED_FAST && !peer.isFast()){
+							peer.setConnected(false);
+							removePeer(peer);
+							return;
+						}
+						//extended messages go to the extension they are addressed to rather than through the switch
+						if (msg[0] == Message.EXTENDED){
+							if (!peer.isExtended() || !extensions.messageReceived(peer, msg)){
+								peer.setConnected(false);
+								removePeer(peer);
+							}
+							return;
+						}
 						switch(msg[0]){  
 
-							case Message.CHOKE:	//We were choked. Set peer status to choked
-								peer.setChoked(true);
-								clearProgress(peer);   //since we were choked, we clear all in progress downloads.
+							case Message.CHOKE:	//We were choked. The reader thread has set the peer status already
+								if (!peer.isFast()){
+									clearProgress(peer);   //since we were choked, we clear all in progress downloads.
+									if (!peer.isChoked()){
+										chooseAndRequestPiece(peer);	//the unchoke that followed was handled before this task
+									}
+								}	//a Fast extension peer rejects the requests it drops, or keeps answering an allowed fast piece
 								break;
-							case Message.UNCHOKE:  //We were unchoked. Set peer status to unchoked and find out what piece to request
-								peer.setChoked(false);
+							case Message.UNCHOKE:  //We were unchoked. The reader thread has set the peer status, find out what piece to request
 								chooseAndRequestPiece(peer);
 								break;			
 							case Message.INTERESTED: //Peer is interested in our data. Unchoke them
-								System.out.println("Peer " + peer.getPeer_id() + " sent interested");
+								log.debug("peer interested", "peer", peer);
 								peer.setRemoteInterested(true);
-								if (unchokedPeers < unchokeLimit){ //if we have less then 3 peers unchoked, we unchoke another peer
-									peer.sendMessage(message.getUnchoke());   
-									peer.setChoking(false);
-									incrementUnchoked();   //  increment the amount of peers we have unchoked
+								if (!paused){ //if we have fewer peers unchoked than the limit, we unchoke another peer
+									unchokeIfFree(peer);
+								}
+								if (!paused && peer.isFast()){
+									suggestCachedPieces(peer);
+								}
+								break;
+							case Message.NOT_INTERESTED:	//Peer wants nothing of ours. Its unchoke slot goes to a peer that does
+								peer.setRemoteInterested(false);
+								if (!paused){
+									freeUnchokeSlot(peer, true);
 								}
 								break;
 							case Message.HAVE:  //Peer has new piece. Update their bitfield and check conditions for requesting their piece
+								byte[] piece_bytes = new byte[4];
+								System.arraycopy(msg, 1, piece_bytes, 0, 4); //gets the piece number bytes from the piece message
+								int piece = ByteBuffer.wrap(piece_bytes).getInt();
+								if (piece < 0 || piece >= destfile.pieces.length){
+									peer.setConnected(false);
+									removePeer(peer);
+									return;
+								}
+								peer.getBitfield().set(piece);
+								destfile.myRarityMachine.updatePeer(piece, peer.getCounted());	//counted once, even if its bitfield had it
+								if (paused){
+									break;
+								}
 								if (peer.isChoked()){
-									byte[] piece_bytes = new byte[4];
-									System.arraycopy(msg, 1, piece_bytes, 0, 4); //gets the piece number bytes from the piece message
-									int piece = ByteBuffer.wrap(piece_bytes).getInt();
-		
-									destfile.manualMod(peer.getBitfield(), piece, true);
-									
 									if(destfile.firstNewPiece(peer.getBitfield()) != -1 && !peer.getFirstSent()){
 										peer.setInterested(true);
 										peer.setFirstSent(true);
 										peer.sendMessage(message.getInterested());
 									}
-									else{
-										//destfile.myRarityMachine.updatePeer(peer.getPeer_id(),piece);
-									}
+								}else if (!peer.isInterested() && destfile.firstNewPiece(peer.getBitfield()) != -1){
+									//we lost interest earlier, the new piece is one we want
+									peer.setInterested(true);
+									peer.sendMessage(message.getInterested());
+									chooseAndRequestPiece(peer);
 								}
 								break;
+							case Message.HAVE_ALL:	//Peer has every piece or none, the reader thread has set its bitfield already
+							case Message.HAVE_NONE:
 							case Message.BITFIELD:  //Peer sent bitfield. Update peers bitfield and disconnect if not sent at right time
 								if (!peer.getFirstSent()){
 									peer.setFirstSent(true);
-									//destfile.myRarityMachine.addPeer(peer.getPeer_id(),peer.getBitfield());
+									destfile.myRarityMachine.addPeer(peer.getBitfield(), peer.getCounted());
 								}else {
 									peer.setConnected(false);
 									removePeer(peer);
 									return;
 								}
 								//check if they have a piece we want. If so, request it
-								if (destfile.firstNewPiece(peer.getBitfield()) != -1){ 
+								if (!paused && destfile.firstNewPiece(peer.getBitfield()) != -1){ 
 									peer.setInterested(true);
 									peer.sendMessage(message.getInterested());
+									chooseAndRequestPiece(peer);	//starts on an allowed fast piece while choked
 								}
 								break;
 							case Message.REQUEST:	//Peer wants our piece. Check choked state and send chunk
+								if (paused || (peer.isChoking() && !peer.isAllowedFastSent(ByteBuffer.wrap(msg, 1, 4).getInt()))){
+									//the peer was choked, a Fast extension peer is told instead of being left waiting
+									if (peer.isFast()){
+										peer.sendMessage(message.reject(ByteBuffer.wrap(msg, 1, 4).getInt(), ByteBuffer.wrap(msg, 5, 4).getInt(), ByteBuffer.wrap(msg, 9, 4).getInt()));
+									}
+									break;
+								}
 								if(!isValidRequest(msg,peer)){  //if the request is not valid or we are currently choking the peer, we disconnect the peer
 									if(!peer.isChoking()){
 									peer.setConnected(false);
-									System.out.println("REQUEST CLOSING CONNECTION");
+									log.warn("invalid request, disconnecting", "peer", peer);
 									removePeer(peer);
 									}
 								}
@@ -414,17 +748,70 @@ public class RUBTClient extends Thread{
 								}else {
 									//increment recieved bytes
 									peer.received_bytes += msg.length;
+									if (ByteBuffer.wrap(msg, 1, 4).getInt() != peer.getLastRequestedPiece()){
+										//answers a request given up on when the peer choked or snubbed us
+										if (peer.getLastRequestedPiece() == -1){
+											chooseAndRequestPiece(peer);
+										}
+										break;
+									}
 									getNextBlock(msg,peer);
 								}
 								break;
+							case Message.REJECT_REQUEST:	//Peer will not answer a request. Give the piece back and try another
+								int rejected = ByteBuffer.wrap(msg, 1, 4).getInt();
+								if (rejected != peer.getLastRequestedPiece()){
+									break;		//a request we already gave up on
+								}
+								//the reader thread has recorded the piece as rejected or no longer allowed, by the choke state it arrived in
+								log.debug("request rejected", "peer", peer, "piece", rejected);
+								clearProgress(peer);
+								chooseAndRequestPiece(peer);
+								break;
+							case Message.ALLOWED_FAST:	//Peer lets us request a piece while it chokes us
+								int allowed = ByteBuffer.wrap(msg, 1, 4).getInt();
+								if (allowed < 0 || allowed >= destfile.pieces.length){
+									break;
+								}
+								peer.getAllowedFast().set(allowed);
+								if (peer.isChoked() && peer.getLastRequestedPiece() == -1){
+									chooseAndRequestPiece(peer);
+								}
+								break;
+							case Message.SUGGEST_PIECE:	//Peer suggests a piece it can send quickly. Picked first when we are idle
+								int suggested = ByteBuffer.wrap(msg, 1, 4).getInt();
+								if (suggested < 0 || suggested >= destfile.pieces.length){
+									break;
+								}
+								peer.getSuggested().set(suggested);
+								if (peer.getLastRequestedPiece() == -1){
+									chooseAndRequestPiece(peer);
+								}
+								break;
+							case Message.SNUBBED:	//Peer left a request unanswered too long. Let other peers download its piece
+								log.info("peer snubbed us", "peer", peer, "pending", peer.getPendingRequests());
+								clearProgress(peer);
+								break;
 							case Message.QUIT:	 	//User has input quit command. Disconnect from all peers and set loop flag to false to exit
 								endEventLoop();
 								break;
+							case Message.PAUSE:		//Admin API actions, queued so they run like every other event rather than on the admin thread
+								pauseTransfers();
+								break;
+							case Message.RESUME:
+								resumeTransfers();
+								break;
+							case Message.RECHECK:
+								recheck();
+								break;
+							case Message.UNCHOKE_SLOTS:
+								applyUnchokeSlots(ByteBuffer.wrap(msg, 1, 4).getInt());
+								break;
 						}
 					}
 				});
 			}catch (InterruptedException ie){
-				System.err.println("caught interrupt. continuing anyway");
+				log.warn("interrupted waiting for a task, continuing");
 			}
 		}
 		cleanUp();
@@ -470,10 +857,11 @@ public class RUBTClient extends Thread{
 	
 	/**
 	 * 
-	 * Pushed MessageTask object into tasks queue for client to process in event loop
+	 * Pushed MessageTask object into tasks queue for client to process in event loop. Not synchronized, so a
+	 * reader thread never waits on the unchoke slot methods, which write to sockets under the client lock
 	 * @param task MessageTask to be pushed into the client's queue
 	 */
-	public synchronized  void addMessageTask(MessageTask task){
+	public void addMessageTask(MessageTask task){
 		tasks.add(task);
 	}
 	
@@ -481,24 +869,58 @@ public class RUBTClient extends Thread{
 	 * Picks which piece to be requested from a remote peer
 	 * @param peer Peer that the selected piece is being requested from
 	 */
-	public synchronized void chooseAndRequestPiece(final Peer peer){
+	public void chooseAndRequestPiece(final Peer peer){
 		int current_piece = 0;
 	   	int offset_counter = 0;
 	   	Message current_message = new Message();
 	   	byte[] request_message;
-		if (!peer.isChoked() && peer.isInterested()){ //if our peer is unchoked and we are interested
+		if (peer.getLastRequestedPiece() != -1){
+			return;		//already downloading a piece, e.g. an allowed fast piece when the peer unchokes us
+		}
+		if (!paused && peer.canRequest() && peer.isInterested() && !peer.isSnubbed()){ //if our peer is unchoked or allows a piece, we are interested and it answers requests
 			
+			if (destfile.isDiskCongested()){
+				//the disk is behind, this peer is fed again once room is made
+				starvePeer(peer);
+				return;
+			}
+			//claims the piece atomically so no other peer picks it, unless it is a duplicate of a piece falling behind its deadline.
 			//returns -1 when peer has no piece that we need
-			current_piece = destfile.firstNewPiece(peer.getBitfield());
-			//System.out.println("Printing remote peer bitfield");
-			//DestFile.printBitfield(peer.getBitfield(), this.destfile.expectedbytes);
-			//current_piece = destfile.myRarityMachine.rarestPiece(peer.getBitfield());
+			Bitfield requestable = peer.getRequestable();
+			current_piece = -1;
+			if (!destfile.picker.isStreaming() && peer.getSuggested().nextSetBit(0) != -1){
+				//pieces the peer suggested are in its cache, so they come fastest. Streaming keeps its own order
+				current_piece = destfile.picker.pick(requestable.intersection(peer.getSuggested()), peer);
+				if (current_piece != -1){
+					peer.getSuggested().clear(current_piece);
+				}
+			}
+			if (current_piece == -1){
+				current_piece = destfile.picker.pick(requestable, peer);
+			}
+			if (current_piece == -1 && peer.isChoked()){
+				return;		//no allowed fast piece is wanted, the peer may still have others once it unchokes us
+			}
 			if (current_piece == -1){
+				//peer only has pieces we have, are downloading from someone else, or skipped
 				peer.setInterested(false);
+				peer.sendMessage(current_message.getNot_interested());
 				return;
 			}
-			destfile.markInProgress(current_piece);  //marks this piece as in progress
-			peer.setLastRequestedPiece(current_piece);
+			if (!peer.replaceLastRequestedPiece(-1, current_piece)){
+				//another task for the peer started a piece first
+				destfile.picker.unpick(current_piece, peer);
+				return;
+			}
+			if (!destfile.claimBuffer(current_piece)){
+				//every piece buffer is in flight, give the piece back until a buffer is released
+				if (peer.replaceLastRequestedPiece(current_piece, -1)){
+					destfile.picker.unpick(current_piece, peer);
+				}
+				starvePeer(peer);
+				return;
+			}
+			FlightEvents.pieceClaimed(current_piece, peer);
 	 	   	offset_counter = destfile.pieces[current_piece].getOffset();
 			if (offset_counter != -1){
 				offset_counter += max_request;
@@ -507,12 +929,14 @@ public class RUBTClient extends Thread{
 			}
 	   		request_message = current_message.request(current_piece, offset_counter, max_request);
 	   		
-	   		System.out.println("requesting piece " + current_piece);
+	   		if (log.isEnabled(Log.DEBUG)){
+	   			log.debug("requesting piece", "peer", peer, "piece", current_piece, "begin", offset_counter);
+	   		}
 			peer.sendMessage(request_message);
 	   	}
 	}
 	
-	private synchronized void addChunk(int piece, int offset,byte[] data){
+	private void addChunk(int piece, int offset,byte[] data){
 		byte[] chunk = new byte[data.length-9];
 		System.arraycopy(data, 9, chunk, 0, data.length-9);
 		destfile.pieces[piece].assemble(chunk,offset);
@@ -528,41 +952,30 @@ public class RUBTClient extends Thread{
 		System.arraycopy(block, 1, piece_bytes, 0, 4); //gets the piece number bytes from the piece message
 		int offset = ByteBuffer.wrap(offset_bytes).getInt();  //wraps the offset bytes in a buffer and converts them into an int
 		int piece = ByteBuffer.wrap(piece_bytes).getInt();
+		if (paused){
+			clearProgress(peer);	//the block raced pauseTransfers, its piece is given up like the others
+			return;
+		}
 		
 		//peer.recieved_bytes += block.length;
 
 		
+		//index and length of the irregular last piece, computed in long arithmetic for files over 2 GB
+		int last_piece = (int)(torrentinfo.file_length / torrentinfo.piece_length);
+		int last_piece_length = (int)(torrentinfo.file_length % torrentinfo.piece_length);
+		
 		addChunk(piece,offset,block);  //places the chunk of data into a piece
-		if ((piece == torrentinfo.file_length / torrentinfo.piece_length) && (offset + 2 * max_request > torrentinfo.file_length % torrentinfo.piece_length)){//checks if we are at the last chunk of the last piece
-			small_request = (torrentinfo.file_length%torrentinfo.piece_length)%max_request;
+		if ((piece == last_piece) && (offset + 2 * max_request > last_piece_length)){//checks if we are at the last chunk of the last piece
+			small_request = last_piece_length % max_request;
 			
-			if (small_request + offset == torrentinfo.file_length % torrentinfo.piece_length){//just got back the last chunk of the last piece
-				if(destfile.addPiece(piece)){ //if our piece verifies, we send have messages to everyone
-					this.downloaded += destfile.pieces[piece].data.length;
-					System.out.println("Giving the last piece");
-					
-					System.out.println("Downloaded "+ downloaded);
-					
-					Peer[] array = peers.toArray(new Peer[peers.size()]);
-					
-					//for(Peer all_peer: this.peers){
-						//System.out.println("Sending a have");
-						//all_peer.sendMessage(message.getHaveMessage(piece_bytes));
-					//}
-					for(int i = 0; i < array.length; i++){
-						array[i].sendMessage(message.getHaveMessage(piece_bytes));
-					}
-					
-					chooseAndRequestPiece(peer);
-				}
-				else{
-					removePeer(peer);
-				}
+			if (small_request + offset == last_piece_length){//just got back the last chunk of the last piece
+				commitPiece(piece, peer);
 			}else {
-				small_request = (torrentinfo.file_length%torrentinfo.piece_length) % max_request;
+				small_request = last_piece_length % max_request;
 				request = message.request(piece, offset + max_request, small_request);
-				if (peer.isChoked()){			
-	   				System.out.println("got choked out");
+				if (peer.isChoked() && !peer.getAllowedFast().get(piece)){			
+	   				log.trace("choked mid piece", "piece", piece);
+	   				clearProgress(peer);		//a Fast extension peer answered the requests it had when it choked us
 	   				return;
 	   			}else {
 					peer.sendMessage(request);
@@ -570,20 +983,11 @@ public class RUBTClient extends Thread{
 			}
 			
 		}else if (offset + max_request == torrentinfo.piece_length){ 	//checks if we got the last chunk of a piece
-			if (destfile.addPiece(piece)){
-				this.downloaded += destfile.pieces[piece].data.length;
-				
-				for (Peer all_peer: this.peers){
-					all_peer.sendMessage(message.getHaveMessage(piece_bytes));
-				}
-				chooseAndRequestPiece(peer); 		//figures out the next piece to request
-			}
-			else {
-				removePeer(peer);
-			}
+			commitPiece(piece, peer);
 		}else {
-			if (peer.isChoked()){			
-   				System.out.println("got choked out");
+			if (peer.isChoked() && !peer.getAllowedFast().get(piece)){			
+   				log.trace("choked mid piece", "piece", piece);
+   				clearProgress(peer);
    				return;
    			}else {
 				request = message.request(piece, offset + max_request, max_request);
@@ -593,38 +997,106 @@ public class RUBTClient extends Thread{
 	}
 	
 	/**
-	 * Contacts tracker with a specified 
+	 * Hands a piece whose blocks have all arrived to the disk threads to be verified and written
+	 * @param piece index of the piece
+	 * @param peer Peer that sent the last block
+	 */
+	private void commitPiece(int piece, Peer peer){
+		if (!destfile.addPiece(piece, new PieceCommitCallback(this, peer))){
+			//another peer given the same piece committed it first
+			peer.replaceLastRequestedPiece(piece, -1);
+			chooseAndRequestPiece(peer);
+		}
+	}
+	
+	/**
+	 * Announces a verified piece to every peer and requests the next piece, or drops the peer that sent a bad piece
+	 * @param peer Peer that sent the last block of the piece
+	 * @param piece index of the piece
+	 * @param valid true if the piece verified
+	 */
+	private void pieceChecked(Peer peer, int piece, boolean valid){
+		FlightEvents.pieceDownloaded(piece, peer, valid);
+		if (!valid){
+			removePeer(peer);
+			return;
+		}
+		Message message = new Message();
+		byte[] piece_bytes = ByteBuffer.allocate(4).putInt(piece).array();
+		peer.replaceLastRequestedPiece(piece, -1);		//unless the peer gave the piece up and moved on while it was hashed
+		long total = this.downloaded.addAndGet(destfile.pieces[piece].getSize());
+		if (log.isEnabled(Log.DEBUG)){
+			log.debug("piece downloaded", "piece", piece, "peer", peer, "downloaded", total);
+		}
+		
+		Peer[] array = peers.toArray(new Peer[peers.size()]);
+		for(int i = 0; i < array.length; i++){
+			array[i].sendMessage(message.getHaveMessage(piece_bytes));
+		}
+		chooseAndRequestPiece(peer); 		//figures out the next piece to request
+		feedStarvedPeers();
+	}
+	
+	/**
+	 * Contacts tracker with a specified event and blocks until it answers, retries included. Only used
+	 * where the caller has to wait for the tracker
 	 * @param event Name of event to be sent to the tracker
-	 * @return Response Object that a new list of peers can be parsed
+	 * @return Response Object that a new list of peers can be parsed, null if the tracker could not be reached
 	 */
 	public Response contactTracker(String event){
-		this.tracker.updateProgress(this.torrentinfo.file_length - this.destfile.incomplete, this.uploaded);
-		this.tracker.constructURL(this.torrentinfo.announce_url.toString(), this.torrentinfo.info_hash, this.port);
-		byte[] response_string = null;
+		prepareAnnounce();
 		try{
-			response_string = this.tracker.requestPeerList(event);
+			return this.trackers.announce(event);
 		}catch (Exception e){
-			System.err.println("exception thrown requesting peer list from tracker");
-			e.printStackTrace();
-
-			if (event == null || event.equals("stopped")  || event.equals("completed") ){
-				System.err.println("RUBTClient contactTracker(): ");
-			}else if (event.equals("started")){
-				System.err.println("RUBTClient contactTracker(): failed to contact tracker on startup. quitting ...");
-				quitClientLoop();
-			}
+			log.warn("announce failed", e, "event", event);
 		}
-		
-		if (response_string == null){
-			System.err.println("RUBTClient contactTracker(): null response from tracker");
-			quitClientLoop();
-		}
-		
+		return null;
+	}
+	
+	/**
+	 * Announces an event to the tracker without blocking the calling thread. Peers from the
+	 * response are added and the next announcement is scheduled by the TrackerCallback
+	 * @param event Name of event to be sent to the tracker, null for a regular announcement
+	 */
+	public void announce(String event){
+		prepareAnnounce();
 		if(event != null && event.equals("completed")){
-			System.out.println("\n  \n  ***************completed*************  \n \n ");
-			System.out.println("incomplete: " + this.destfile.incomplete);
+			log.info("download completed", "incomplete", this.destfile.getIncomplete());
 		}
-		return (new Response(response_string));
+		this.trackers.announceAsync(event, trackerCallback);
+	}
+	
+	/**
+	 * Announces the stopped event without retries, waiting at most rubt.stopTimeout milliseconds so a
+	 * dead tracker cannot hold up shutdown. Announces still running are dropped by trackers.shutdown()
+	 */
+	private void announceStopped(){
+		prepareAnnounce();
+		try {
+			if(!this.trackers.announceWithin("stopped", STOP_TIMEOUT)){
+				log.warn("no tracker answered the stopped event", "timeout_ms", STOP_TIMEOUT);
+			}
+		}catch (InterruptedException e){
+			Thread.currentThread().interrupt();
+		}
+	}
+	
+	private void prepareAnnounce(){
+		this.trackers.updateProgress(this.torrentinfo.file_length - this.destfile.getIncomplete(), this.uploaded.get());
+		this.trackers.constructURL(this.torrentinfo.info_hash, this.port);
+	}
+	
+	/**
+	 * Schedules the next tracker announcement
+	 * @param event event to announce, null for a regular announcement
+	 * @param interval seconds until the announcement
+	 */
+	private synchronized void scheduleAnnounce(String event, int interval){
+		if(!keepRunning){
+			return;
+		}
+		trackerTask = new TrackerAnnounceTask(this, event);
+		this.trackerTimer.schedule(trackerTask, interval * 1000);
 	}
 	
 	/**
@@ -641,49 +1113,125 @@ public class RUBTClient extends Thread{
 	 */
 	public void removePeer(Peer peer){
 		if (peers.contains(peer)){
-			System.out.println("closing connections for peer " + peer.getPeer_id());
+			log.debug("removing peer", "peer", peer, "blocks", peer.getRtt().getCount(), "rtt_p50", peer.getRtt().getQuantile(0.5));
 			clearProgress(peer);
 			peer.closeConnections();
-			peers.remove(peer);
+			if (peers.remove(peer)){
+				destfile.myRarityMachine.deletePeer(peer.getCounted());
+				freeUnchokeSlot(peer, false);
+			}
 		}
 	}
 	
 	/**
-	 * Check to see if we have been issued a valid request, if true composes and sends the piece data
+	 * Check to see if we have been issued a valid request, if true queues the read and sends the piece data once it is read
 	 * @param message Request message in question
 	 * @return true if we have the piece request, false if otherwise
 	 */
 	private boolean isValidRequest(byte[] message,Peer peer){
-		Message piece_message = new Message();
 		byte[]	index_bytes= new byte[4];
 		byte[]  begin_bytes = new byte[4];
 		byte[]  length_bytes = new byte[4];
-		byte[] piece;
 		System.arraycopy(message, 1, index_bytes, 0, 4);
 		System.arraycopy(message, 5, begin_bytes, 0, 4);
 		System.arraycopy(message, 9, length_bytes, 0, 4); 
 		int index = ByteBuffer.wrap(index_bytes).getInt();  //wraps the offset bytes in a buffer and converts them into an int
 		int begin = ByteBuffer.wrap(begin_bytes).getInt();
 		int length = ByteBuffer.wrap(length_bytes).getInt();
-		if((length > max_request || length <= 0)|| (index > destfile.pieces.length || index < 0) || (begin < 0 || begin > torrentinfo.piece_length)){
+		if((length > max_request || length <= 0)|| (index >= destfile.pieces.length || index < 0) || (begin < 0 || begin + length > destfile.pieces[index].getSize())
+				|| !destfile.hasPiece(index)){
 			//checks if any of the fields in the request method are invalid
 			return false;
 		}
-		piece = piece_message.getPieceMessage(destfile, index_bytes, length, begin_bytes);  //gets a piece message
-		peer.sent_bytes += piece.length;
-		uploaded += piece.length;
-		peer.sendMessage(piece);  //sends it off to peer to be uploaded through the socket
+		try {
+			upload_limit.acquire(length + 13);
+		}catch (InterruptedException e){
+			Thread.currentThread().interrupt();
+			return true;
+		}
+		destfile.readPieceData(index, begin, length, new BlockSender(this, peer));  //the piece message is sent from a disk thread
 		return true;
 	}
 	
+	/**
+	 * Tells a Fast extension peer which of our pieces it may request while we choke it, so a new peer
+	 * has pieces to trade before it is first unchoked. The set is the canonical one of BEP 6, derived
+	 * from the peer's address and the info hash, so a peer reconnecting gets the same pieces
+	 * @param peer Peer that just finished its handshake
+	 */
+	void allowFast(Peer peer){
+		byte[] address = peer.getAddress();
+		if (address == null || address.length != 4){
+			return;		//the canonical set is only defined for IPv4
+		}
+		Message message = new Message();
+		for (int piece: allowedFastSet(address, torrentinfo.info_hash.array(), destfile.pieces.length, ALLOWED_FAST_PIECES)){
+			if (destfile.hasPiece(piece)){
+				peer.getAllowedFastSent().set(piece);
+				peer.sendMessage(message.allowedFast(piece));
+			}
+		}
+	}
+	
+	/**
+	 * @param address IPv4 address of the peer
+	 * @param info_hash info hash of the torrent
+	 * @param pieces number of pieces of the torrent
+	 * @param count pieces wanted
+	 * @return the allowed fast set of BEP 6, in the order it is generated
+	 */
+	static int[] allowedFastSet(byte[] address, byte[] info_hash, int pieces, int count){
+		int[] set = new int[Math.min(count, pieces)];
+		int size = 0;
+		byte[] x = new byte[24];
+		System.arraycopy(address, 0, x, 0, 3);		//the last byte is masked off, peers on one /24 share a set
+		System.arraycopy(info_hash, 0, x, 4, 20);
+		MessageDigest sha1;
+		try {
+			sha1 = MessageDigest.getInstance("SHA-1");
+		}catch (NoSuchAlgorithmException e){
+			log.error("SHA-1 unavailable", e);
+			return new int[0];
+		}
+		while (size < set.length){
+			x = sha1.digest(x);
+			for (int i = 0; i < 5 && size < set.length; i++){
+				int index = (int)((ByteBuffer.wrap(x, i * 4, 4).getInt() & 0xFFFFFFFFL) % pieces);
+				boolean seen = false;
+				for (int j = 0; j < size; j++){
+					seen |= set[j] == index;
+				}
+				if (!seen){
+					set[size++] = index;
+				}
+			}
+		}
+		return set;
+	}
+	
+	/**
+	 * Suggests to a Fast extension peer the pieces most recently read for uploads that it lacks. They are
+	 * still in the read cache, so serving them costs no disk reads
+	 * @param peer Peer that became interested
+	 */
+	private void suggestCachedPieces(Peer peer){
+		Message message = new Message();
+		for (int piece: destfile.getReadCache().getRecentPieces(SUGGESTED_PIECES)){
+			if (!peer.getBitfield().get(piece)){
+				peer.sendMessage(message.suggestPiece(piece));
+			}
+		}
+	}
+	
 	/**
 	 *Disconnects all currently connected peers and closes listener socket
 	 */
 	public void closeAllConnections(){
-		for(Peer peer: this.peers){
+		//copies, closing a socket makes a worker remove its peer from the lists
+		for(Peer peer: this.peers.toArray(new Peer[0])){
 			peer.closeConnections();
 		}
-		for(Peer peer: this.blocking_peers){
+		for(Peer peer: this.blocking_peers.toArray(new Peer[0])){
 			peer.closeConnections();
 		}
 		
@@ -694,9 +1242,9 @@ public class RUBTClient extends Thread{
 			if(listenInput  != null) listenInput.close();
 			
 		} catch (IOException e) {
-			System.err.println("RUBTClient.java closeAllConnections: error while shuting down listener port");
+			log.warn("could not close listener", e);
 		}
-		System.out.println("All connections closed");
+		log.info("all connections closed");
 	}
 	
 	/**
@@ -709,6 +1257,14 @@ public class RUBTClient extends Thread{
 		addMessageTask(quit_task);
 	}
 	
+	/**
+	 * Queues an action for the event loop, as peer messages are, so it does not race the workers handling them
+	 * @param action Message.PAUSE, Message.RESUME or Message.RECHECK
+	 */
+	public void queueAction(byte action){
+		addMessageTask(new MessageTask(null, new Message().getActionMessage(action)));
+	}
+	
 	
 	/**
 	 * Graceful shutdown closes all peer connections and listener sockets,
@@ -716,16 +1272,106 @@ public class RUBTClient extends Thread{
 	 * all worker threads in CachedThreadPool
 	 */
 	public void cleanUp(){
-		closeAllConnections();
-		contactTracker("stopped");
+		try {
+			if(streamServer != null) streamServer.stop();
+			if(metricsExporter != null) metricsExporter.stop();
+			if(peerExchange != null) peerExchange.stop();
+			closeAllConnections();
+		}catch (RuntimeException e){
+			log.error("could not close connections", e);
+		}finally {
+			//verified pieces may still be in the write cache, they are flushed whatever failed above
+			try {
+				destfile.close();
+			}finally {
+				announceStopped();
+			}
+		}
 		
-		trackerTask.cancel();
+		if(trackerTask != null) trackerTask.cancel();
 		trackerTimer.cancel();
-		optimisticTask.cancel();
+		if(optimisticTask != null) optimisticTask.cancel();
 		optimisticTimer.cancel();
+		this.trackers.shutdown();
 		
 		this.workers.shutdownNow();
-		System.out.println("Ending Client Program");
+		log.info("client stopped");
+		Log.flush();
+	}
+	
+	private void startMetricsExporter(){
+		int metrics_port = Integer.getInteger("rubt.metricsPort", 0);
+		byte[] hash = torrentinfo.info_hash.array();
+		String id = String.format("%02x%02x%02x%02x-%d", hash[0], hash[1], hash[2], hash[3], port);
+		try {
+			metricsExporter = new MetricsExporter(destfile.metrics, id);
+			metricsExporter.start(metrics_port);
+		}catch (Exception e){
+			log.error("could not export metrics", e);
+		}
+	}
+	
+	/**
+	 * Counts a message written to a peer
+	 * @param message the whole message, length prefix included
+	 */
+	void messageSent(byte[] message){
+		bytes_sent.add(message.length);
+		if (message.length > 4 && message[0] != 0x13){		//handshakes start with the length of the protocol name
+			sent_by_type[message[4] & 0xFF].increment();
+		}
+	}
+	
+	/**
+	 * Records how long a peer took to answer a request
+	 * @param rtt nanoseconds from sending the request to the block starting to arrive
+	 * @param service nanoseconds from sending the request to the whole block being read
+	 */
+	void blockTimed(long rtt, long service){
+		block_rtt.record(rtt);
+		block_service.record(service);
+	}
+	
+	/**
+	 * Counts a message read from a peer
+	 * @param message the message without its length prefix
+	 */
+	void messageReceived(byte[] message){
+		bytes_received.add(message.length + 4);
+		received_by_type[message[0] & 0xFF].increment();
+	}
+	
+	private void startStreamServer(){
+		int stream_port = Integer.getInteger("rubt.streamPort", 0);
+		if(stream_port <= 0){
+			return;
+		}
+		try {
+			streamServer = new StreamServer(destfile, stream_port);
+			streamServer.start();
+		}catch (IOException e){
+			log.error("could not start stream server", e, "port", stream_port);
+		}
+	}
+	
+	/**
+	 * Handles the console command priority &lt;file&gt; &lt;skip|low|normal|high&gt;
+	 * @param words the command split on whitespace
+	 */
+	private void setFilePriority(String[] words){
+		int priority = PiecePicker.parsePriority(words[2]);
+		int file;
+		try {
+			file = Integer.parseInt(words[1]);
+		}catch (NumberFormatException e){
+			file = -1;
+		}
+		if(priority == -1 || file < 0 || file >= torrentinfo.files.length){
+			System.out.println("usage: priority <file 0-" + (torrentinfo.files.length - 1) + "> <skip|low|normal|high>");
+			return;
+		}
+		setFilePriority(file, priority);
+		System.out.println("file " + file + " priority " + words[2]);
 	}
 	
 	private void startInputListener(){
@@ -736,11 +1382,15 @@ public class RUBTClient extends Thread{
 			public void run(){
 				Scanner scanner = new Scanner(System.in);
 				while(true){
-					if(scanner.nextLine().equals("quit")){
+					String line = scanner.nextLine();
+					String[] words = line.trim().split("\\s+");
+					if(line.equals("quit")){
 						quitClientLoop();
 						break;
+					}else if(words.length == 3 && words[0].equals("priority")){
+						setFilePriority(words);
 					}else{
-						System.out.println("incorrect input. try typing \"quit\"");
+						System.out.println("incorrect input. try typing \"quit\" or \"priority <file> <skip|low|normal|high>\"");
 					}
 				}
 			}
@@ -751,7 +1401,7 @@ public class RUBTClient extends Thread{
 	/**
 	 * @return Clients bitfield representation of verified pieces saved to disk
 	 */
-	public byte[] getbitfield(){
+	public Bitfield getbitfield(){
 		return this.destfile.getMybitfield();
 	}
 	
@@ -770,6 +1420,27 @@ public class RUBTClient extends Thread{
 		this.port = port;
 	}
 	
+	/**
+	 * @return first port tried for incoming connections, 0 for any free port
+	 */
+	public int getFirstPort(){
+		return this.first_port;
+	}
+	
+	/**
+	 * @param first_port first port tried for incoming connections, 0 for any free port. Takes effect when the client starts
+	 */
+	public void setFirstPort(int first_port){
+		this.first_port = first_port;
+	}
+	
+	/**
+	 * @param console false to ignore standard input, for clients run inside another program. Takes effect when the client starts
+	 */
+	public void setConsole(boolean console){
+		this.console = console;
+	}
+	
 	/**
 	 * @return true when client has all pieces downloaded and verified
 	 */
@@ -797,6 +1468,250 @@ public class RUBTClient extends Thread{
 	}
 	
 	private void clearProgress(Peer peer){
-		destfile.clearProgress(peer.getLastRequestedPiece());
+		int piece = peer.getLastRequestedPiece();
+		if (piece < 0 || !peer.replaceLastRequestedPiece(piece, -1)){
+			return;		//no piece, or another task gave it up first
+		}
+		destfile.clearProgress(piece, peer);
+		feedStarvedPeers();
+	}
+	
+	/**
+	 * Changes the priority of a piece and updates which peers we are interested in
+	 * @param piece index of the piece
+	 * @param priority one of the PiecePicker priorities
+	 */
+	public void setPiecePriority(int piece, int priority){
+		destfile.picker.setPriority(piece, priority);
+		updateInterest();
+	}
+	
+	/**
+	 * Changes the priority of every piece of a file and updates which peers we are interested in
+	 * @param file index of the file in the torrent
+	 * @param priority one of the PiecePicker priorities
+	 */
+	public void setFilePriority(int file, int priority){
+		destfile.setFilePriority(file, priority);
+		updateInterest();
+	}
+	
+	/**
+	 * Tells every peer whether it has a piece we still want after priorities changed. Peers with a piece
+	 * in flight keep their interest until it arrives, so the blocks already requested are not refused
+	 */
+	private void updateInterest(){
+		if (paused){
+			return;		//interest is restored on resume
+		}
+		Message message = new Message();
+		Peer[] array = peers.toArray(new Peer[peers.size()]);
+		for (Peer peer: array){
+			boolean wanted = destfile.firstNewPiece(peer.getBitfield()) != -1;
+			if (wanted && !peer.isInterested()){
+				peer.setInterested(true);
+				peer.sendMessage(message.getInterested());
+				chooseAndRequestPiece(peer);
+			}else if (wanted){
+				chooseAndRequestPiece(peer);	//idle since a pause, or since the wanted pieces changed
+			}else if (peer.isInterested() && peer.getLastRequestedPiece() == -1){
+				peer.setInterested(false);
+				peer.sendMessage(message.getNot_interested());
+			}
+		}
+	}
+	
+	/**
+	 * Stops downloading and uploading without dropping peers: every piece in progress is given up and every
+	 * peer is choked. Interest is kept, so peers still answering our last requests are not dropped; those blocks are discarded and no more are asked for
+	 */
+	public void pauseTransfers(){
+		if (paused){
+			return;
+		}
+		paused = true;
+		Message message = new Message();
+		Peer[] array = peers.toArray(new Peer[peers.size()]);
+		for (Peer peer: array){
+			clearProgress(peer);
+			if (!peer.isChoking()){
+				peer.setChoking(true);
+				peer.sendMessage(message.getChoke());
+				decrementUnchoked();
+			}
+		}
+		log.info("paused");
+	}
+	
+	/**
+	 * Undoes pauseTransfers: peers with pieces we want are asked for them again and interested peers are unchoked up to the limit
+	 */
+	public void resumeTransfers(){
+		if (!paused){
+			return;
+		}
+		paused = false;
+		fillUnchokeSlots();
+		updateInterest();
+		log.info("resumed");
+	}
+	
+	/**
+	 * @return bytes of pieces downloaded and verified since the client started
+	 */
+	public long getDownloaded(){
+		return downloaded.get();
+	}
+	
+	/**
+	 * @return true between pauseTransfers and resumeTransfers
+	 */
+	public boolean isPaused(){
+		return paused;
+	}
+	
+	/**
+	 * Hashes every piece again, pausing the client while it does. Pieces whose data no longer matches
+	 * are downloaded again
+	 * @return bytes still to download afterwards
+	 */
+	public long recheck(){
+		boolean was_paused = paused;
+		pauseTransfers();
+		seeding = destfile.recheck();
+		log.info("recheck done", "incomplete", destfile.getIncomplete());
+		if (!was_paused){
+			resumeTransfers();
+		}
+		return destfile.getIncomplete();
+	}
+	
+	/**
+	 * @return most peers unchoked at once
+	 */
+	public int getUnchokeSlots(){
+		return unchokeLimit;
+	}
+	
+	/**
+	 * Queues a change of the unchoke slots for the event loop, as queueAction does
+	 * @param slots most peers unchoked at once, the slowest peers above it are choked once the change is handled
+	 */
+	public void setUnchokeSlots(int slots){
+		addMessageTask(new MessageTask(null, new Message().getUnchokeSlotsMessage(slots)));
+	}
+	
+	private void applyUnchokeSlots(int slots){
+		this.unchokeLimit = Math.max(1, slots);
+		if (!paused){
+			fillUnchokeSlots();
+		}
+	}
+	
+	/**
+	 * Unchokes a peer if a slot is free, checking and taking the slot under the same lock as fillUnchokeSlots
+	 * @param peer interested peer
+	 */
+	private synchronized void unchokeIfFree(Peer peer){
+		if (peer.isChoking() && unchokedPeers < unchokeLimit){
+			peer.setChoking(false);
+			peer.sendMessage(new Message().getUnchoke());
+			incrementUnchoked();
+		}
+	}
+	
+	/**
+	 * Chokes a peer that no longer needs its unchoke slot and hands the slot to an interested peer
+	 * @param peer peer that lost interest or left
+	 * @param send true to tell the peer it is choked, false if it is gone
+	 */
+	private synchronized void freeUnchokeSlot(Peer peer, boolean send){
+		if (peer.isChoking()){
+			return;
+		}
+		peer.setChoking(true);
+		if (send){
+			peer.sendMessage(new Message().getChoke());
+		}
+		decrementUnchoked();
+		if (!paused){
+			fillUnchokeSlots();
+		}
+	}
+	
+	/**
+	 * Chokes the slowest peers while more are unchoked than the limit, then unchokes interested peers while slots are free
+	 */
+	private synchronized void fillUnchokeSlots(){
+		Message message = new Message();
+		Peer[] array = peers.toArray(new Peer[peers.size()]);
+		while (unchokedPeers > unchokeLimit){
+			Peer slowest = null;
+			for (Peer peer: array){
+				double rate = seeding ? peer.sent_bps : peer.received_bps;
+				if (!peer.isChoking() && (slowest == null || rate < (seeding ? slowest.sent_bps : slowest.received_bps))){
+					slowest = peer;
+				}
+			}
+			if (slowest == null){
+				break;
+			}
+			slowest.setChoking(true);
+			slowest.sendMessage(message.getChoke());
+			decrementUnchoked();
+		}
+		for (Peer peer: array){
+			if (unchokedPeers >= unchokeLimit){
+				break;
+			}
+			if (peer.isRemoteInterested() && peer.isChoking()){
+				peer.setChoking(false);
+				peer.sendMessage(message.getUnchoke());
+				incrementUnchoked();
+			}
+		}
+	}
+	
+	/**
+	 * @return extensions offered to peers over the extension protocol, registered before the client starts
+	 */
+	public ExtensionRegistry getExtensions(){
+		return extensions;
+	}
+	
+	/**
+	 * @return limits the bytes per second of piece messages read from peers
+	 */
+	public RateLimiter getDownloadLimit(){
+		return download_limit;
+	}
+	
+	/**
+	 * @return limits the bytes per second of piece messages sent to peers
+	 */
+	public RateLimiter getUploadLimit(){
+		return upload_limit;
+	}
+	
+	/**
+	 * Parks a peer until a piece buffer or room in the write cache is free
+	 * @param peer Peer that could not be given a piece
+	 */
+	private void starvePeer(Peer peer){
+		if (!starved_peers.contains(peer)){
+			starved_peers.add(peer);
+		}
+	}
+	
+	/**
+	 * Hands released piece buffers to peers that were left waiting for one, unless the disk is still behind
+	 */
+	void feedStarvedPeers(){
+		Peer starved;
+		while (!destfile.isDiskCongested() && destfile.getBufferPool().available() > 0 && (starved = starved_peers.poll()) != null){
+			if (peers.contains(starved)){
+				chooseAndRequestPiece(starved);
+			}
+		}
 	}
 }
@@ -0,0 +1,58 @@
+package RUBTClient;
+
+/**
+ * Token bucket holding a stream of bytes to a rate. Up to a second's worth of bytes pass at once after an
+ * idle spell; beyond that every caller sleeps for its share of the rate. The rate can be changed while
+ * threads are passing through.
+ */
+public class RateLimiter {
+
+	private long rate;			//bytes per second, 0 for no limit
+	private double tokens;		//bytes that may pass now, negative while callers are sleeping off a debt
+	private long last;			//System.nanoTime() the tokens were last topped up
+
+	/**
+	 * @param rate bytes per second, 0 for no limit
+	 */
+	public RateLimiter(long rate){
+		setRate(rate);
+	}
+
+	/**
+	 * @param rate bytes per second, 0 for no limit
+	 */
+	public synchronized void setRate(long rate){
+		this.rate = Math.max(0, rate);
+		this.tokens = this.rate;
+		this.last = System.nanoTime();
+	}
+
+	/**
+	 * @return bytes per second, 0 for no limit
+	 */
+	public synchronized long getRate(){
+		return rate;
+	}
+
+	/**
+	 * Waits until bytes may pass
+	 * @param bytes bytes about to be sent or just received
+	 * @throws InterruptedException if the thread is interrupted while it waits
+	 */
+	public void acquire(int bytes) throws InterruptedException{
+		long wait;
+		synchronized(this){
+			if(rate == 0){
+				return;
+			}
+			long now = System.nanoTime();
+			tokens = Math.min(rate, tokens + (now - last) * rate / 1e9);
+			last = now;
+			tokens -= bytes;
+			wait = tokens >= 0 ? 0 : (long)(-tokens * 1000 / rate);
+		}
+		if(wait > 0){
+			Thread.sleep(wait);
+		}
+	}
+}
@@ -0,0 +1,154 @@
+package RUBTClient;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Least recently used cache of whole pieces in front of Storage, for serving uploads. The first request
+ * for a block of a piece reads the whole piece, so the following blocks of that piece, and the same
+ * blocks asked for by other peers, are served from memory. The cache is bounded by the bytes it holds.
+ */
+public class ReadCache {
+
+	private final Storage 		storage;
+	private final Piece[] 		pieces;
+	private final long 			max_bytes;
+	private long 				cached_bytes;
+	private long 				evictions;
+	private final Metrics.Counter hits;
+	private final Metrics.Counter misses;
+
+	//iteration order is least recently used first
+	private final LinkedHashMap<Integer, ByteBuffer> cache = new LinkedHashMap<Integer, ByteBuffer>(16, 0.75f, true);
+
+	/**
+	 * @param storage storage pieces are read from on a miss
+	 * @param pieces pieces of the torrent, for their sizes
+	 * @param max_bytes most bytes of piece data held at once
+	 * @param metrics where hits and misses are counted
+	 */
+	public ReadCache(Storage storage, Piece[] pieces, long max_bytes, Metrics metrics){
+		this.storage = storage;
+		this.pieces = pieces;
+		this.max_bytes = max_bytes;
+		this.hits = metrics.counter("rubt_read_cache_hits_total", "Uploads served from the read cache");
+		this.misses = metrics.counter("rubt_read_cache_misses_total", "Uploads that read a piece from disk");
+	}
+
+	/**
+	 * Copies bytes of a piece, reading the whole piece from storage if it is not cached
+	 * @param piece index of the piece
+	 * @param begin offset within the piece
+	 * @param dst buffer filled from its position to its limit
+	 * @throws IOException on read errors
+	 */
+	public void read(int piece, int begin, ByteBuffer dst) throws IOException{
+		ByteBuffer data;
+		synchronized(this){
+			data = cache.get(piece);
+			if(data != null){
+				hits.increment();
+			}else {
+				misses.increment();
+			}
+		}
+		if(data == null){
+			int size = pieces[piece].getSize();
+			if(size > max_bytes){
+				storage.read(piece, begin, dst);
+				return;
+			}
+			data = ByteBuffer.allocate(size);
+			storage.read(piece, 0, data);
+			data.flip();
+			put(piece, data);
+		}
+		ByteBuffer source = data.duplicate();
+		source.position(begin);
+		source.limit(begin + dst.remaining());
+		dst.put(source);
+	}
+
+	/**
+	 * Drops a piece, for when its data on disk changes
+	 * @param piece index of the piece
+	 */
+	public synchronized void invalidate(int piece){
+		ByteBuffer data = cache.remove(piece);
+		if(data != null){
+			cached_bytes -= data.capacity();
+		}
+	}
+
+	/**
+	 * @return requests served from memory
+	 */
+	public long getHits(){
+		return hits.get();
+	}
+
+	/**
+	 * @return requests that had to read from storage
+	 */
+	public long getMisses(){
+		return misses.get();
+	}
+
+	/**
+	 * @return pieces dropped to make room
+	 */
+	public synchronized long getEvictions(){
+		return evictions;
+	}
+
+	/**
+	 * @return bytes of piece data currently held
+	 */
+	public synchronized long getCachedBytes(){
+		return cached_bytes;
+	}
+
+	/**
+	 * @param max most pieces returned
+	 * @return indexes of cached pieces, most recently used first
+	 */
+	public synchronized int[] getRecentPieces(int max){
+		Integer[] cached = cache.keySet().toArray(new Integer[cache.size()]);
+		int[] recent = new int[Math.min(max, cached.length)];
+		for(int i = 0; i < recent.length; i++){
+			recent[i] = cached[cached.length - 1 - i];
+		}
+		return recent;
+	}
+
+	/**
+	 * @return hits, misses and hit ratio in a readable form
+	 */
+	public synchronized String toString(){
+		long hit_count = hits.get();
+		long requests = hit_count + misses.get();
+		return "ReadCache: " + hit_count + " hits, " + misses.get() + " misses, " + evictions + " evictions, "
+				+ (requests == 0 ? 0 : hit_count * 100 / requests) + "% hit ratio";
+	}
+
+	private synchronized void put(int piece, ByteBuffer data){
+		ByteBuffer previous = cache.put(piece, data);
+		if(previous != null){
+			cached_bytes -= previous.capacity();		//read by two peers at once, keep the newest
+		}
+		cached_bytes += data.capacity();
+		Iterator<Map.Entry<Integer, ByteBuffer>> eldest = cache.entrySet().iterator();
+		while(cached_bytes > max_bytes && eldest.hasNext()){
+			Map.Entry<Integer, ByteBuffer> entry = eldest.next();
+			if(entry.getKey() == piece){
+				continue;
+			}
+			cached_bytes -= entry.getValue().capacity();
+			eldest.remove();
+			evictions++;
+		}
+	}
+}
@@ -4,7 +4,7 @@ import java.nio.ByteBuffer;
 import java.util.*;
 
 import edu.rutgers.cs.cs352.bt.exceptions.BencodingException;
-import edu.rutgers.cs.cs352.bt.util.Bencoder2;
+import edu.rutgers.cs.cs352.bt.util.BencodeReader;
 /**
  * @author Ben Green
  * @author Manuel Lopez
@@ -13,91 +13,132 @@ import edu.rutgers.cs.cs352.bt.util.Bencoder2;
  */
 public class Response {
 	
+	private static final Log log = Log.get(Response.class);
+	
+	private static final byte[] KEY_FAILURE 		= {'f','a','i','l','u','r','e',' ','r','e','a','s','o','n'};
+	private static final byte[] KEY_PEERS 			= {'p','e','e','r','s'};
+	private static final byte[] KEY_PEER_ID 		= {'p','e','e','r',' ','i','d'};
+	private static final byte[] KEY_IP 				= {'i','p'};
+	private static final byte[] KEY_PORT 			= {'p','o','r','t'};
+	private static final byte[] KEY_INTERVAL 		= {'i','n','t','e','r','v','a','l'};
+	private static final byte[] KEY_MIN_INTERVAL 	= {'m','i','n',' ','i','n','t','e','r','v','a','l'};
+	private static final byte[] KEY_COMPLETE 		= {'c','o','m','p','l','e','t','e'};
+	private static final byte[] KEY_INCOMPLETE 		= {'i','n','c','o','m','p','l','e','t','e'};
+	
 	String message;
 	ArrayList<Peer> peers = new ArrayList<Peer>();
 	@SuppressWarnings("rawtypes")
 	List peerdict;
 	Integer downloaded;
 	Integer complete;
+	Integer incomplete;
 	Integer min_interval;
 	Integer interval;
 	
 	/**
-	 *  
+	 * Builds a response from an already decoded announce, as returned by UDP trackers
+	 * @param interval seconds until the next announce
+	 * @param seeders number of peers with the complete file
+	 * @param leechers number of peers still downloading
+	 * @param compact_peers peer list in compact form, 6 bytes per peer
+	 */
+	public Response(int interval, int seeders, int leechers, byte[] compact_peers){
+		this.interval = interval;
+		this.complete = seeders;
+		this.incomplete = leechers;
+		addCompactPeers(compact_peers);
+	}
+	
+	/**
+	 * Reads a tracker response in place: only the keys used are decoded, and the compact peer list, which
+	 * is most of the response, is read straight from the array without being copied
 	 * @param getrequest String containing a properly formatted, bencoded tracker response to a GET request.
+	 * @throws BencodingException if the response is not a valid, bencoded dictionary
 	 */
 	@SuppressWarnings("rawtypes")
-	public Response(byte[] getrequest) {
+	public Response(byte[] getrequest) throws BencodingException {
 		super();
 		
-		Map peerdict = null;
-		
-		//Make sure this is a valid, bencoded dictonary
-		try {
-			peerdict = (Map) Bencoder2.decode(getrequest);
-		} catch (BencodingException e) {
-			System.err.println("Error decoding response to GET request.");
-			e.printStackTrace();
-		}
-		
 		//check for 'failure reason'
-		final Iterator dict_iter_error = peerdict.keySet().iterator();
-        Object key_error = null;
-        while (dict_iter_error.hasNext() && (key_error = dict_iter_error.next()) != null)
-        {
-        	String string_key_error = asString((ByteBuffer) key_error);
-        	if(string_key_error.equals("failure reason")){
-        		System.err.println("Tracker-reported failure: Reason " + (Integer)peerdict.get(key_error));
-        	}
-        }
+		int[] failure = find(getrequest, KEY_FAILURE);
+		if(failure != null){
+			log.warn("tracker reported failure", "reason", asString(reader(getrequest, failure, false).readString()));
+		}
 		
-		//Iterate through dictionary until peer list is found (heavily based on ToolKit.printMap())
-		final Iterator dict_iter = peerdict.keySet().iterator();
-        Object key = null;
-        while (dict_iter.hasNext() && (key = dict_iter.next()) != null)
-        {
-        	String string_key = asString((ByteBuffer) key);
-            if (string_key.equals("peers")){
-            	
-            	//Grab peer list and iterate through it
-            	ArrayList peerlist = (ArrayList) peerdict.get(key);
-            	Iterator peer_iter = peerlist.iterator();
-            	
-            	while(peer_iter.hasNext()){
-            		
-            		//Grab each peer and iterate through it, looking for peer id, port, and IP
-            		HashMap peer = (HashMap) peer_iter.next();
-            		Iterator peerinfo_iter = peer.keySet().iterator();
-            		
-            		byte[] temp_peer_id = null;
-        			String temp_ip = null;
-        			Integer temp_port = null;
-            		
-            		while(peerinfo_iter.hasNext()){
-            			
-            			Object next = peerinfo_iter.next();
-            			String temp_info = asString((ByteBuffer) next);
-            			
-            			if(temp_info.equals("peer id")){
-            				temp_peer_id = ((ByteBuffer) peer.get(next)).array();
-            			}else if(temp_info.equals("port")){
-            				temp_port = (Integer) peer.get(next);
-            			}else if(temp_info.equals("ip")){
-            				temp_ip = asString((ByteBuffer) peer.get(next));
-            			}
-            		}
-            		//Create new Peer object and append it to the ArrayList
-        			this.peers.add(new Peer(temp_ip, temp_peer_id, temp_port));
-            	}
-            //Grab other information as needed
-            }else if(string_key.equals("interval")){
-            	this.interval = (Integer) peerdict.get(key);
-            }else if(string_key.equals("min interval")){
-            	this.min_interval = (Integer) peerdict.get(key);
-            }
-        }
+		int[] peers = find(getrequest, KEY_PEERS);
+		if(peers != null && getrequest[peers[0]] >= '0' && getrequest[peers[0]] <= '9'){
+			
+			//compact peer list, 6 bytes per peer
+			ByteBuffer compact = reader(getrequest, peers, true).readString();
+			addCompactPeers(compact.array(), compact.arrayOffset() + compact.position(), compact.remaining());
+		}else if(peers != null){
+			
+			//Grab peer list and iterate through it
+			Object peerlist = reader(getrequest, peers, false).readValue();
+			if(!(peerlist instanceof List)){
+				throw new BencodingException("peers is neither a string nor a list");
+			}
+			for(Object entry: (List)peerlist){
+				
+				//Grab each peer, looking for peer id, port, and IP
+				Map peer = (Map) entry;
+				ByteBuffer temp_peer_id = (ByteBuffer) peer.get(ByteBuffer.wrap(KEY_PEER_ID));
+				ByteBuffer temp_ip = (ByteBuffer) peer.get(ByteBuffer.wrap(KEY_IP));
+				Number temp_port = (Number) peer.get(ByteBuffer.wrap(KEY_PORT));
+				
+				//Create new Peer object and append it to the ArrayList
+				this.peers.add(new Peer(temp_ip == null ? null : asString(temp_ip), temp_peer_id == null ? null : temp_peer_id.array(),
+						temp_port == null ? null : temp_port.intValue()));
+			}
+		}
+		//Grab other information as needed
+		this.interval = integer(getrequest, KEY_INTERVAL);
+		this.min_interval = integer(getrequest, KEY_MIN_INTERVAL);
+		this.complete = integer(getrequest, KEY_COMPLETE);
+		this.incomplete = integer(getrequest, KEY_INCOMPLETE);
+	}
+	
+	/**
+	 * @return offsets of the first byte of the value of a key of the response and just past it, or null if the key is missing
+	 */
+	private static int[] find(byte[] response, byte[] key) throws BencodingException{
+		return new BencodeReader(response).findValue(key);
 	}
-	//
+	
+	private static BencodeReader reader(byte[] response, int[] span, boolean zero_copy){
+		return new BencodeReader(response, span[0], span[1] - span[0], zero_copy);
+	}
+	
+	/**
+	 * @return the integer value of a key of the response, or null if the key is missing
+	 */
+	private static Integer integer(byte[] response, byte[] key) throws BencodingException{
+		int[] span = find(response, key);
+		return span == null ? null : Integer.valueOf((int)reader(response, span, false).readLong());
+	}
+	
+	/**
+	 * Adds a Peer for every 4 byte address and 2 byte port pair. Compact peers carry no peer id,
+	 * it is learned from the handshake
+	 * @param compact_peers peer list in compact form
+	 */
+	private void addCompactPeers(byte[] compact_peers){
+		addCompactPeers(compact_peers, 0, compact_peers.length);
+	}
+	
+	/**
+	 * @param compact_peers array holding a peer list in compact form
+	 * @param offset offset of the list in the array
+	 * @param length length of the list in bytes
+	 */
+	private void addCompactPeers(byte[] compact_peers, int offset, int length){
+		for(int i = offset; i + 6 <= offset + length; i += 6){
+			String ip = (compact_peers[i] & 0xFF) + "." + (compact_peers[i+1] & 0xFF) + "." + (compact_peers[i+2] & 0xFF) + "." + (compact_peers[i+3] & 0xFF);
+			int port = ((compact_peers[i+4] & 0xFF) << 8) | (compact_peers[i+5] & 0xFF);
+			this.peers.add(new Peer(ip, null, port));
+		}
+	}
+	
 	/**
 	 *  Converts a bytebuffer to a String.Shamelessly stolen from the forums, original author Prof. Moore
 	 * @param buff byte buffer to be converted
@@ -134,19 +175,9 @@ public class Response {
 		
 	}
 	/**
-	 * @return List of Peers containing all peers that matches specific parameters 
-	 *         and are found in the Response array list from the tracker.
+	 * @return every peer in the response from the tracker
 	 */
-	public List<Peer> getValidPeers(){
-		Iterator<Peer> iter = this.peers.iterator();
-		List<Peer> validPeers = new ArrayList<Peer>();
-		
-		while(iter.hasNext()){
-			Peer temp = iter.next();
-			if(((temp.getIp().equals("128.6.171.130")) || (temp.getIp().equals("128.6.171.131")))){
-				validPeers.add(temp);
-			}
-		}
-		return validPeers;
+	public List<Peer> getPeers(){
+		return this.peers;
 	}
 }
@@ -0,0 +1,244 @@
+package RUBTClient;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+import edu.rutgers.cs.cs352.bt.TorrentInfo;
+
+/**
+ * Storage maps the byte stream of a torrent onto its files. A piece or block may span several files;
+ * reads and writes are split into one segment per file and every file segment is handled with a
+ * single positional or gathering call on a cached FileChannel.
+ */
+public class Storage {
+
+	private static final Log log = Log.get(Storage.class);
+
+	private final TorrentInfo.FileInfo[] files;
+	private final File[] 			paths;
+	private final FileChannel[] 	channels;
+	private final RandomAccessFile[] rafs;
+	private final int[] 			piece_first_file;	//index of the first file holding a byte of each piece
+	private final int 				piece_length;
+
+	/**
+	 * @param torrentinfo torrent whose files are stored
+	 * @param destination file name for a single-file torrent, directory holding the files for a multi-file torrent
+	 */
+	public Storage(TorrentInfo torrentinfo, String destination){
+
+		this.files = torrentinfo.files;
+		this.piece_length = torrentinfo.piece_length;
+		this.paths = new File[files.length];
+		this.channels = new FileChannel[files.length];
+		this.rafs = new RandomAccessFile[files.length];
+
+		if(!torrentinfo.multi_file){
+			paths[0] = new File(destination);
+		}else {
+			for(int i = 0; i < files.length; i++){
+				File path = new File(destination);
+				for(String component: files[i].path){
+					path = new File(path, component);
+				}
+				paths[i] = path;
+			}
+		}
+
+		//index each piece to the first file it touches so lookups never search from the first file
+		piece_first_file = new int[torrentinfo.piece_hashes.length];
+		int file = 0;
+		for(int piece = 0; piece < piece_first_file.length; piece++){
+			long start = (long)piece * piece_length;
+			while(file < files.length - 1 && files[file].offset + files[file].length <= start){
+				file++;
+			}
+			piece_first_file[piece] = file;
+		}
+	}
+
+	/**
+	 * @return true if any file of the torrent already exists on disk
+	 */
+	public boolean exists(){
+		for(File path: paths){
+			if(path.exists()){
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Creates the directories and sizes every file to its final length
+	 * @throws IOException if a file could not be created
+	 */
+	public void allocate() throws IOException{
+		for(int i = 0; i < files.length; i++){
+			channel(i);
+			if(rafs[i].length() != files[i].length){
+				rafs[i].setLength(files[i].length);
+			}
+		}
+	}
+
+	/**
+	 * Reads bytes of a piece, possibly spanning several files
+	 * @param piece index of the piece
+	 * @param begin offset within the piece
+	 * @param dst buffer filled from its position to its limit
+	 * @throws IOException on read errors
+	 */
+	public void read(int piece, int begin, ByteBuffer dst) throws IOException{
+		long offset = (long)piece * piece_length + begin;
+		for(Segment segment: segments(piece_first_file[piece], offset, dst.remaining())){
+			ByteBuffer slice = dst.duplicate();
+			slice.limit(slice.position() + segment.length);
+			FileChannel channel = channel(segment.file);
+			long position = segment.position;
+			while(slice.hasRemaining()){
+				int read = channel.read(slice, position);
+				if(read < 0){
+					//reading past the end of a file that has not been allocated yet, leave the rest zeroed
+					break;
+				}
+				position += read;
+			}
+			dst.position(dst.position() + segment.length);
+		}
+	}
+
+	/**
+	 * Writes whole pieces, possibly spanning several files, as one gathering write per file
+	 * @param piece index of the first piece
+	 * @param srcs consecutive buffers written back to back, each from its position to its limit
+	 * @throws IOException on write errors
+	 */
+	public void write(int piece, ByteBuffer[] srcs) throws IOException{
+
+		long total = 0;
+		for(ByteBuffer src: srcs){
+			total += src.remaining();
+		}
+		long offset = (long)piece * piece_length;
+		int buffer = 0;
+		ByteBuffer current = srcs.length > 0 ? srcs[0].duplicate() : null;
+
+		for(Segment segment: segments(piece_first_file[piece], offset, total)){
+
+			//cut the buffers into the slices that belong to this file
+			List<ByteBuffer> slices = new ArrayList<ByteBuffer>();
+			long needed = segment.length;
+			while(needed > 0){
+				while(!current.hasRemaining()){
+					current = srcs[++buffer].duplicate();
+				}
+				ByteBuffer slice = current.duplicate();
+				int take = (int)Math.min(needed, slice.remaining());
+				slice.limit(slice.position() + take);
+				current.position(current.position() + take);
+				slices.add(slice);
+				needed -= take;
+			}
+
+			ByteBuffer[] gather = slices.toArray(new ByteBuffer[slices.size()]);
+			FileChannel channel = channel(segment.file);
+			synchronized(channel){
+				channel.position(segment.position);
+				long written = 0;
+				while(written < segment.length){
+					written += channel.write(gather);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Writes a single buffer starting at the beginning of a piece
+	 * @param piece index of the piece
+	 * @param src buffer written from its position to its limit
+	 * @throws IOException on write errors
+	 */
+	public void write(int piece, ByteBuffer src) throws IOException{
+		write(piece, new ByteBuffer[] {src});
+	}
+
+	/**
+	 * Closes every open file
+	 */
+	public synchronized void close(){
+		for(int i = 0; i < rafs.length; i++){
+			if(rafs[i] == null){
+				continue;
+			}
+			try {
+				rafs[i].close();
+			}catch (IOException e){
+				log.warn("could not close file", e, "path", paths[i]);
+			}
+			rafs[i] = null;
+			channels[i] = null;
+		}
+	}
+
+	/**
+	 * Splits a range of the torrent into the parts that fall into each file
+	 * @param first_file file holding offset, or an earlier one
+	 * @param offset offset within the torrent
+	 * @param length number of bytes
+	 * @return one segment per file touched, skipping empty files
+	 */
+	private List<Segment> segments(int first_file, long offset, long length){
+		List<Segment> segments = new ArrayList<Segment>(2);
+		int file = first_file;
+		while(length > 0 && file < files.length){
+			long end = files[file].offset + files[file].length;
+			if(offset >= end){
+				file++;
+				continue;
+			}
+			int part = (int)Math.min(length, end - offset);
+			segments.add(new Segment(file, offset - files[file].offset, part));
+			offset += part;
+			length -= part;
+			file++;
+		}
+		return segments;
+	}
+
+	/**
+	 * @param file index of the file
+	 * @return channel of the file, opening and caching it on first use
+	 */
+	private synchronized FileChannel channel(int file) throws IOException{
+		if(channels[file] == null){
+			File parent = paths[file].getAbsoluteFile().getParentFile();
+			if(parent != null && !parent.exists() && !parent.mkdirs()){
+				throw new IOException("could not create directory " + parent);
+			}
+			rafs[file] = new RandomAccessFile(paths[file], "rw");
+			channels[file] = rafs[file].getChannel();
+		}
+		return channels[file];
+	}
+
+	/**
+	 * The part of a read or write that falls into one file
+	 */
+	private static class Segment {
+		final int 	file;
+		final long 	position;	//offset within the file
+		final int 	length;
+
+		Segment(int file, long position, int length){
+			this.file = file;
+			this.position = position;
+			this.length = length;
+		}
+	}
+}
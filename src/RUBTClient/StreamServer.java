@@ -0,0 +1,270 @@
+package RUBTClient;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URLConnection;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import edu.rutgers.cs.cs352.bt.TorrentInfo;
+
+/**
+ * Embedded HTTP server that serves the files of a torrent while they download. Each file is served at
+ * its path within the torrent and supports single byte range requests. A request waits for every piece
+ * it needs to be verified, and tells the piece picker to fetch those pieces before any others.
+ * <p>
+ * The server only listens on the loopback address, so the content is not served to the network.
+ */
+public class StreamServer {
+
+	private static final Log log = Log.get(StreamServer.class);
+
+	//milliseconds a request waits for one piece before giving up
+	private static final long 	PIECE_TIMEOUT = Long.getLong("rubt.streamTimeout", 60000L);
+	//milliseconds until a piece a request is waiting for is due
+	private static final long 	PIECE_DEADLINE = Long.getLong("rubt.streamStartup", 2000L);
+	//pieces after the one being sent that are given deadlines too
+	private static final int 	READ_AHEAD = 4;
+
+	private final DestFile 			destfile;
+	private final TorrentInfo 		torrentinfo;
+	private final HttpServer 		server;
+	private final ExecutorService 	executor;
+	private final Map<String, TorrentInfo.FileInfo> paths = new HashMap<String, TorrentInfo.FileInfo>();
+
+	/**
+	 * @param destfile torrent being downloaded
+	 * @param port port to listen on, 0 for any free port
+	 * @throws IOException if the port cannot be bound
+	 */
+	public StreamServer(DestFile destfile, int port) throws IOException{
+		this.destfile = destfile;
+		this.torrentinfo = destfile.getTorrentinfo();
+		for(TorrentInfo.FileInfo file: torrentinfo.files){
+			StringBuilder path = new StringBuilder();
+			for(String component: file.path){
+				path.append('/').append(component);
+			}
+			paths.put(path.toString(), file);
+		}
+		if(!torrentinfo.multi_file){
+			paths.put("/", torrentinfo.files[0]);
+		}
+
+		this.executor = Executors.newCachedThreadPool(new ThreadFactory(){
+			public Thread newThread(Runnable r){
+				Thread thread = new Thread(r, "streamServer");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		this.server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+		this.server.createContext("/", new FileHandler());
+		this.server.setExecutor(executor);
+	}
+
+	/**
+	 * Starts answering requests
+	 */
+	public void start(){
+		server.start();
+		log.info("streaming", "url", "http://localhost:" + getPort() + "/");
+	}
+
+	/**
+	 * Stops answering requests, aborting those still waiting for pieces
+	 */
+	public void stop(){
+		server.stop(0);
+		executor.shutdownNow();
+	}
+
+	/**
+	 * @return port the server listens on
+	 */
+	public int getPort(){
+		return server.getAddress().getPort();
+	}
+
+	private class FileHandler implements HttpHandler {
+
+		public void handle(HttpExchange exchange) throws IOException{
+			try {
+				String method = exchange.getRequestMethod();
+				if(!method.equals("GET") && !method.equals("HEAD")){
+					exchange.getResponseHeaders().set("Allow", "GET, HEAD");
+					sendEmpty(exchange, 405);
+					return;
+				}
+				String path = decode(exchange.getRequestURI().getRawPath());
+				TorrentInfo.FileInfo file = paths.get(path);
+				if(file == null && path.equals("/")){
+					sendListing(exchange, method.equals("HEAD"));
+					return;
+				}
+				if(file == null){
+					sendEmpty(exchange, 404);
+					return;
+				}
+
+				long start = 0;
+				long end = file.length - 1;
+				int status = 200;
+				String range = exchange.getRequestHeaders().getFirst("Range");
+				if(range != null){
+					long[] bounds = parseRange(range, file.length);
+					if(bounds == null){
+						exchange.getResponseHeaders().set("Content-Range", "bytes */" + file.length);
+						sendEmpty(exchange, 416);
+						return;
+					}
+					start = bounds[0];
+					end = bounds[1];
+					status = 206;
+					exchange.getResponseHeaders().set("Content-Range", "bytes " + start + "-" + end + "/" + file.length);
+				}
+
+				String type = URLConnection.guessContentTypeFromName(file.path[file.path.length - 1]);
+				exchange.getResponseHeaders().set("Content-Type", type != null ? type : "application/octet-stream");
+				exchange.getResponseHeaders().set("Accept-Ranges", "bytes");
+				long length = end - start + 1;
+				if(method.equals("HEAD") || length <= 0){
+					exchange.getResponseHeaders().set("Content-Length", Long.toString(Math.max(0, length)));
+					exchange.sendResponseHeaders(status, -1);
+					return;
+				}
+				exchange.sendResponseHeaders(status, length);
+				OutputStream body = exchange.getResponseBody();
+				send(body, file.offset + start, length);
+				body.close();
+			}catch (InterruptedException e){
+				//shutting down
+			}finally {
+				exchange.close();
+			}
+		}
+
+		/**
+		 * Writes a range of the torrent, waiting for each piece to be verified before sending it
+		 * @param body stream to write to
+		 * @param offset offset in the torrent of the first byte
+		 * @param length number of bytes
+		 */
+		private void send(OutputStream body, long offset, long length) throws IOException, InterruptedException{
+			int piece_length = torrentinfo.piece_length;
+			destfile.picker.setCursorOffset(offset, piece_length);
+			while(length > 0){
+				int piece = (int)(offset / piece_length);
+				int begin = (int)(offset % piece_length);
+				int amount = (int)Math.min(length, destfile.pieces[piece].getSize() - begin);
+
+				long deadline = System.currentTimeMillis() + PIECE_DEADLINE;
+				for(int i = piece; i <= piece + READ_AHEAD && i < destfile.pieces.length; i++){
+					destfile.picker.setDeadline(i, deadline);
+				}
+				if(!destfile.awaitPiece(piece, PIECE_TIMEOUT)){
+					throw new IOException("timed out waiting for piece " + piece);
+				}
+				byte[] data = destfile.getPieceData(piece, begin, amount);
+				if(data == null){
+					throw new IOException("could not read piece " + piece);
+				}
+				body.write(data);
+				offset += amount;
+				length -= amount;
+				if(length > 0){
+					destfile.picker.setCursor(piece + 1);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Answers with a page linking every file of a multi-file torrent
+	 */
+	private void sendListing(HttpExchange exchange, boolean head) throws IOException{
+		StringBuilder page = new StringBuilder("<html><body><ul>\n");
+		for(TorrentInfo.FileInfo file: torrentinfo.files){
+			StringBuilder link = new StringBuilder();
+			StringBuilder name = new StringBuilder();
+			for(String component: file.path){
+				link.append('/').append(URLEncoder.encode(component, "UTF-8").replace("+", "%20"));
+				name.append('/').append(component.replace("&", "&amp;").replace("<", "&lt;"));
+			}
+			page.append("<li><a href=\"").append(link).append("\">").append(name).append("</a> ").append(file.length).append("</li>\n");
+		}
+		page.append("</ul></body></html>\n");
+		byte[] body = page.toString().getBytes("UTF-8");
+		exchange.getResponseHeaders().set("Content-Type", "text/html; charset=utf-8");
+		if(head){
+			exchange.getResponseHeaders().set("Content-Length", Integer.toString(body.length));
+			exchange.sendResponseHeaders(200, -1);
+			return;
+		}
+		exchange.sendResponseHeaders(200, body.length);
+		OutputStream out = exchange.getResponseBody();
+		out.write(body);
+		out.close();
+	}
+
+	/**
+	 * @param header value of a Range header
+	 * @param size length of the file
+	 * @return first and last byte of the range, or null if the range cannot be satisfied
+	 */
+	static long[] parseRange(String header, long size){
+		if(!header.startsWith("bytes=") || header.indexOf(',') != -1){
+			return null;	//only single ranges are supported
+		}
+		String spec = header.substring(6).trim();
+		int dash = spec.indexOf('-');
+		if(dash == -1){
+			return null;
+		}
+		try {
+			long start, end;
+			if(dash == 0){
+				//the last n bytes
+				long suffix = Long.parseLong(spec.substring(1));
+				if(suffix <= 0){
+					return null;
+				}
+				start = Math.max(0, size - suffix);
+				end = size - 1;
+			}else {
+				start = Long.parseLong(spec.substring(0, dash));
+				end = dash == spec.length() - 1 ? size - 1 : Math.min(size - 1, Long.parseLong(spec.substring(dash + 1)));
+			}
+			if(start >= size || start > end){
+				return null;
+			}
+			return new long[] {start, end};
+		}catch (NumberFormatException e){
+			return null;
+		}
+	}
+
+	private static String decode(String path){
+		try {
+			return URLDecoder.decode(path.replace("+", "%2B"), "UTF-8");
+		}catch (UnsupportedEncodingException e){
+			return path;
+		}
+	}
+
+	private static void sendEmpty(HttpExchange exchange, int status) throws IOException{
+		exchange.sendResponseHeaders(status, -1);
+	}
+}
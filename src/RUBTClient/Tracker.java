@@ -2,10 +2,15 @@ package RUBTClient;
 
 import java.net.URL;
 import java.net.URLConnection;
+import java.net.HttpURLConnection;
 import java.util.Random;
 import java.nio.ByteBuffer;
-import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
 import java.io.ByteArrayOutputStream;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ExecutorService;
 
 
 /**
@@ -18,32 +23,84 @@ import java.io.ByteArrayOutputStream;
  */
 public class Tracker {
 
+	private static final Log log = Log.get(Tracker.class);
+
+	private static final int CONNECT_TIMEOUT = 10 * 1000;	//milliseconds to wait for the tracker to accept a connection
+	private static final int READ_TIMEOUT 	 = 30 * 1000;	//milliseconds to wait for the tracker to send data
+	private static final int MAX_ATTEMPTS 	 = 4;			//announce attempts before giving up on a tracker
+	private static final int BACKOFF 		 = 2 * 1000;	//milliseconds before the first retry, doubled on every retry
+	private static final int READ_BUFFER 	 = 4096;		//bytes read from the tracker at a time
+
 	private int 			port; 				//port number of client is listening on
-	private int 			file_length;		//file length of target file held by peer
-	private int 			downloaded;			//number of bytes downloaded from peer
-	private int	 			uploaded;			//number of bytes uploaded to peers
+	private long 			file_length;		//file length of target file held by peer
+	private long 			downloaded;			//number of bytes downloaded from peer
+	private long	 		uploaded;			//number of bytes uploaded to peers
 	private int 			interval;			//milliseconds expected between tracker announcements
 	private String 			url; 				//url contructed for annoucning to the
 	private String			encodedInfoHash;	//escaped info hash of torrent info 
 	private byte[] 			usrid;				//identifying peer id for client
+	private int 			key;				//random key udp trackers identify the client by
+	private byte[]			info_hash;			//raw info hash of torrent info
+	private UdpTracker		udp_tracker;		//set when the announce url uses the udp scheme
+	private String 			announce_url;		//announce url of the torrent, without the request fields
+	private int				attempts = MAX_ATTEMPTS;	//announce attempts before the announce fails
+	
+	private final ExecutorService announcer = Executors.newSingleThreadExecutor(new ThreadFactory(){
+		public Thread newThread(Runnable r){
+			Thread thread = new Thread(r, "trackerAnnouncer");
+			thread.setDaemon(true);
+			return thread;
+		}
+	});
+	
+	/**
+	 * Receives the result of an asynchronous tracker announce
+	 */
+	public interface AnnounceCallback {
+		
+		/**
+		 * @param event event that was announced, null for a regular announce
+		 * @param response decoded response of the tracker
+		 */
+		void announceSucceeded(String event, Response response);
+		
+		/**
+		 * @param event event that was announced, null for a regular announce
+		 * @param e exception thrown by the last attempt
+		 */
+		void announceFailed(String event, Exception e);
+	}
 	
 	
 	/**Tracker constructor generates out client peer_id
 	 * @param file_length Length of file specified by torrentinfo in bytes
 	 */
-	public Tracker(int file_length){
+	public Tracker(long file_length){
 		this.downloaded = 0;
 		this.uploaded = 0;
 		this.file_length = file_length;
 		randomID();
 	}
 	
+	/**Tracker constructor for additional trackers of a torrent, which announce the same peer_id and key
+	 * @param file_length Length of file specified by torrentinfo in bytes
+	 * @param usrid peer_id already generated for the client
+	 * @param key key already generated for the client
+	 */
+	public Tracker(long file_length, byte[] usrid, int key){
+		this.downloaded = 0;
+		this.uploaded = 0;
+		this.file_length = file_length;
+		this.usrid = usrid;
+		this.key = key;
+	}
+	
 	/**
 	 * Updates downloaded and uploaded fields for tracker
 	 * @param downloaded
 	 * @param uploaded
 	 */
-	public void updateProgress(int downloaded, int uploaded){
+	public void updateProgress(long downloaded, long uploaded){
 		this.downloaded = downloaded;
 		this.uploaded = uploaded;
 	}
@@ -56,8 +113,17 @@ public class Tracker {
 	public void constructURL(String announce_url, ByteBuffer info_hash, int port){   //construct url key/value pairs
 		
 		this.port = port;
+		this.info_hash = info_hash.array();
+		this.announce_url = announce_url;
+		if(UdpTracker.isUdp(announce_url)){
+			//udp trackers take binary requests, no url to construct
+			if(udp_tracker == null){
+				udp_tracker = new UdpTracker(announce_url, key);
+			}
+			return;
+		}
 		String info_hash_encoded = "?info_hash=" + encodeHash(info_hash);
-		String peer_id = "&peer_id=" + usrid;
+		String peer_id = "&peer_id=" + escape(usrid);
 		String port_field = "&port=" + port;
 		String download_field = "&downloaded=" + downloaded;
 		String upload_field = "&uploaded=" + uploaded;
@@ -72,21 +138,34 @@ public class Tracker {
 	 * @return String encodedHash with escaped hex characters
 	 */
 	public String encodeHash(ByteBuffer info_hash){
-		String hash = "";
-		for(int i =0; i < 20; i++){
-			hash = hash + "%" + String.format("%02x", info_hash.get(i));
+		byte[] bytes = new byte[20];
+		for(int i = 0; i < 20; i++){
+			bytes[i] = info_hash.get(i);
 		}
+		String hash = escape(bytes);
 		setEncodedInfoHash(hash);
 		return hash;
 	}
 	
+	/**escape() percent-encodes every byte of a binary url parameter
+	 * @param bytes raw bytes, such as the info hash or the peer id
+	 * @return String with each byte as %xx
+	 */
+	private static String escape(byte[] bytes){
+		StringBuilder escaped = new StringBuilder(bytes.length * 3);
+		for(int i = 0; i < bytes.length; i++){
+			escaped.append('%').append(String.format("%02x", bytes[i]));
+		}
+		return escaped.toString();
+	}
+	
 	/**sendEvent() sends an event message to the tracker
 	 * @param event String of the event("started","stopped", "completed")
 	 * @param current_downloaded indicates how many bytes have been succesfully downloaded from the peer
 	 * @return 1 when successful and 0  when failed
 	 * @throws Exception IOException when opening connection to tracker
 	 */
-	public int sendEvent(String event, int current_downloaded) throws Exception{
+	public int sendEvent(String event, long current_downloaded) throws Exception{
 		
 		setDownloaded(current_downloaded);
 		URL obj;
@@ -99,40 +178,163 @@ public class Tracker {
 		}
 		
 		URLConnection connection = obj.openConnection();
-		System.out.println(event + " event sent to tracker");
+		log.info("event sent to tracker", "event", event);
 		return 1;
 	}
 	
 	/**sendGetRequest() takes the contructed URL, makes a URL object, and connects to the tracker for a response
 	 * @param event name of event being passed to the tracker (start, stopped, completed, <blank>)
 	 * @return bencoded response of peer list
-	 * @throws Exception IOException when opening connection to tracker
+	 * @throws Exception IOException when every attempt to contact the tracker failed
 	 */
 	public byte[] requestPeerList(String event) throws Exception{   
-		
-		URL obj;
+		return requestWithRetry(eventUrl(event));
+	}
+	
+	/**
+	 * Announces to the tracker and blocks until it answers, over UDP or HTTP depending on the announce url
+	 * @param event name of event being passed to the tracker (started, stopped, completed, null)
+	 * @return decoded response of the tracker
+	 * @throws Exception when every attempt to contact the tracker failed
+	 */
+	public Response announce(String event) throws Exception{
+		return announce(event, eventUrl(event), this.downloaded, this.uploaded);
+	}
+	
+	/**
+	 * Announces to the tracker on the announcer thread so the caller never blocks on the tracker.
+	 * The request is built from the current progress when this method is called.
+	 * @param event name of event being passed to the tracker (started, stopped, completed, null)
+	 * @param callback receives the decoded response or the failure once all retries are used
+	 */
+	public void announceAsync(final String event, final AnnounceCallback callback){
+		final String request_url = eventUrl(event);
+		final long downloaded = this.downloaded;
+		final long uploaded = this.uploaded;
+		announcer.execute(new Runnable(){
+			public void run(){
+				Response response;
+				try {
+					response = announce(event, request_url, downloaded, uploaded);
+				}catch (Exception e){
+					callback.announceFailed(event, e);
+					return;
+				}
+				callback.announceSucceeded(event, response);
+			}
+		});
+	}
+	
+	private Response announce(String event, String request_url, long downloaded, long uploaded) throws Exception{
+		FlightEvents.TrackerAnnounce trace = FlightEvents.announceStarted();
+		Response response = null;
+		try {
+			if(udp_tracker != null){
+				response = udp_tracker.announce(info_hash, usrid, downloaded, file_length - downloaded, uploaded, udpEvent(event), port);
+			}else {
+				response = new Response(requestWithRetry(request_url));
+			}
+			return response;
+		}finally {
+			FlightEvents.announced(trace, announce_url, event, response);
+		}
+	}
+	
+	private static int udpEvent(String event){
 		if(event == null){
-			obj = new URL(this.url); 
-		}else{
-			obj = new URL(this.url + "&event=" + event); 
+			return UdpTracker.EVENT_NONE;
+		}else if(event.equals("started")){
+			return UdpTracker.EVENT_STARTED;
+		}else if(event.equals("completed")){
+			return UdpTracker.EVENT_COMPLETED;
+		}else if(event.equals("stopped")){
+			return UdpTracker.EVENT_STOPPED;
 		}
-		URLConnection connection = obj.openConnection(); //sends request
-
-		//int contentLength = connection.getContentLength();
+		return UdpTracker.EVENT_NONE;
+	}
+	
+	/**
+	 * Stops the announcer thread. Announces already queued are dropped.
+	 */
+	public void shutdown(){
+		announcer.shutdownNow();
+	}
+	
+	private String eventUrl(String event){
+		if(event == null){
+			return this.url;
+		}
+		return this.url + "&event=" + event;
+	}
+	
+	/**
+	 * Tries the request up to attempts times, backing off exponentially between attempts
+	 * @param request_url full announce url
+	 * @return bencoded response of the tracker
+	 * @throws Exception exception of the last failed attempt
+	 */
+	private byte[] requestWithRetry(String request_url) throws Exception{
 		
-		DataInputStream datastream = new DataInputStream(connection.getInputStream());
-		ByteArrayOutputStream encoded_response = new ByteArrayOutputStream();
-		int tracker_response = datastream.read();
-		//String bencoded_response = "";
-		while(tracker_response != -1){
-			encoded_response.write(tracker_response);
-			tracker_response=datastream.read();
+		int delay = BACKOFF;
+		for(int attempt = 1; ; attempt++){
+			try {
+				return request(request_url);
+			}catch (IOException e){
+				if(attempt >= attempts){
+					throw e;
+				}
+				log.warn("announce attempt failed", "attempt", attempt, "retry_ms", delay, "error", e.getMessage());
+			}
+			Thread.sleep(delay);
+			delay *= 2;
+		}
+	}
+	
+	/**
+	 * Sends a single GET request to the tracker. The response is read in bulk and the stream is
+	 * always drained and closed so the underlying keep-alive connection can be reused
+	 * @param request_url full announce url
+	 * @return bencoded response of the tracker
+	 * @throws IOException on timeouts, connection failures and non 200 responses
+	 */
+	private byte[] request(String request_url) throws IOException{
+		
+		URLConnection connection = new URL(request_url).openConnection(); 
+		connection.setConnectTimeout(CONNECT_TIMEOUT);
+		connection.setReadTimeout(READ_TIMEOUT);
+		connection.setRequestProperty("Connection", "keep-alive");
+		
+		if(connection instanceof HttpURLConnection){
+			HttpURLConnection http = (HttpURLConnection) connection;
+			int status = http.getResponseCode();
+			if(status != HttpURLConnection.HTTP_OK){
+				InputStream error = http.getErrorStream();
+				if(error != null){
+					readFully(error, -1);
+				}
+				throw new IOException("tracker responded with HTTP " + status);
+			}
+		}
+		return readFully(connection.getInputStream(), connection.getContentLength());
+	}
+	
+	private static byte[] readFully(InputStream in, int length) throws IOException{
+		
+		ByteArrayOutputStream encoded_response = new ByteArrayOutputStream(length > 0 ? length : READ_BUFFER);
+		byte[] buffer = new byte[READ_BUFFER];
+		try {
+			int read;
+			while((read = in.read(buffer)) != -1){
+				encoded_response.write(buffer, 0, read);
+			}
+		}finally {
+			in.close();
 		}
-		encoded_response.close();
 		return encoded_response.toByteArray();
 	}
 	
-	/** Generates random alphanumeric peer_id  byte array for client and assigns to peer_id field
+	/** Generates random alphanumeric peer_id  byte array for client and assigns to peer_id field,
+	 * along with the key sent to udp trackers
 	 */
 	public void randomID(){
 		byte[] idHeader = {'G','R','O', 'U','P','0','4'};
@@ -150,11 +352,26 @@ public class Tracker {
 		byte id[] = new byte[20];
 		System.arraycopy(idHeader, 0, id, 0, 7);
 		System.arraycopy(idTail, 0, id, 7, 13);
-		System.out.println(Response.asString(ByteBuffer.wrap(id)));
+		log.debug("peer id generated", "id", Response.asString(ByteBuffer.wrap(id)));
 		this.usrid = id;
+		this.key = r.nextInt();
 		
 	}
 	
+	/**
+	 * @param attempts announce attempts before an announce fails. Trackers with a backup in
+	 * 		  the announce-list use 1 so failing over is not delayed by retries
+	 */
+	public void setAttempts(int attempts){
+		this.attempts = attempts;
+	}
+	
+	/**@return key sent to udp trackers
+	 */
+	public int getKey(){
+		return key;
+	}
+	
 	 /**@return user id of our client
 	 */
 	public byte[] getUser_id(){
@@ -200,37 +417,37 @@ public class Tracker {
 
 	/** @return length of file specified by torrent info
 	 */
-	public int getFile_length() {
+	public long getFile_length() {
 		return file_length;
 	}
 
-	/** @param file_length int of file length bytes to be set to this.file_length
+	/** @param file_length long of file length bytes to be set to this.file_length
 	 */
-	public void setFile_length(int file_length) {
+	public void setFile_length(long file_length) {
 		this.file_length = file_length;
 	}
 
 	/** @return this.getDownloaded
 	 */
-	public int getDownloaded() {
+	public long getDownloaded() {
 		return downloaded;
 	}
 
-	/** @param downloaded int of downloaded bytes to be set to this.downloaded
+	/** @param downloaded long of downloaded bytes to be set to this.downloaded
 	 */
-	public void setDownloaded(int downloaded) {
+	public void setDownloaded(long downloaded) {
 		this.downloaded = downloaded;
 	}
 
 	/** @return uploaded Amount of bytes uploaded in current session
 	 */
-	public int getUploaded() {
+	public long getUploaded() {
 		return uploaded;
 	}
 
 	/** @param uploaded Amount of bytes uploaded in current session
 	 */
-	public void setUploaded(int uploaded) {
+	public void setUploaded(long uploaded) {
 		this.uploaded = uploaded;
 	}
 	
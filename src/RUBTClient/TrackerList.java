@@ -0,0 +1,224 @@
+package RUBTClient;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * TrackerList manages the tiers of an announce-list (BEP 12). An announce goes to every tracker of a tier
+ * in parallel and the first tracker to answer is moved to the front of its tier. The next tier is only
+ * tried once every tracker of the current tier has failed.
+ */
+public class TrackerList {
+
+	private static final Log log = Log.get(TrackerList.class);
+
+	private final List<List<Tracker>> 	tiers = new ArrayList<List<Tracker>>();
+	private final List<String> 			urls = new ArrayList<String>();		//announce url of every tracker, in creation order
+	private final List<Tracker> 		all = new ArrayList<Tracker>();
+	private final byte[] 				usrid;
+	private int 						interval;
+
+	/**
+	 * Creates a Tracker for every url. Trackers within a tier are shuffled as BEP 12 asks,
+	 * and they all announce the same peer id
+	 * @param announce_list tiers of announce urls, in the order they appear in the metainfo
+	 * @param file_length Length of file specified by torrentinfo in bytes
+	 */
+	public TrackerList(List<List<String>> announce_list, long file_length){
+		Tracker first = null;
+		for(List<String> tier_urls: announce_list){
+			List<String> shuffled = new ArrayList<String>(tier_urls);
+			Collections.shuffle(shuffled);
+			List<Tracker> tier = new ArrayList<Tracker>();
+			for(String url: shuffled){
+				Tracker tracker = first == null ? new Tracker(file_length) : new Tracker(file_length, first.getUser_id(), first.getKey());
+				if(first == null){
+					first = tracker;
+				}
+				tier.add(tracker);
+				all.add(tracker);
+				urls.add(url);
+			}
+			if(!tier.isEmpty()){
+				tiers.add(tier);
+			}
+		}
+		if(first == null){
+			throw new IllegalArgumentException("torrent has no trackers");
+		}
+		this.usrid = first.getUser_id();
+		if(all.size() > 1){
+			//another tracker is a faster retry than backing off on a dead one
+			for(Tracker tracker: all){
+				tracker.setAttempts(1);
+			}
+		}
+	}
+
+	/**
+	 * Updates downloaded and uploaded fields for every tracker
+	 * @param downloaded
+	 * @param uploaded
+	 */
+	public void updateProgress(long downloaded, long uploaded){
+		for(Tracker tracker: all){
+			tracker.updateProgress(downloaded, uploaded);
+		}
+	}
+
+	/**
+	 * Builds the announce request of every tracker
+	 * @param info_hash byte[] extracted from torrentinfo
+	 * @param port Port number that client is listening on for incoming connections
+	 */
+	public void constructURL(ByteBuffer info_hash, int port){
+		for(int i = 0; i < all.size(); i++){
+			all.get(i).constructURL(urls.get(i), info_hash, port);
+		}
+	}
+
+	/**
+	 * Announces tier by tier and blocks until a tracker answers
+	 * @param event name of event being passed to the tracker (started, stopped, completed, null)
+	 * @return response of the first tracker that answered
+	 * @throws Exception exception of the last tracker tried when none answered
+	 */
+	public Response announce(String event) throws Exception{
+		Exception last = null;
+		for(List<Tracker> tier: snapshot()){
+			for(Tracker tracker: tier){
+				try {
+					Response response = tracker.announce(event);
+					promote(tracker);
+					return response;
+				}catch (Exception e){
+					last = e;
+				}
+			}
+		}
+		throw last;
+	}
+
+	/**
+	 * Announces to every tracker of the first tier in parallel, falling back to the next tier
+	 * once all of them have failed. The callback is called exactly once
+	 * @param event name of event being passed to the tracker (started, stopped, completed, null)
+	 * @param callback receives the first response or the failure of the last tier
+	 */
+	public void announceAsync(String event, Tracker.AnnounceCallback callback){
+		announceTier(snapshot(), 0, event, callback);
+	}
+
+	/**
+	 * Announces like announceAsync without retries, and waits at most timeout for a tracker to answer.
+	 * Used for the stopped event on shutdown, where a dead tracker must not hold up the client
+	 * @param event name of event being passed to the tracker
+	 * @param timeout milliseconds to wait
+	 * @return true if a tracker answered in time
+	 * @throws InterruptedException if interrupted while waiting
+	 */
+	public boolean announceWithin(String event, long timeout) throws InterruptedException{
+		for(Tracker tracker: all){
+			tracker.setAttempts(1);
+		}
+		final CountDownLatch done = new CountDownLatch(1);
+		final AtomicBoolean answered = new AtomicBoolean(false);
+		announceAsync(event, new Tracker.AnnounceCallback(){
+			public void announceSucceeded(String event, Response response){
+				answered.set(true);
+				done.countDown();
+			}
+			public void announceFailed(String event, Exception e){
+				done.countDown();
+			}
+		});
+		done.await(timeout, TimeUnit.MILLISECONDS);
+		return answered.get();
+	}
+
+	private void announceTier(final List<List<Tracker>> tiers, final int index, String event, final Tracker.AnnounceCallback callback){
+
+		List<Tracker> tier = tiers.get(index);
+		final AtomicBoolean answered = new AtomicBoolean(false);
+		final AtomicInteger failures = new AtomicInteger(tier.size());
+
+		for(final Tracker tracker: tier){
+			tracker.announceAsync(event, new Tracker.AnnounceCallback(){
+				public void announceSucceeded(String event, Response response){
+					if(answered.compareAndSet(false, true)){
+						promote(tracker);
+						callback.announceSucceeded(event, response);
+					}
+				}
+				public void announceFailed(String event, Exception e){
+					log.warn("tracker failed", "tier", index, "error", e.getMessage());
+					if(failures.decrementAndGet() > 0 || answered.get()){
+						return;
+					}
+					if(index + 1 < tiers.size()){
+						announceTier(tiers, index + 1, event, callback);
+					}else {
+						callback.announceFailed(event, e);
+					}
+				}
+			});
+		}
+	}
+
+	/**
+	 * Moves a tracker that answered to the front of its tier
+	 * @param tracker responsive tracker
+	 */
+	private synchronized void promote(Tracker tracker){
+		for(List<Tracker> tier: tiers){
+			if(tier.remove(tracker)){
+				tier.add(0, tracker);
+				return;
+			}
+		}
+	}
+
+	private synchronized List<List<Tracker>> snapshot(){
+		List<List<Tracker>> copy = new ArrayList<List<Tracker>>(tiers.size());
+		for(List<Tracker> tier: tiers){
+			copy.add(new ArrayList<Tracker>(tier));
+		}
+		return copy;
+	}
+
+	/**
+	 * Stops the announcer thread of every tracker
+	 */
+	public void shutdown(){
+		for(Tracker tracker: all){
+			tracker.shutdown();
+		}
+	}
+
+	/**
+	 * @return peer id announced to every tracker
+	 */
+	public byte[] getUser_id(){
+		return usrid;
+	}
+
+	/**
+	 * @return interval Time until next tracker contact
+	 */
+	public int getInterval(){
+		return interval;
+	}
+
+	/**
+	 * @param interval Time until next tracker contact
+	 */
+	public void setInterval(int interval){
+		this.interval = interval;
+	}
+}
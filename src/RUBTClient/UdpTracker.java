@@ -0,0 +1,263 @@
+package RUBTClient;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.util.Random;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * UdpTracker speaks the UDP tracker protocol (BEP 15) to a single tracker. All UdpTrackers share one
+ * DatagramChannel and one receiver thread that hands each datagram to the request waiting on its
+ * transaction id.
+ */
+public class UdpTracker {
+
+	private static final Log log = Log.get(UdpTracker.class);
+
+	/**
+	 * Announce event ids used by the UDP protocol
+	 */
+	public static final int EVENT_NONE 		= 0;
+	public static final int EVENT_COMPLETED = 1;
+	public static final int EVENT_STARTED 	= 2;
+	public static final int EVENT_STOPPED 	= 3;
+
+	private static final long 	PROTOCOL_ID 	= 0x41727101980L;
+	private static final int 	ACTION_CONNECT 	= 0;
+	private static final int 	ACTION_ANNOUNCE = 1;
+	private static final int 	ACTION_ERROR 	= 3;
+
+	private static final int 	TIMEOUT 		= 15 * 1000;	//milliseconds before the first retransmit, doubled on every retransmit
+	private static final int 	MAX_RETRANSMITS = 3;			//BEP 15 allows 8, we give up earlier so the caller can retry or fail over
+	private static final long 	CONNECTION_TTL 	= 60 * 1000;	//milliseconds a connection id may be used by the client
+	private static final int 	MAX_PACKET 		= 2048;
+
+	private static final Random random = new Random();
+	private static final ConcurrentHashMap<Integer, BlockingQueue<byte[]>> pending = new ConcurrentHashMap<Integer, BlockingQueue<byte[]>>();
+	private static DatagramChannel channel;
+
+	private final SocketAddress address;
+	private final int 		key;		//sent with every announce so the tracker knows us if our address changes
+	private long 	connection_id;
+	private long 	connection_time;
+
+	/**
+	 * @param announce_url udp://host:port[/path] url of the tracker
+	 * @param key random key of the client, the same for every announce
+	 */
+	public UdpTracker(String announce_url, int key){
+		URI uri = URI.create(announce_url);
+		this.address = new InetSocketAddress(uri.getHost(), uri.getPort());
+		this.key = key;
+	}
+
+	/**
+	 * @param announce_url announce url from the torrent metainfo
+	 * @return true if the url uses the udp scheme
+	 */
+	public static boolean isUdp(String announce_url){
+		return announce_url != null && announce_url.regionMatches(true, 0, "udp://", 0, 6);
+	}
+
+	/**
+	 * Announces to the tracker, connecting first if there is no valid connection id
+	 * @param info_hash info hash of the torrent
+	 * @param peer_id our peer id
+	 * @param downloaded bytes downloaded
+	 * @param left bytes left to download
+	 * @param uploaded bytes uploaded
+	 * @param event one of the EVENT_ constants
+	 * @param port port we are listening on
+	 * @return Response holding the interval and the compact peer list
+	 * @throws IOException if the tracker did not answer or answered with an error
+	 */
+	public Response announce(byte[] info_hash, byte[] peer_id, long downloaded, long left, long uploaded, int event, int port) throws IOException{
+
+		ByteBuffer request = ByteBuffer.allocate(98);
+		request.putLong(0);		//connection id, filled in by send
+		request.putInt(ACTION_ANNOUNCE);
+		request.putInt(0);		//transaction id, filled in by send
+		request.put(info_hash, 0, 20);
+		request.put(peer_id, 0, 20);
+		request.putLong(downloaded);
+		request.putLong(left);
+		request.putLong(uploaded);
+		request.putInt(event);
+		request.putInt(0);		//ip address, 0 lets the tracker use the source address
+		request.putInt(key);
+		request.putInt(-1);		//num_want, -1 for the tracker default
+		request.putShort((short) port);
+
+		ByteBuffer response = send(request, ACTION_ANNOUNCE, 20);
+		int interval = response.getInt();
+		int leechers = response.getInt();
+		int seeders  = response.getInt();
+		byte[] compact_peers = new byte[response.remaining()];
+		response.get(compact_peers);
+		return new Response(interval, seeders, leechers, compact_peers);
+	}
+
+	/**
+	 * Fills in the connection and transaction ids and sends the request, retransmitting until it is answered.
+	 * A missing or expired connection id is fetched first, and the connect request shares the retransmits
+	 * and their growing timeout with the request
+	 * @param request request with its header at position 0
+	 * @param action action the response is expected to carry
+	 * @param min_length smallest valid response length
+	 * @return response positioned after the action and transaction id
+	 * @throws IOException on error responses and after the last retransmit timed out
+	 */
+	private ByteBuffer send(ByteBuffer request, int action, int min_length) throws IOException{
+
+		int timeout = TIMEOUT;
+		for(int attempt = 0; attempt <= MAX_RETRANSMITS; attempt++){
+			Long id = connectionId();
+			if(id == null){
+				id = connect(timeout);
+				if(id == null){
+					timeout *= 2;
+					continue;
+				}
+			}
+			request.putLong(0, id);
+			byte[] response = exchange(request, timeout);
+			if(response == null){
+				timeout *= 2;
+				continue;
+			}
+			ByteBuffer buffer = ByteBuffer.wrap(response);
+			int response_action = buffer.getInt();
+			buffer.getInt();
+			if(response_action == ACTION_ERROR){
+				//an error most often means our connection id expired on the tracker's side
+				invalidate();
+				throw new IOException("tracker error: " + new String(response, 8, response.length - 8, "ASCII"));
+			}
+			if(response_action != action || response.length < min_length){
+				throw new IOException("malformed response from udp tracker " + address);
+			}
+			return buffer;
+		}
+		invalidate();
+		throw new IOException("udp tracker " + address + " timed out");
+	}
+
+	/**
+	 * @return cached connection id, or null if it is missing or expired
+	 */
+	private synchronized Long connectionId(){
+		if(connection_time != 0 && System.currentTimeMillis() - connection_time < CONNECTION_TTL){
+			return connection_id;
+		}
+		return null;
+	}
+
+	/**
+	 * Sends one connect request. No lock is held while waiting, so a tracker that does not answer
+	 * only delays the announces made to it
+	 * @param timeout milliseconds to wait
+	 * @return the connection id the tracker gave, or null on timeout
+	 * @throws IOException if the tracker answered with anything but a connect response
+	 */
+	private Long connect(int timeout) throws IOException{
+
+		ByteBuffer request = ByteBuffer.allocate(16);
+		request.putLong(PROTOCOL_ID);
+		request.putInt(ACTION_CONNECT);
+		request.putInt(0);
+
+		byte[] response = exchange(request, timeout);
+		if(response == null){
+			return null;
+		}
+		ByteBuffer buffer = ByteBuffer.wrap(response);
+		if(response.length < 16 || buffer.getInt() != ACTION_CONNECT){
+			throw new IOException("udp tracker " + address + " refused connect");
+		}
+		buffer.getInt();
+		long id = buffer.getLong();
+		synchronized(this){
+			connection_id = id;
+			connection_time = System.currentTimeMillis();
+		}
+		return id;
+	}
+
+	private synchronized void invalidate(){
+		connection_time = 0;
+	}
+
+	/**
+	 * Sends one datagram with a fresh transaction id and waits for the matching answer
+	 * @param request request with a transaction id slot at position 12
+	 * @param timeout milliseconds to wait
+	 * @return the answer, or null on timeout
+	 */
+	private byte[] exchange(ByteBuffer request, int timeout) throws IOException{
+
+		DatagramChannel channel = channel();
+		int transaction_id;
+		BlockingQueue<byte[]> answer = new ArrayBlockingQueue<byte[]>(1);
+		do {
+			transaction_id = random.nextInt();
+		}while(pending.putIfAbsent(transaction_id, answer) != null);
+
+		try {
+			request.putInt(12, transaction_id);
+			request.rewind();
+			channel.send(request, address);
+			return answer.poll(timeout, TimeUnit.MILLISECONDS);
+		}catch (InterruptedException e){
+			Thread.currentThread().interrupt();
+			throw new IOException("interrupted while waiting for udp tracker");
+		}finally {
+			pending.remove(transaction_id);
+		}
+	}
+
+	/**
+	 * @return the DatagramChannel shared by every UdpTracker, opened with its receiver thread on first use
+	 */
+	private static synchronized DatagramChannel channel() throws IOException{
+
+		if(channel != null){
+			return channel;
+		}
+		channel = DatagramChannel.open();
+		channel.bind(null);
+		final DatagramChannel receiving = channel;
+		Thread receiver = new Thread("udpTrackerReceiver"){
+			public void run(){
+				ByteBuffer buffer = ByteBuffer.allocate(MAX_PACKET);
+				while(receiving.isOpen()){
+					try {
+						buffer.clear();
+						receiving.receive(buffer);
+						buffer.flip();
+						if(buffer.remaining() < 8){
+							continue;
+						}
+						BlockingQueue<byte[]> answer = pending.get(buffer.getInt(4));
+						if(answer != null){
+							byte[] datagram = new byte[buffer.remaining()];
+							buffer.get(datagram);
+							answer.offer(datagram);
+						}
+					}catch (IOException e){
+						log.warn("receive failed", "error", e.getMessage());
+					}
+				}
+			}
+		};
+		receiver.setDaemon(true);
+		receiver.start();
+		return channel;
+	}
+}
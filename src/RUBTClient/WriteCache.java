@@ -0,0 +1,249 @@
+package RUBTClient;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * Write-behind cache between verified pieces and Storage. Verified pieces are handed over with their
+ * buffers and written later. The flusher thread decides when to flush and hands every run of adjacent
+ * pieces to the disk threads as one gathering write. Until a piece is flushed, reads of it are served from the cache. When the cached
+ * bytes reach the memory ceiling the cache reports itself congested so no new pieces are requested.
+ */
+public class WriteCache {
+
+	private static final Log log = Log.get(WriteCache.class);
+
+	/**
+	 * Told about the outcome of flushes, on a disk thread
+	 */
+	public interface Listener {
+
+		/**
+		 * @param piece index of a piece that is now on disk
+		 */
+		void flushed(int piece);
+
+		/**
+		 * @param piece index of a piece whose data was lost
+		 * @param e cause of the failure
+		 */
+		void writeFailed(int piece, IOException e);
+	}
+
+	private final Storage 			storage;
+	private final DiskIO 			disk;
+	private final long 				piece_length;
+	private final PieceBufferPool 	pool;
+	private final Listener 			listener;
+	private final long 				max_bytes;		//cached bytes at which the cache is congested
+	private final long 				flush_bytes;	//cached bytes at which a flush starts without waiting
+	private final long 				max_delay;		//milliseconds a piece may wait before it is flushed
+
+	private final TreeMap<Integer, ByteBuffer> pending = new TreeMap<Integer, ByteBuffer>();
+	private final TreeMap<Integer, ByteBuffer> flushing = new TreeMap<Integer, ByteBuffer>();
+	private long 		cached_bytes;
+	private long 		oldest;				//time the oldest pending piece was added, 0 when empty
+	private boolean 	closed;
+	private final Thread flusher;
+
+	/**
+	 * @param storage storage the pieces are written to
+	 * @param disk disk threads the writes run on
+	 * @param piece_length length of every piece but the last
+	 * @param pool pool the buffers are returned to once written
+	 * @param listener told about every flushed or failed piece
+	 * @param max_bytes memory ceiling in bytes
+	 * @param max_delay milliseconds a piece may wait to be coalesced with its neighbours
+	 */
+	public WriteCache(Storage storage, DiskIO disk, long piece_length, PieceBufferPool pool, Listener listener, long max_bytes, long max_delay){
+		this.storage = storage;
+		this.disk = disk;
+		this.piece_length = piece_length;
+		this.pool = pool;
+		this.listener = listener;
+		this.max_bytes = max_bytes;
+		this.flush_bytes = max_bytes / 2;
+		this.max_delay = max_delay;
+		this.flusher = new Thread("writeCacheFlusher"){
+			public void run(){
+				flushLoop();
+			}
+		};
+		this.flusher.setDaemon(true);
+		this.flusher.start();
+	}
+
+	/**
+	 * Takes ownership of a verified piece's buffer
+	 * @param piece index of the piece
+	 * @param data piece data from its position to its limit
+	 */
+	public synchronized void add(int piece, ByteBuffer data){
+		boolean first = pending.isEmpty();
+		if(first){
+			oldest = System.currentTimeMillis();
+		}
+		pending.put(piece, data);
+		cached_bytes += data.remaining();
+		//the flusher waits without a timeout while nothing is pending, the first piece starts its delay
+		if(first || cached_bytes >= flush_bytes){
+			notifyAll();
+		}
+	}
+
+	/**
+	 * Copies cached bytes of a piece that has not been flushed yet
+	 * @param piece index of the piece
+	 * @param begin offset within the piece
+	 * @param dst buffer filled from its position to its limit
+	 * @return true if the piece was cached and dst was filled
+	 */
+	public synchronized boolean read(int piece, int begin, ByteBuffer dst){
+		ByteBuffer data = pending.get(piece);
+		if(data == null){
+			data = flushing.get(piece);
+		}
+		if(data == null || begin + dst.remaining() > data.remaining()){
+			return false;
+		}
+		ByteBuffer source = data.duplicate();
+		source.position(source.position() + begin);
+		source.limit(source.position() + dst.remaining());
+		dst.put(source);
+		return true;
+	}
+
+	/**
+	 * @return true when the cache holds as many bytes as it may, so no new pieces should be requested
+	 */
+	public synchronized boolean isCongested(){
+		return cached_bytes >= max_bytes;
+	}
+
+	/**
+	 * @return bytes of verified pieces not yet on disk
+	 */
+	public synchronized long getCachedBytes(){
+		return cached_bytes;
+	}
+
+	/**
+	 * Writes every cached piece and stops the flusher thread
+	 */
+	public void close(){
+		synchronized(this){
+			closed = true;
+			notifyAll();
+		}
+		try {
+			flusher.join();
+		}catch (InterruptedException e){
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	private void flushLoop(){
+		while(true){
+			synchronized(this){
+				try {
+					while(!closed && !due()){
+						wait(pending.isEmpty() ? 0 : Math.max(1, oldest + max_delay - System.currentTimeMillis()));
+					}
+				}catch (InterruptedException e){
+					closed = true;
+				}
+				if(pending.isEmpty()){
+					return;		//closed and nothing left to write
+				}
+				flushing.putAll(pending);
+				pending.clear();
+				oldest = 0;
+			}
+			flushRuns();
+		}
+	}
+
+	private boolean due(){
+		return !pending.isEmpty() && (cached_bytes >= flush_bytes || System.currentTimeMillis() - oldest >= max_delay);
+	}
+
+	/**
+	 * Writes the pieces taken from pending, one gathering write per run of adjacent pieces, and waits
+	 * for the disk threads to finish them
+	 */
+	private void flushRuns(){
+		List<List<Integer>> runs = new ArrayList<List<Integer>>();
+		List<List<ByteBuffer>> run_buffers = new ArrayList<List<ByteBuffer>>();
+		Iterator<Map.Entry<Integer, ByteBuffer>> entries;
+		synchronized(this){
+			entries = new ArrayList<Map.Entry<Integer, ByteBuffer>>(flushing.entrySet()).iterator();
+		}
+		List<Integer> run = null;
+		while(entries.hasNext()){
+			Map.Entry<Integer, ByteBuffer> entry = entries.next();
+			if(run == null || entry.getKey() != run.get(run.size() - 1) + 1){
+				run = new ArrayList<Integer>();
+				runs.add(run);
+				run_buffers.add(new ArrayList<ByteBuffer>());
+			}
+			run.add(entry.getKey());
+			run_buffers.get(runs.size() - 1).add(entry.getValue());
+		}
+
+		final CountDownLatch done = new CountDownLatch(runs.size());
+		for(int i = 0; i < runs.size(); i++){
+			final List<Integer> pieces = runs.get(i);
+			final List<ByteBuffer> buffers = run_buffers.get(i);
+			disk.submit(DiskIO.PRIORITY_WRITE, pieces.get(0) * piece_length, new Runnable(){
+				public void run(){
+					try {
+						writeRun(pieces, buffers);
+					}finally {
+						done.countDown();
+					}
+				}
+			});
+		}
+		try {
+			done.await();
+		}catch (InterruptedException e){
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	private void writeRun(List<Integer> run, List<ByteBuffer> buffers){
+		IOException failure = null;
+		FlightEvents.DiskWrite trace = FlightEvents.diskWriteStarted();
+		long bytes = 0;
+		try {
+			ByteBuffer[] srcs = new ByteBuffer[buffers.size()];
+			for(int i = 0; i < srcs.length; i++){
+				srcs[i] = buffers.get(i).duplicate();
+				bytes += srcs[i].remaining();
+			}
+			storage.write(run.get(0), srcs);
+		}catch (IOException e){
+			log.error("write failed", e, "first", run.get(0), "last", run.get(run.size() - 1));
+			failure = e;
+		}
+		FlightEvents.diskWritten(trace, run.get(0), run.size(), bytes, failure != null);
+		for(int i = 0; i < run.size(); i++){
+			synchronized(this){
+				flushing.remove(run.get(i));
+				cached_bytes -= buffers.get(i).remaining();
+			}
+			pool.release(buffers.get(i));
+			if(failure == null){
+				listener.flushed(run.get(i));
+			}else {
+				listener.writeFailed(run.get(i), failure);
+			}
+		}
+	}
+}
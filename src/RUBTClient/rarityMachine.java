@@ -1,197 +1,100 @@
 package RUBTClient;
 
-import java.util.Arrays;
-import java.util.Hashtable;
-import java.util.Iterator;
+import java.util.concurrent.atomic.AtomicIntegerArray;
 
 /**
  * @author rioscm
- * rarityMachine encapsulates a hashtable of 'boolfields' representing bitfields for each peer, for easy enumeration to find the rarest piece
+ * rarityMachine keeps a count of how many connected peers have each piece, updated as peers send their
+ * bitfields and haves and as they leave, for easy enumeration to find the rarest piece. Counts are atomic,
+ * so peers update them and pick pieces without locking
  */
 public class rarityMachine {
-	
-	private Hashtable<byte[], boolean[]> pieceset;
+
+	private final AtomicIntegerArray availability;
 	private final int piececount;
-	private final int expected;
-	private int[] mybitfield;
 	private DestFile destfile;
-	
-	/**
-	 * @param mybitfield to update this bitfield with. Uses the same format as mypieces in Destfile
-	 */
-	public void setMybitfield(int[] mybitfield){
-		this.mybitfield = mybitfield;
-	}
-	
+
 	/**
 	 * @param capacity Number of pieces
 	 * @param destfile	DestFile for some reference
 	 */
 	public rarityMachine(int capacity, DestFile destfile){
-		this.pieceset = new Hashtable<byte[], boolean[]>(capacity);
+		this.availability = new AtomicIntegerArray(capacity);
 		this.piececount = capacity;
-		this.expected = calcExpected(capacity);
 		this.destfile = destfile;
 	}
-	
-	/**Add peer to table with initial bitfield
-	 * @param peerid of peer
-	 * @param bitfield of peer
-	 */
-	public synchronized void addPeer(byte[] peerid, byte[] bitfield){
-		
-		//System.out.println("ADDING BITFIELD FOR " + peerid);
-		//DestFile.printBitfield(bitfield, expected);
-		pieceset.put(peerid, boolfield(bitfield));
-	}
 
-	/**
-	 * @param peerid peer to remove from table
-	 */
-	public void deletePeer(byte[] peerid){
-		
-		if(pieceset.containsKey(peerid)){
-			pieceset.remove(peerid);
-		}
-	}
-	
-	/**Update a specific peer based on a new have message
-	 * @param peerid to update
-	 * @param piece that should be updated
+	/**Count every piece of a peer's initial bitfield that is not counted for the peer yet
+	 * @param bitfield of peer
+	 * @param counted pieces counted for the peer, updated
 	 */
-	public void updatePeer(byte[] peerid, int piece){
-		
-		//System.out.println("UPDATING PEER" + peerid);
-		if(pieceset.contains(peerid)){
-			pieceset.get(peerid)[piece] = true;
+	public void addPeer(Bitfield bitfield, Bitfield counted){
+		for(int i = bitfield.nextSetBit(0); i != -1; i = bitfield.nextSetBit(i + 1)){
+			if(counted.set(i)){
+				availability.incrementAndGet(i);
+			}
 		}
 	}
-	
-	/**
-	 * @param bitfield to convert
-	 * @return boolean array representing bitfield
+
+	/**Stop counting the pieces of a peer that left. Only what was counted for the peer is taken off,
+	 * its bitfield may hold pieces that never were
+	 * @param counted pieces counted for the peer, cleared
 	 */
-	private boolean[] boolfield(byte[] bitfield) {
-		
-		boolean[] ret = new boolean[piececount];
-		
-		if(bitfield.length != expected){
-			System.err.println("Invalid bitfield being entered!");
-			return null;
-		}else{
-			for(int i = 0; i < piececount; i++){
-				
-				int mod = i%8;
-				int currentbyte = (i-(mod)) / 8;
-				
-				if(((bitfield[currentbyte] >> (7-mod) & 1) == 1)){
-					ret[i] = true;
-				}else{
-					ret[i] = false;
-				}
+	public void deletePeer(Bitfield counted){
+		for(int i = counted.nextSetBit(0); i != -1; i = counted.nextSetBit(i + 1)){
+			if(counted.clear(i)){
+				availability.decrementAndGet(i);
 			}
 		}
-		return ret;
 	}
-	
-	/**
-	 * @param input piece count
-	 * @return number of expected digits in bitfield
+
+	/**Count a piece a peer announced with a have message, unless it is counted for the peer already
+	 * @param piece that should be updated
+	 * @param counted pieces counted for the peer, updated
 	 */
-	private int calcExpected(int input){
-		
-		int mod = input % 8;
-		if(mod == 0){
-			return input/8;
-		}else{
-			return (input/8)+1;
+	public void updatePeer(int piece, Bitfield counted){
+		if(counted.set(piece)){
+			availability.incrementAndGet(piece);
 		}
 	}
-	
+
 	/**
-	 * @return Counter array, each one representing a piece and how many peers have it
+	 * @param piece index of the piece
+	 * @return number of connected peers that have the piece
 	 */
-	private Counter[] enumerate(){
-		
-		Counter[] count = new Counter[piececount];
-		for(int i = 0; i < piececount; i++){
-			count[i] = new Counter(i);
-		}
-		
-		Iterator<boolean[]> values = pieceset.values().iterator();
-		
-		while(values.hasNext()){
-			
-			boolean[] temp = values.next();
-			
-			for(int i = 0; i < piececount; i++){
-				if(temp[i]){
-					count[i].increment();
-					//System.out.println("Piece " + i + " incremented to " + count[i].getCount());
-				}else{
-					//System.out.println("PIECE " + i + " NOT INCREMENTED");
-				}
-			}
-		}
-		return count;
+	public int getAvailability(int piece){
+		return availability.get(piece);
 	}
-	
+
 	/**
 	 * @param bitfield of remote peer
-	 * @return identifier number of the rarest piece
+	 * @return identifier number of the rarest piece the remote peer has and we neither have nor are downloading, or -1 if there is none
 	 */
-	public synchronized int rarestPiece(byte[] bitfield){
-		
-		Counter[] values = enumerate();
-		Arrays.sort(values);
-		
-		Counter rarest = identifyRarest(values, bitfield);
-		
-//		System.out.println("PRINTING RARITIES");
-//		System.out.println("--------------------");
-//		for(int i = 0; i<piececount; i++){
-//			System.out.println("Piece " + values[i].getIdentifier() + ": " + values[i].getCount());
-//		}
-//		
-//		System.out.println("RAREST PIECE IS: " + rarest.getIdentifier());
-		
-		return rarest.getIdentifier();
+	public int rarestPiece(Bitfield bitfield){
+		return rarestPiece(bitfield, null);
 	}
 
 	/**
-	 * @param values hopefully already sorted in ascending order of popularity
-	 * @return Smallest piece. TODO implement randomness
+	 * @param bitfield of remote peer
+	 * @param candidates pieces to choose from, or null for all
+	 * @return identifier number of the rarest candidate the remote peer has and we neither have nor are downloading, or -1 if there is none
 	 */
-	private Counter identifyRarest(Counter[] values, byte[] bitfield) {
-		
-//		int benchmark = values[0].getCount();
-//		int cutoff = 0;
-//		
-//		for(int i = 0; i < values.length; i++){
-//			
-//			if(values[i].getCount() > benchmark){
-//				
-//				cutoff = i + 1;
-//				break;
-//			}
-//		}
-//		
-//		Random generator = new Random();
-//		int select = generator.;
-//		
-//		while(mybitfield[select = generator.nextInt()] == 2){
-//			select = generator.nextInt();
-//		}
-		
-		boolean[] bools = boolfield(bitfield);
-		
-		for(int i = 0; i<piececount; i++){
-			if(mybitfield[values[i].getIdentifier()] == 0 && bools[values[i].getIdentifier()]){
-				destfile.markInProgress(i);
-				return values[i];
+	public int rarestPiece(Bitfield bitfield, Bitfield candidates){
+
+		Bitfield completed = destfile.getMybitfield();
+		Bitfield in_progress = destfile.getInProgress();
+		int rarest = -1;
+		int rarest_count = Integer.MAX_VALUE;
+		for(int i = bitfield.nextSetBitIn(0, candidates, completed, in_progress); i != -1 && i < piececount; i = bitfield.nextSetBitIn(i + 1, candidates, completed, in_progress)){
+			int count = availability.get(i);
+			if(count < rarest_count){
+				rarest = i;
+				rarest_count = count;
+				if(count <= 1){
+					break;		//nobody else has it, it cannot get rarer
+				}
 			}
 		}
-		
-		return new Counter(-1);
+		return rarest;
 	}
 }
@@ -25,6 +25,9 @@ import java.net.URL;
 import java.nio.ByteBuffer;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
 import java.util.Map;
 
 import edu.rutgers.cs.cs352.bt.exceptions.BencodingException;
@@ -32,8 +35,8 @@ import edu.rutgers.cs.cs352.bt.util.Bencoder2;
 
 /**
  * This is a data structure class that extracts basic information from a bencoded torrent metainfo
- * file and stores it in public fields.&nbsp; Note that this class only works for torrent metainfo files
- * for a single-file torrent.
+ * file and stores it in public fields.&nbsp; Both single-file and multi-file torrents are supported;
+ * a single-file torrent is described as a multi-file torrent with one file.
  * 
  * @author Robert Moore II
  *
@@ -52,6 +55,18 @@ public class TorrentInfo
     public final static ByteBuffer KEY_LENGTH = ByteBuffer.wrap(new byte[]
     { 'l', 'e', 'n', 'g', 't', 'h' });
 
+    /**
+     * Key used to retrieve the list of files of a multi-file torrent.
+     */
+    public final static ByteBuffer KEY_FILES = ByteBuffer.wrap(new byte[]
+    { 'f', 'i', 'l', 'e', 's' });
+
+    /**
+     * Key used to retrieve the path of a file in a multi-file torrent.
+     */
+    public final static ByteBuffer KEY_PATH = ByteBuffer.wrap(new byte[]
+    { 'p', 'a', 't', 'h' });
+
     /**
      * Key used to retrieve the piece hashes.
      */
@@ -75,6 +90,11 @@ public class TorrentInfo
 	 */
 	public static final ByteBuffer KEY_ANNOUNCE = ByteBuffer.wrap(new byte[] {'a','n','n','o','u','n','c','e'});
 	
+	/**
+	 * ByteBuffer to retrieve the tiers of tracker URLs from the metainfo dictionary.
+	 */
+	public static final ByteBuffer KEY_ANNOUNCE_LIST = ByteBuffer.wrap(new byte[] {'a','n','n','o','u','n','c','e','-','l','i','s','t'});
+	
 	/**
 	 * A byte array containing the raw bytes of the torrent metainfo file.
 	 */
@@ -100,10 +120,23 @@ public class TorrentInfo
 	public final ByteBuffer info_hash;
 	
 	/**
-	 * The base URL of the tracker for client scrapes.
+	 * The base URL of the tracker for client scrapes.&nbsp; This is {@code null} for trackers whose scheme
+	 * {@code java.net.URL} does not support, such as {@code udp://} trackers.
 	 */
 	public final URL announce_url;
 	
+	/**
+	 * The announce URL of the tracker exactly as it appears in the torrent metainfo file.
+	 */
+	public final String announce;
+	
+	/**
+	 * The tiers of tracker URLs.&nbsp; Taken from the announce-list if the metainfo file has one
+	 * (see <a href="http://www.bittorrent.org/beps/bep_0012.html">http://www.bittorrent.org/beps/bep_0012.html</a>),
+	 * otherwise a single tier holding the announce URL.
+	 */
+	public final List<List<String>> announce_list;
+	
 	/**
 	 * The default length of each piece in bytes.&nbsp; Note that the last piece may be irregularly-sized (less than the value of piece_length)
 	 * if the file size is not a multiple of the piece size.
@@ -111,14 +144,55 @@ public class TorrentInfo
 	public final int piece_length;
 	
 	/**
-	 * The name of the file referenced in the torrent metainfo file.
+	 * The name of the file referenced in the torrent metainfo file.&nbsp; For a multi-file torrent this is
+	 * the suggested name of the directory holding the files.
 	 */
 	public final String file_name;
 	
 	/**
-	 * The length of the file in bytes.
+	 * The length of the file in bytes, or the total length of all files of a multi-file torrent.&nbsp;
+	 * This is a {@code long} so files larger than 2 GB are supported.
 	 */
-	public final int file_length;
+	public final long file_length;
+	
+	/**
+	 * The files of the torrent in the order their bytes are laid out in the pieces.&nbsp; A single-file
+	 * torrent has one entry whose path is the file name.
+	 */
+	public final FileInfo[] files;
+	
+	/**
+	 * {@code true} if the info dictionary has a list of files rather than a single length.
+	 */
+	public final boolean multi_file;
+	
+	/**
+	 * A single file of a torrent.
+	 */
+	public static final class FileInfo
+	{
+		/**
+		 * The path components of the file, relative to the directory of the torrent.
+		 */
+		public final String[] path;
+		
+		/**
+		 * The length of the file in bytes.
+		 */
+		public final long length;
+		
+		/**
+		 * The offset of the first byte of the file within the concatenation of all files.
+		 */
+		public final long offset;
+		
+		FileInfo(String[] path, long length, long offset)
+		{
+			this.path = path;
+			this.length = length;
+			this.offset = offset;
+		}
+	}
 	
 	/**
 	 * The SHA-1 hashes of each piece of the file.
@@ -144,15 +218,20 @@ public class TorrentInfo
 		// Assign the metainfo map
 		this.torrent_file_map = (Map<ByteBuffer,Object>)Bencoder2.decode(torrent_file_bytes);
 		
-		// Try to extract the announce URL
+		// Extract the announce-list, if there is one
+		this.announce_list = decodeAnnounceList(this.torrent_file_map.get(TorrentInfo.KEY_ANNOUNCE_LIST));
+		
+		// Try to extract the announce URL, which may be left out when there is an announce-list
 		ByteBuffer url_buff = (ByteBuffer)this.torrent_file_map.get(TorrentInfo.KEY_ANNOUNCE);
-		if(url_buff == null)
+		if(url_buff == null && this.announce_list.isEmpty())
 			throw new BencodingException("Could not retrieve anounce URL from torrent metainfo.  Corrupt file?");
 		
 		try {
-			String url_string = new String(url_buff.array(), "ASCII");
-			URL announce_url = new URL(url_string);
-			this.announce_url = announce_url;
+			String url_string = url_buff == null ? this.announce_list.get(0).get(0) : new String(url_buff.array(), "ASCII");
+			if(this.announce_list.isEmpty())
+				this.announce_list.add(Collections.singletonList(url_string));
+			this.announce = url_string;
+			this.announce_url = url_string.regionMatches(true, 0, "udp://", 0, 6) ? null : new URL(url_string);
 		}
 		catch(UnsupportedEncodingException uee)
 		{
@@ -184,7 +263,7 @@ public class TorrentInfo
 		}
 		
 		// Extract the piece length from the info dictionary
-		Integer piece_length = (Integer)this.info_map.get(TorrentInfo.KEY_PIECE_LENGTH);
+		Number piece_length = (Number)this.info_map.get(TorrentInfo.KEY_PIECE_LENGTH);
 		if(piece_length == null)
 			throw new BencodingException("Could not extract piece length from info dictionary.  Corrupt file?");
 		this.piece_length = piece_length.intValue();
@@ -201,11 +280,23 @@ public class TorrentInfo
 			throw new BencodingException(uee.getLocalizedMessage());
 		}
 		
-		// Extract the file length from the info dictionary
-		Integer file_length = (Integer)this.info_map.get(TorrentInfo.KEY_LENGTH);
-		if(file_length == null)
-			throw new BencodingException("Could not extract file length from info dictionary.  Corrupt file?");
-		this.file_length = file_length.intValue();
+		// Extract the file length, or the list of files, from the info dictionary
+		Object file_list = this.info_map.get(TorrentInfo.KEY_FILES);
+		this.multi_file = file_list != null;
+		if(this.multi_file)
+		{
+			this.files = decodeFiles(file_list);
+			FileInfo last = this.files[this.files.length - 1];
+			this.file_length = last.offset + last.length;
+		}
+		else
+		{
+			Number file_length = (Number)this.info_map.get(TorrentInfo.KEY_LENGTH);
+			if(file_length == null)
+				throw new BencodingException("Could not extract file length from info dictionary.  Corrupt file?");
+			this.file_length = file_length.longValue();
+			this.files = new FileInfo[] { new FileInfo(new String[] { this.file_name }, this.file_length, 0) };
+		}
 		
 		// Extract the piece hashes from the info dictionary
 		ByteBuffer all_hashes = (ByteBuffer)this.info_map.get(TorrentInfo.KEY_PIECES);
@@ -227,4 +318,89 @@ public class TorrentInfo
 			this.piece_hashes[i] = ByteBuffer.wrap(temp_buff);
 		}
 	}
+	
+	/**
+	 * Converts the bencoded list of files of a multi-file torrent, assigning each file its offset.
+	 * @param file_list the decoded value of the files key.
+	 * @return the files in order.
+	 * @throws BencodingException if an entry is missing its length or path, has a negative length, or has
+	 *  		a path component that is empty, "." or "..", or holds a separator.
+	 */
+	@SuppressWarnings("rawtypes")
+	private static FileInfo[] decodeFiles(Object file_list) throws BencodingException
+	{
+		if(!(file_list instanceof List) || ((List)file_list).isEmpty())
+			throw new BencodingException("files is not a list of files.  Corrupt file?");
+		List entries = (List)file_list;
+		FileInfo[] files = new FileInfo[entries.size()];
+		long offset = 0;
+		try {
+			for(int i = 0; i < files.length; i++)
+			{
+				Map entry = (Map)entries.get(i);
+				Number length = (Number)entry.get(TorrentInfo.KEY_LENGTH);
+				List path_list = (List)entry.get(TorrentInfo.KEY_PATH);
+				if(length == null || path_list == null || path_list.isEmpty())
+					throw new BencodingException("File " + i + " is missing its length or path.  Corrupt file?");
+				if(length.longValue() < 0)
+					throw new BencodingException("File " + i + " has a negative length.  Corrupt file?");
+				String[] path = new String[path_list.size()];
+				for(int j = 0; j < path.length; j++)
+				{
+					path[j] = new String(((ByteBuffer)path_list.get(j)).array(), "UTF-8");
+					if(path[j].isEmpty() || path[j].equals(".") || path[j].equals("..")
+							|| path[j].indexOf('/') >= 0 || path[j].indexOf('\\') >= 0)
+						throw new BencodingException("File " + i + " has an unsafe path.  Corrupt file?");
+				}
+				files[i] = new FileInfo(path, length.longValue(), offset);
+				offset += length.longValue();
+			}
+		}
+		catch(UnsupportedEncodingException uee)
+		{
+			throw new BencodingException(uee.getLocalizedMessage());
+		}
+		catch(ClassCastException cce)
+		{
+			throw new BencodingException("files has an entry of the wrong type.  Corrupt file?");
+		}
+		return files;
+	}
+	
+	/**
+	 * Converts the bencoded announce-list into lists of URL strings, dropping empty tiers.
+	 * @param announce_list the decoded announce-list, or {@code null} if the metainfo file has none
+	 * @return the tiers of tracker URLs, empty if there is no announce-list
+	 * @throws BencodingException if the announce-list is not a list of lists of strings
+	 */
+	@SuppressWarnings("rawtypes")
+	private static List<List<String>> decodeAnnounceList(Object announce_list) throws BencodingException
+	{
+		List<List<String>> tiers = new ArrayList<List<String>>();
+		if(announce_list == null)
+			return tiers;
+		if(!(announce_list instanceof List))
+			throw new BencodingException("announce-list is not a list.  Corrupt file?");
+		
+		try {
+			for(Object tier : (List)announce_list)
+			{
+				if(!(tier instanceof List))
+					throw new BencodingException("announce-list tier is not a list.  Corrupt file?");
+				List<String> urls = new ArrayList<String>();
+				for(Object url : (List)tier)
+				{
+					if(url instanceof ByteBuffer)
+						urls.add(new String(((ByteBuffer)url).array(), "ASCII"));
+				}
+				if(!urls.isEmpty())
+					tiers.add(urls);
+			}
+		}
+		catch(UnsupportedEncodingException uee)
+		{
+			throw new BencodingException(uee.getLocalizedMessage());
+		}
+		return tiers;
+	}
 }
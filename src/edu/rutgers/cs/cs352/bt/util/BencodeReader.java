@@ -0,0 +1,298 @@
+/*
+ *  RUBTClient is a BitTorrent client written at Rutgers University for
+ *  instructional use.
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package edu.rutgers.cs.cs352.bt.util;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+
+import edu.rutgers.cs.cs352.bt.exceptions.BencodingException;
+
+/**
+ * Single pass, cursor based bencoding decoder.&nbsp; The reader keeps its position as a primitive
+ * offset into the source array, so decoding allocates nothing but the decoded values themselves.
+ * Values can be read as objects ({@link #readValue()}), or pulled one token at a time
+ * ({@link #readLong()}, {@link #readString()}, {@link #skipValue()}, {@link #findValue(byte[])}).
+ * <p>
+ * When the reader is created with {@code zero_copy} set, byte strings are returned as slices of the
+ * source array instead of copies.&nbsp; The bytes of a slice are between its {@code position()} and
+ * {@code limit()}; its {@code array()} is the whole source array.&nbsp; Tracker responses and peer
+ * exchange messages are read this way, so their peer lists are never copied.
+ */
+public final class BencodeReader
+{
+    private final byte[] source;
+    private final int limit;
+    private final boolean zero_copy;
+    private int position;
+
+    /**
+     * Creates a reader over the whole array that copies byte strings.
+     * @param source the bencoded data.
+     */
+    public BencodeReader(byte[] source)
+    {
+        this(source, 0, source.length, false);
+    }
+
+    /**
+     * Creates a reader over part of an array.
+     * @param source the bencoded data.
+     * @param offset offset of the first byte to decode.
+     * @param length number of bytes that may be decoded.
+     * @param zero_copy {@code true} to return byte strings as slices of {@code source}.
+     */
+    public BencodeReader(byte[] source, int offset, int length, boolean zero_copy)
+    {
+        if(offset < 0 || length < 0 || offset + length > source.length)
+            throw new IllegalArgumentException("Range is outside of the source array.");
+        this.source = source;
+        this.position = offset;
+        this.limit = offset + length;
+        this.zero_copy = zero_copy;
+    }
+
+    /**
+     * @return the offset of the next byte to be decoded.
+     */
+    public int position()
+    {
+        return this.position;
+    }
+
+    /**
+     * @return {@code true} if every byte has been decoded.
+     */
+    public boolean atEnd()
+    {
+        return this.position >= this.limit;
+    }
+
+    /*
+     ********************************************
+     ************** PULL METHODS ****************
+     ********************************************
+     */
+
+    /**
+     * Decodes the next value as {@code HashMap}, {@code ArrayList}, {@code ByteBuffer}, {@code Integer}
+     * or, for integers that do not fit in 32 bits, {@code Long}.
+     * @return the decoded value.
+     * @throws BencodingException if the value is incorrectly encoded.
+     */
+    @SuppressWarnings({ "rawtypes", "unchecked" })
+    public Object readValue() throws BencodingException
+    {
+        switch(peek())
+        {
+        case 'd':
+            HashMap map = new HashMap();
+            this.position++;
+            while(peek() != 'e')
+            {
+                ByteBuffer key = readString();
+                Object value = readValue();
+                if(value != null)
+                    map.put(key, value);
+            }
+            this.position++;
+            return map;
+        case 'l':
+            ArrayList list = new ArrayList();
+            this.position++;
+            while(peek() != 'e')
+                list.add(readValue());
+            this.position++;
+            return list;
+        case 'i':
+            long value = readLong();
+            if(value >= Integer.MIN_VALUE && value <= Integer.MAX_VALUE)
+                return Integer.valueOf((int)value);
+            return Long.valueOf(value);
+        default:
+            return readString();
+        }
+    }
+
+    /**
+     * Decodes the next value, which must be an integer.
+     * @return the decoded integer.
+     * @throws BencodingException if the next value is not an integer or does not fit in 64 bits.
+     */
+    public long readLong() throws BencodingException
+    {
+        if(peek() != 'i')
+            throw new BencodingException("Expected an integer at position " + this.position + ".");
+        this.position++;
+        long value = parseDigits('e');
+        this.position++;    // Skip the 'e'
+        return value;
+    }
+
+    /**
+     * Decodes the next value, which must be a byte string.
+     * @return the byte string, copied or sliced depending on how the reader was created.
+     * @throws BencodingException if the next value is not a byte string.
+     */
+    public ByteBuffer readString() throws BencodingException
+    {
+        int length = stringHeader();
+        int offset = this.position;
+        this.position += length;
+        if(this.zero_copy)
+            return ByteBuffer.wrap(this.source, offset, length).slice();
+        byte[] copy = new byte[length];
+        System.arraycopy(this.source, offset, copy, 0, length);
+        return ByteBuffer.wrap(copy);
+    }
+
+    /**
+     * Skips over the next value without decoding it.
+     * @return the offset just past the skipped value.
+     * @throws BencodingException if the value is incorrectly encoded.
+     */
+    public int skipValue() throws BencodingException
+    {
+        int depth = 0;
+        do
+        {
+            switch(peek())
+            {
+            case 'd':
+            case 'l':
+                depth++;
+                this.position++;
+                break;
+            case 'e':
+                if(depth == 0)
+                    throw new BencodingException("Unexpected 'e' at position " + this.position + ".");
+                depth--;
+                this.position++;
+                break;
+            case 'i':
+                readLong();
+                break;
+            default:
+                int length = stringHeader();
+                this.position += length;
+            }
+        } while(depth > 0);
+        return this.position;
+    }
+
+    /**
+     * Looks up a key of the dictionary at the current position without decoding any other entry.&nbsp;
+     * The position is left after the whole dictionary.
+     * @param key the key to look for.
+     * @return the offsets of the first byte of the value and just past it, or {@code null} if the key is missing.
+     * @throws BencodingException if the next value is not a correctly encoded dictionary.
+     */
+    public int[] findValue(byte[] key) throws BencodingException
+    {
+        if(peek() != 'd')
+            throw new BencodingException("Expected a dictionary at position " + this.position + ".");
+        this.position++;
+        int[] span = null;
+        while(peek() != 'e')
+        {
+            int length = stringHeader();
+            boolean match = span == null && length == key.length && regionEquals(key, this.position);
+            this.position += length;
+            int start = this.position;
+            skipValue();
+            if(match)
+                span = new int[] { start, this.position };
+        }
+        this.position++;
+        return span;
+    }
+
+    /*
+     ********************************************
+     ************* HELPER METHODS ***************
+     ********************************************
+     */
+
+    /**
+     * @return the byte at the current position.
+     * @throws BencodingException if the end of the data was reached.
+     */
+    private int peek() throws BencodingException
+    {
+        if(this.position >= this.limit)
+            throw new BencodingException("Unexpected end of data at position " + this.position + ".");
+        return this.source[this.position];
+    }
+
+    /**
+     * Reads the length prefix and ':' of a byte string.
+     * @return the length of the byte string, with the position at its first byte.
+     * @throws BencodingException if the prefix is malformed or the string runs past the end of the data.
+     */
+    private int stringHeader() throws BencodingException
+    {
+        int c = peek();
+        if(c < '0' || c > '9')
+            throw new BencodingException("Error: Invalid character at position " + this.position + ".\nExpecting a byte string but found '" + (char)c + "'.");
+        long length = parseDigits(':');
+        this.position++;    // Skip the ':'
+        if(length > this.limit - this.position)
+            throw new BencodingException("Byte string at position " + this.position + " runs past the end of the data.");
+        return (int)length;
+    }
+
+    /**
+     * Parses an optionally negative decimal number up to {@code terminator}, leaving the position on the terminator.
+     */
+    private long parseDigits(char terminator) throws BencodingException
+    {
+        int start = this.position;
+        boolean negative = false;
+        if(this.position < this.limit && this.source[this.position] == '-')
+        {
+            negative = true;
+            this.position++;
+        }
+        long value = 0;
+        int digits = 0;
+        while(peek() != terminator)
+        {
+            int digit = this.source[this.position] - '0';
+            if(digit < 0 || digit > 9)
+                throw new BencodingException("Expected an ASCII integer character, found " + (int)this.source[this.position] + " at position " + this.position + ".");
+            if(value > (Long.MAX_VALUE - digit) / 10)
+                throw new BencodingException("Integer at position " + start + " does not fit in 64 bits.");
+            value = value * 10 + digit;
+            digits++;
+            this.position++;
+        }
+        if(digits == 0)
+            throw new BencodingException("Could not parse integer at position " + start + ".");
+        return negative ? -value : value;
+    }
+
+    private boolean regionEquals(byte[] key, int offset)
+    {
+        for(int i = 0; i < key.length; i++)
+        {
+            if(this.source[offset + i] != key[i])
+                return false;
+        }
+        return true;
+    }
+}
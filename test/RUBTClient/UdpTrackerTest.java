@@ -0,0 +1,169 @@
+package RUBTClient;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Checks the BEP 15 packets UdpTracker sends and the answers it accepts, against a tracker played by the test
+ */
+public class UdpTrackerTest {
+
+	private static final long 	PROTOCOL_ID 	= 0x41727101980L;
+	private static final long 	CONNECTION_ID 	= 0x1122334455667788L;
+	private static final int 	KEY 			= 0xCAFE;
+
+	private DatagramSocket 		tracker;
+	private ExecutorService 	announcer;
+	private byte[] 				info_hash = new byte[20];
+	private byte[] 				peer_id = new byte[20];
+
+	@Before
+	public void setUp() throws IOException{
+		tracker = new DatagramSocket(0, InetAddress.getLoopbackAddress());
+		tracker.setSoTimeout(5000);
+		announcer = Executors.newSingleThreadExecutor();
+		for(int i = 0; i < 20; i++){
+			info_hash[i] = (byte) i;
+			peer_id[i] = (byte) ('A' + i);
+		}
+	}
+
+	@After
+	public void tearDown(){
+		announcer.shutdownNow();
+		tracker.close();
+	}
+
+	@Test
+	public void announceConnectsFirstAndSendsEveryField() throws Exception{
+		Future<Response> response = announce(UdpTracker.EVENT_STARTED);
+
+		DatagramPacket connect = receive();
+		ByteBuffer request = ByteBuffer.wrap(connect.getData(), 0, connect.getLength());
+		assertEquals(16, connect.getLength());
+		assertEquals(PROTOCOL_ID, request.getLong());
+		assertEquals(0, request.getInt());		//connect
+		int transaction_id = request.getInt();
+		reply(connect, ByteBuffer.allocate(16).putInt(0).putInt(transaction_id).putLong(CONNECTION_ID));
+
+		DatagramPacket announce = receive();
+		request = ByteBuffer.wrap(announce.getData(), 0, announce.getLength());
+		assertEquals(98, announce.getLength());
+		assertEquals(CONNECTION_ID, request.getLong());
+		assertEquals(1, request.getInt());		//announce
+		transaction_id = request.getInt();
+		assertArrayEquals(info_hash, bytes(request, 20));
+		assertArrayEquals(peer_id, bytes(request, 20));
+		assertEquals(5000000000L, request.getLong());		//downloaded
+		assertEquals(7L, request.getLong());				//left
+		assertEquals(3L, request.getLong());				//uploaded
+		assertEquals(UdpTracker.EVENT_STARTED, request.getInt());
+		assertEquals(0, request.getInt());		//ip address
+		assertEquals(KEY, request.getInt());
+		assertEquals(-1, request.getInt());		//num_want
+		assertEquals(51413, request.getShort() & 0xFFFF);
+
+		ByteBuffer answer = ByteBuffer.allocate(32);
+		answer.putInt(1).putInt(transaction_id).putInt(1800).putInt(2).putInt(5);
+		answer.put(new byte[] {10, 0, 0, 1}).putShort((short) 6881);
+		answer.put(new byte[] {(byte) 192, (byte) 168, 1, 2}).putShort((short) 51413);
+		reply(announce, answer);
+
+		Response peers = response.get(5, TimeUnit.SECONDS);
+		assertEquals(Integer.valueOf(1800), peers.interval);
+		assertEquals(Integer.valueOf(5), peers.complete);
+		assertEquals(Integer.valueOf(2), peers.incomplete);
+		assertEquals(2, peers.getPeers().size());
+		assertEquals("10.0.0.1", peers.getPeers().get(0).getIp());
+		assertEquals(6881, peers.getPeers().get(0).getPort());
+		assertEquals("192.168.1.2", peers.getPeers().get(1).getIp());
+		assertEquals(51413, peers.getPeers().get(1).getPort());
+	}
+
+	@Test
+	public void errorAnswerFailsTheAnnounce() throws Exception{
+		Future<Response> response = announce(UdpTracker.EVENT_NONE);
+
+		DatagramPacket connect = receive();
+		int transaction_id = ByteBuffer.wrap(connect.getData(), 12, 4).getInt();
+		reply(connect, ByteBuffer.allocate(16).putInt(0).putInt(transaction_id).putLong(CONNECTION_ID));
+
+		DatagramPacket announce = receive();
+		transaction_id = ByteBuffer.wrap(announce.getData(), 12, 4).getInt();
+		byte[] message = "torrent not registered".getBytes("ASCII");
+		reply(announce, ByteBuffer.allocate(8 + message.length).putInt(3).putInt(transaction_id).put(message));
+
+		try {
+			response.get(5, TimeUnit.SECONDS);
+			fail("an error answer should fail the announce");
+		}catch (ExecutionException e){
+			assertTrue(e.getCause() instanceof IOException);
+			assertTrue(e.getCause().getMessage().contains("torrent not registered"));
+		}
+	}
+
+	@Test
+	public void answerWithAnotherActionIsRejected() throws Exception{
+		Future<Response> response = announce(UdpTracker.EVENT_NONE);
+
+		DatagramPacket connect = receive();
+		int transaction_id = ByteBuffer.wrap(connect.getData(), 12, 4).getInt();
+		reply(connect, ByteBuffer.allocate(16).putInt(0).putInt(transaction_id).putLong(CONNECTION_ID));
+
+		DatagramPacket announce = receive();
+		transaction_id = ByteBuffer.wrap(announce.getData(), 12, 4).getInt();
+		reply(announce, ByteBuffer.allocate(20).putInt(0).putInt(transaction_id).putLong(CONNECTION_ID).putInt(0));
+
+		try {
+			response.get(5, TimeUnit.SECONDS);
+			fail("a connect answer to an announce should be rejected");
+		}catch (ExecutionException e){
+			assertTrue(e.getCause() instanceof IOException);
+		}
+	}
+
+	private Future<Response> announce(final int event){
+		final UdpTracker udp = new UdpTracker("udp://127.0.0.1:" + tracker.getLocalPort() + "/announce", KEY);
+		return announcer.submit(new Callable<Response>(){
+			public Response call() throws IOException{
+				return udp.announce(info_hash, peer_id, 5000000000L, 7L, 3L, event, 51413);
+			}
+		});
+	}
+
+	private DatagramPacket receive() throws IOException{
+		DatagramPacket packet = new DatagramPacket(new byte[2048], 2048);
+		tracker.receive(packet);
+		return packet;
+	}
+
+	private void reply(DatagramPacket request, ByteBuffer answer) throws IOException{
+		byte[] data = Arrays.copyOf(answer.array(), answer.position());
+		tracker.send(new DatagramPacket(data, data.length, request.getSocketAddress()));
+	}
+
+	private static byte[] bytes(ByteBuffer buffer, int length){
+		byte[] bytes = new byte[length];
+		buffer.get(bytes);
+		return bytes;
+	}
+}
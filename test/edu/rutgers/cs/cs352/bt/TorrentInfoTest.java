@@ -0,0 +1,153 @@
+/*
+ *  RUBTClient is a BitTorrent client written at Rutgers University for
+ *  instructional use.
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package edu.rutgers.cs.cs352.bt;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+
+import org.junit.Test;
+
+import edu.rutgers.cs.cs352.bt.exceptions.BencodingException;
+import edu.rutgers.cs.cs352.bt.util.Bencoder2;
+
+/**
+ * Tests for the multi-file support of {@link TorrentInfo}, in particular the checks that keep file
+ * paths inside the download directory.
+ */
+public class TorrentInfoTest
+{
+    private static ByteBuffer string(String s)
+    {
+        return ByteBuffer.wrap(s.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * @param length length of the file
+     * @param path components of its path
+     * @return the files list entry for the file
+     */
+    @SuppressWarnings({ "rawtypes", "unchecked" })
+    private static HashMap file(long length, String... path)
+    {
+        ArrayList components = new ArrayList();
+        for(String component : path)
+            components.add(string(component));
+        HashMap entry = new HashMap();
+        entry.put(string("length"), Long.valueOf(length));
+        entry.put(string("path"), components);
+        return entry;
+    }
+
+    /**
+     * @param files entries of the files list
+     * @return bencoded metainfo of a multi-file torrent with one piece
+     */
+    @SuppressWarnings({ "rawtypes", "unchecked" })
+    private static byte[] metainfo(HashMap... files) throws BencodingException
+    {
+        ArrayList list = new ArrayList();
+        for(HashMap file : files)
+            list.add(file);
+        HashMap info = new HashMap();
+        info.put(string("name"), string("album"));
+        info.put(string("piece length"), Integer.valueOf(262144));
+        info.put(string("pieces"), ByteBuffer.wrap(new byte[20]));
+        info.put(string("files"), list);
+        HashMap metainfo = new HashMap();
+        metainfo.put(string("announce"), string("http://localhost:6969/announce"));
+        metainfo.put(string("info"), info);
+        return Bencoder2.encode(metainfo);
+    }
+
+    private static void assertRejected(byte[] metainfo)
+    {
+        try
+        {
+            new TorrentInfo(metainfo);
+            fail("metainfo should have been rejected");
+        }
+        catch(BencodingException expected)
+        {
+        }
+    }
+
+    @Test
+    public void filesAreLaidOutOneAfterAnother() throws BencodingException
+    {
+        TorrentInfo info = new TorrentInfo(metainfo(file(100, "cd1", "01.flac"), file(0, "empty"), file(50, "cover.jpg")));
+        assertTrue(info.multi_file);
+        assertEquals(3, info.files.length);
+        assertArrayEquals(new String[] { "cd1", "01.flac" }, info.files[0].path);
+        assertEquals(0, info.files[0].offset);
+        assertEquals(100, info.files[1].offset);
+        assertEquals(100, info.files[2].offset);
+        assertEquals(150, info.file_length);
+    }
+
+    @Test
+    public void lengthsOverTwoGigabytesAreKept() throws BencodingException
+    {
+        TorrentInfo info = new TorrentInfo(metainfo(file(3L << 30, "a.iso"), file(1, "b")));
+        assertEquals(3L << 30, info.files[1].offset);
+        assertEquals((3L << 30) + 1, info.file_length);
+    }
+
+    @Test
+    public void negativeLengthIsRejected() throws BencodingException
+    {
+        assertRejected(metainfo(file(-1, "a")));
+    }
+
+    @Test
+    public void emptyPathComponentIsRejected() throws BencodingException
+    {
+        assertRejected(metainfo(file(1, "dir", "")));
+    }
+
+    @Test
+    public void dotPathComponentIsRejected() throws BencodingException
+    {
+        assertRejected(metainfo(file(1, ".", "a")));
+    }
+
+    @Test
+    public void parentPathComponentIsRejected() throws BencodingException
+    {
+        assertRejected(metainfo(file(1, "..", "etc", "passwd")));
+    }
+
+    @Test
+    public void separatorInPathComponentIsRejected() throws BencodingException
+    {
+        assertRejected(metainfo(file(1, "a/b")));
+        assertRejected(metainfo(file(1, "a\\b")));
+    }
+
+    @Test
+    public void missingPathIsRejected() throws BencodingException
+    {
+        assertRejected(metainfo(file(1)));
+    }
+}
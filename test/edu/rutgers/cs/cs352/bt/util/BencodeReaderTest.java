@@ -0,0 +1,142 @@
+/*
+ *  RUBTClient is a BitTorrent client written at Rutgers University for
+ *  instructional use.
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package edu.rutgers.cs.cs352.bt.util;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Test;
+
+import edu.rutgers.cs.cs352.bt.exceptions.BencodingException;
+
+/**
+ * Tests for the cursor based {@link BencodeReader}.
+ */
+public class BencodeReaderTest
+{
+    private static byte[] bytes(String s)
+    {
+        return s.getBytes(StandardCharsets.ISO_8859_1);
+    }
+
+    private static String string(ByteBuffer buffer)
+    {
+        return new String(buffer.array(), buffer.arrayOffset() + buffer.position(), buffer.remaining(), StandardCharsets.ISO_8859_1);
+    }
+
+    @Test
+    @SuppressWarnings("rawtypes")
+    public void readValueDecodesEveryType() throws BencodingException
+    {
+        BencodeReader reader = new BencodeReader(bytes("d4:listli1ei-2ee4:longi8589934592e3:str4:spame"));
+        Map map = (Map)reader.readValue();
+        assertTrue(reader.atEnd());
+        List list = (List)map.get(ByteBuffer.wrap(bytes("list")));
+        assertEquals(Integer.valueOf(1), list.get(0));
+        assertEquals(Integer.valueOf(-2), list.get(1));
+        assertEquals(Long.valueOf(8589934592L), map.get(ByteBuffer.wrap(bytes("long"))));
+        assertEquals("spam", string((ByteBuffer)map.get(ByteBuffer.wrap(bytes("str")))));
+    }
+
+    @Test
+    public void findValueReturnsTheSpanOfTheValue() throws BencodingException
+    {
+        byte[] source = bytes("d8:intervali1800e5:peers6:abcdefe");
+        BencodeReader reader = new BencodeReader(source);
+        int[] span = reader.findValue(bytes("peers"));
+        assertEquals("6:abcdef", new String(source, span[0], span[1] - span[0], StandardCharsets.ISO_8859_1));
+        assertEquals(source.length, reader.position());
+    }
+
+    @Test
+    public void findValueOnlyMatchesKeysOfTheOuterDictionary() throws BencodingException
+    {
+        byte[] source = bytes("d5:innerd5:peersi1ee1:xi2ee");
+        assertNull(new BencodeReader(source).findValue(bytes("peers")));
+        assertNull(new BencodeReader(source).findValue(bytes("peer")));
+    }
+
+    @Test(expected = BencodingException.class)
+    public void findValueRejectsAnythingButADictionary() throws BencodingException
+    {
+        new BencodeReader(bytes("li1ee")).findValue(bytes("peers"));
+    }
+
+    @Test
+    public void zeroCopyStringsAreSlicesOfTheSource() throws BencodingException
+    {
+        byte[] source = bytes("xx4:spam");
+        ByteBuffer slice = new BencodeReader(source, 2, 6, true).readString();
+        assertSame(source, slice.array());
+        assertEquals(4, slice.arrayOffset() + slice.position());
+        assertEquals("spam", string(slice));
+    }
+
+    @Test
+    public void copiedStringsDoNotShareTheSource() throws BencodingException
+    {
+        byte[] source = bytes("4:spam");
+        ByteBuffer copy = new BencodeReader(source).readString();
+        assertNotSame(source, copy.array());
+        assertArrayEquals(bytes("spam"), copy.array());
+    }
+
+    @Test
+    public void skipValueStepsOverNestedValues() throws BencodingException
+    {
+        BencodeReader reader = new BencodeReader(bytes("ld1:ali1ei2eeee3:endi7e"));
+        assertEquals(15, reader.skipValue());
+        assertEquals("end", string(reader.readString()));
+        assertEquals(7L, reader.readLong());
+        assertTrue(reader.atEnd());
+    }
+
+    @Test(expected = BencodingException.class)
+    public void readingStopsAtTheEndOfTheRange() throws BencodingException
+    {
+        //the string runs past the length the reader was given, though not past the array
+        new BencodeReader(bytes("4:spam"), 0, 4, false).readString();
+    }
+
+    @Test(expected = BencodingException.class)
+    public void truncatedDictionaryIsRejected() throws BencodingException
+    {
+        new BencodeReader(bytes("d5:peers")).findValue(bytes("peers"));
+    }
+
+    @Test(expected = BencodingException.class)
+    public void readLongRejectsStrings() throws BencodingException
+    {
+        new BencodeReader(bytes("4:spam")).readLong();
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rangeOutsideTheArrayIsRejected()
+    {
+        new BencodeReader(bytes("i1e"), 1, 3, false);
+    }
+}
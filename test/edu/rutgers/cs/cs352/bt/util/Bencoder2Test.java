@@ -0,0 +1,88 @@
+/*
+ *  RUBTClient is a BitTorrent client written at Rutgers University for
+ *  instructional use.
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package edu.rutgers.cs.cs352.bt.util;
+
+import static org.junit.Assert.assertEquals;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.Test;
+
+import edu.rutgers.cs.cs352.bt.exceptions.BencodingException;
+
+/**
+ * Tests for {@link Bencoder2} encoding.
+ */
+public class Bencoder2Test
+{
+    private static ByteBuffer string(String s)
+    {
+        return ByteBuffer.wrap(s.getBytes(StandardCharsets.ISO_8859_1));
+    }
+
+    private static String encoded(Object o) throws BencodingException
+    {
+        return new String(Bencoder2.encode(o), StandardCharsets.ISO_8859_1);
+    }
+
+    @Test
+    public void stringsArePrefixedWithTheirLength() throws BencodingException
+    {
+        assertEquals("4:spam", encoded(string("spam")));
+        assertEquals("0:", encoded(string("")));
+    }
+
+    @Test
+    public void lengthsOfSeveralDigitsAreWrittenInFull() throws BencodingException
+    {
+        byte[] long_string = new byte[1234];
+        Arrays.fill(long_string, (byte)'x');
+        String bencoded = encoded(ByteBuffer.wrap(long_string));
+        assertEquals("1234:", bencoded.substring(0, 5));
+        assertEquals(5 + 1234, bencoded.length());
+    }
+
+    @Test
+    public void integersKeepTheirSign() throws BencodingException
+    {
+        assertEquals("i0e", encoded(Integer.valueOf(0)));
+        assertEquals("i-42e", encoded(Integer.valueOf(-42)));
+        assertEquals("i8589934592e", encoded(Long.valueOf(8589934592L)));
+    }
+
+    @Test
+    @SuppressWarnings({ "rawtypes", "unchecked" })
+    public void encodedValuesDecodeToTheSameValues() throws BencodingException
+    {
+        HashMap<ByteBuffer, Object> map = new HashMap<ByteBuffer, Object>();
+        ArrayList list = new ArrayList();
+        list.add(string("a"));
+        list.add(Integer.valueOf(7));
+        map.put(string("list"), list);
+        map.put(string("name"), string("hello.txt"));
+
+        Map decoded = (Map)Bencoder2.decode(Bencoder2.encode(map));
+        assertEquals(string("hello.txt"), decoded.get(string("name")));
+        assertEquals(list, decoded.get(string("list")));
+    }
+}